@@ -1,8 +1,17 @@
 package net.bowen;
 
+import net.bowen.draw.Scene;
+import net.bowen.draw.models.raytrace.SceneSettings;
+import net.bowen.draw.models.raytrace.bvh.BVHBuildMethod;
+import net.bowen.draw.models.raytrace.bvh.BVHLayout;
 import net.bowen.gui.Window;
+import net.bowen.system.HeadlessRenderer;
+import net.bowen.system.RenderBackend;
+import net.bowen.system.ShaderProgram;
 import org.apache.commons.cli.*;
 
+import java.nio.file.Path;
+
 public class Main {
     public static void main(String[] args) {
         Options options = getOptions();
@@ -37,7 +46,82 @@ public class Main {
         int maxDepth = Integer.parseInt(cmd.getOptionValue("max-depth", "5"));
         String outputFile = cmd.getOptionValue("output", null);
 
-        new Window("Raytracing", sceneID, width, height, samplePerPixel, maxDepth, outputFile);
+        RenderBackend backend;
+        try {
+            backend = RenderBackend.valueOf(cmd.getOptionValue("backend", "gl").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid backend: " + cmd.getOptionValue("backend"));
+            formatter.printHelp("OpenGL Ray Tracer", options);
+            System.exit(1);
+            return;
+        }
+        RenderBackend.set(backend);
+
+        BVHBuildMethod bvhBuildMethod;
+        try {
+            bvhBuildMethod = BVHBuildMethod.valueOf(cmd.getOptionValue("bvh", "sah").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid BVH build method: " + cmd.getOptionValue("bvh"));
+            formatter.printHelp("OpenGL Ray Tracer", options);
+            System.exit(1);
+            return;
+        }
+
+        BVHLayout bvhLayout;
+        try {
+            bvhLayout = BVHLayout.valueOf(cmd.getOptionValue("bvh-layout", "binary").toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid BVH layout: " + cmd.getOptionValue("bvh-layout"));
+            formatter.printHelp("OpenGL Ray Tracer", options);
+            System.exit(1);
+            return;
+        }
+
+        // Every scene is built with these. A scene of its own settings is made with another SceneSettings.
+        SceneSettings defaults = SceneSettings.DEFAULT;
+        SceneSettings sceneSettings;
+        try {
+            int maxLeafSize = cmd.hasOption("max-leaf-size") ?
+                    Integer.parseInt(cmd.getOptionValue("max-leaf-size")) : defaults.maxLeafSize();
+            float sbvhBudget = cmd.hasOption("sbvh-budget") ?
+                    Float.parseFloat(cmd.getOptionValue("sbvh-budget")) : defaults.spatialSplitBudget();
+            Path sceneCache = cmd.hasOption("scene-cache") ? Path.of(cmd.getOptionValue("scene-cache")) : null;
+            sceneSettings = new SceneSettings(bvhBuildMethod, maxLeafSize, sbvhBudget, bvhLayout,
+                    defaults.refitRebuildThreshold(), sceneCache);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid BVH settings: " + e.getMessage());
+            formatter.printHelp("OpenGL Ray Tracer", options);
+            System.exit(1);
+            return;
+        }
+
+        if (cmd.hasOption("shader-cache"))
+            ShaderProgram.setBinaryCacheDirectory(Path.of(cmd.getOptionValue("shader-cache")));
+
+        if (cmd.hasOption("mesh"))
+            Scene.setMeshFile(Path.of(cmd.getOptionValue("mesh")));
+
+        // The CPU backend has no window, so it always renders headless.
+        if (cmd.hasOption("headless") || backend == RenderBackend.CPU) {
+            if (outputFile == null) {
+                System.out.println("An output file is required in headless mode.");
+                formatter.printHelp("OpenGL Ray Tracer", options);
+                System.exit(1);
+                return;
+            }
+
+            try {
+                new HeadlessRenderer(sceneID, width, height, samplePerPixel, maxDepth, outputFile, sceneSettings).render();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+                return;
+            }
+            System.exit(0);
+            return;
+        }
+
+        new Window("Raytracing", sceneID, width, height, samplePerPixel, maxDepth, outputFile, sceneSettings);
     }
 
     private static Options getOptions() {
@@ -66,6 +150,48 @@ public class Main {
         Option outputOption = new Option("o", "output", true, "output file (must be a .png file)");
         outputOption.setRequired(false);
         options.addOption(outputOption);
+
+        Option backendOption = new Option("b", "backend", true, "render backend, gl or cpu (default gl)");
+        backendOption.setRequired(false);
+        options.addOption(backendOption);
+
+        Option headlessOption = new Option(null, "headless", false,
+                "render to the output file without window and GUI, then exit");
+        headlessOption.setRequired(false);
+        options.addOption(headlessOption);
+
+        Option bvhOption = new Option(null, "bvh", true, "BVH build method, median, sah, lbvh or sbvh (default sah)");
+        bvhOption.setRequired(false);
+        options.addOption(bvhOption);
+
+        Option maxLeafSizeOption = new Option(null, "max-leaf-size", true,
+                "the most models a BVH leaf can hold (default 4)");
+        maxLeafSizeOption.setRequired(false);
+        options.addOption(maxLeafSizeOption);
+
+        Option sbvhBudgetOption = new Option(null, "sbvh-budget", true,
+                "how many more primitive references than models the sbvh method can make, e.g. 0.3 for 30% (default 0.3)");
+        sbvhBudgetOption.setRequired(false);
+        options.addOption(sbvhBudgetOption);
+
+        Option bvhLayoutOption = new Option(null, "bvh-layout", true,
+                "BVH node layout, binary, bvh4, bvh8, bvh4-quantized, bvh8-quantized or threaded (default binary)");
+        bvhLayoutOption.setRequired(false);
+        options.addOption(bvhLayoutOption);
+
+        Option sceneCacheOption = new Option(null, "scene-cache", true,
+                "directory to cache the built BVH and packed buffers of scenes in, by the scene hash (gl backend only)");
+        sceneCacheOption.setRequired(false);
+        options.addOption(sceneCacheOption);
+
+        Option shaderCacheOption = new Option(null, "shader-cache", true,
+                "directory to cache the linked compute shader in, by the source and driver hash (gl backend only)");
+        shaderCacheOption.setRequired(false);
+        options.addOption(shaderCacheOption);
+
+        Option meshOption = new Option(null, "mesh", true, "mesh file (.obj or binary .ply) to render in scene 9");
+        meshOption.setRequired(false);
+        options.addOption(meshOption);
         return options;
     }
 }
\ No newline at end of file
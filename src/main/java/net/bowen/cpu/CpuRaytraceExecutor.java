@@ -0,0 +1,276 @@
+package net.bowen.cpu;
+
+import net.bowen.draw.Scene;
+import net.bowen.draw.models.raytrace.SceneBuilder;
+import net.bowen.draw.models.raytrace.bvh.WideBVHNode;
+import net.bowen.system.RaytraceExecutor;
+import org.joml.Vector3f;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CPU counterpart of {@link RaytraceExecutor}. The image is split into tiles of the compute shader's work group
+ * size, and the tiles are traced by a fork/join pool that uses all the cores.
+ */
+public class CpuRaytraceExecutor {
+    /**
+     * The width and height of a tile. This is the local size of the compute shader.
+     */
+    private static final int TILE_SIZE = 16;
+
+    private final Scene scene;
+    private final int width, height;
+    private final int numTilesX, numTilesY;
+    private final ForkJoinPool pool;
+    private final Random random = new Random();
+    private final List<Runnable> completeListeners = new ArrayList<>();
+    /**
+     * The accumulated RGB colors. It's what the image texture holds in the GL backend.
+     */
+    private final float[] image;
+    /**
+     * The BVH traversal counters of all the workers.
+     */
+    private final LongAdder rayCount = new LongAdder(), nodeVisitCount = new LongAdder();
+
+    /**
+     * How many samples have been taken.
+     */
+    private int numSamples;
+    /**
+     * The system time of the first raytrace.
+     */
+    private int startTime;
+    /**
+     * How long it took for all samples to finish.
+     */
+    private int finishTime = -1;
+    /**
+     * How long it took for the last {@link #raytrace(int)} call.
+     */
+    private int lastDispatchTime;
+    /**
+     * If all samples are finished.
+     */
+    private boolean isSampleComplete;
+    private int samplePerPixel;
+    private int maxDepth;
+
+    public CpuRaytraceExecutor(Scene scene, int width, int height) {
+        this.scene = scene;
+        this.width = width;
+        this.height = height;
+        this.numTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.numTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.image = new float[width * height * 3];
+        this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        System.out.println("CPU raytrace executor created with " + pool.getParallelism() + " threads.");
+    }
+
+    public void setSamplePerPixel(int samplePerPixel) {
+        this.samplePerPixel = samplePerPixel;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void resetCompleteState() {
+        isSampleComplete = false;
+        numSamples = 0;
+        finishTime = -1;
+        rayCount.reset();
+        nodeVisitCount.reset();
+    }
+
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    public int getSamplePerPixel() {
+        return samplePerPixel;
+    }
+
+    public int getFinishTime() {
+        return finishTime;
+    }
+
+    public String getFinishTimeString() {
+        return RaytraceExecutor.formatMillis(finishTime);
+    }
+
+    public int getLastDispatchTime() {
+        return lastDispatchTime;
+    }
+
+    /**
+     * @return How many rays have been traced through the BVH, including the camera rays and all the bounces.
+     */
+    public long getRayCount() {
+        return rayCount.sum();
+    }
+
+    /**
+     * @return The average count of BVH nodes a ray visits.
+     */
+    public double getNodeVisitsPerRay() {
+        long rays = rayCount.sum();
+        return rays == 0 ? 0 : (double) nodeVisitCount.sum() / rays;
+    }
+
+    public void addCompleteListener(Runnable l) {
+        completeListeners.add(l);
+    }
+
+    /**
+     * Take 1 more sample for each pixel.
+     */
+    public void raytrace() {
+        raytrace(1);
+    }
+
+    /**
+     * Take the given count of samples for each pixel. A tile takes all of its samples in one go, so the workers only
+     * synchronize once per call.
+     */
+    public void raytrace(int samples) {
+        // Set the start time if it's the very first raytrace.
+        if (numSamples == 0)
+            startTime = (int) System.currentTimeMillis();
+
+        long dispatchStart = System.currentTimeMillis();
+
+        // The samples are numbered from 1, just like the frame count uniform in the GL backend.
+        pool.invoke(new TileTask(0, numTilesX * numTilesY, numSamples + 1, samples, random.nextLong()));
+        numSamples += samples;
+
+        lastDispatchTime = (int) (System.currentTimeMillis() - dispatchStart);
+    }
+
+    public boolean sampleComplete() {
+        if (!isSampleComplete) {
+            isSampleComplete = numSamples >= samplePerPixel;
+
+            // If turn from incomplete to complete, it's time to call the complete listeners.
+            if (isSampleComplete) {
+                // Set the finish time.
+                finishTime = (int) System.currentTimeMillis() - startTime;
+                completeListeners.forEach(Runnable::run);
+            }
+        }
+        return isSampleComplete;
+    }
+
+    /**
+     * Save the accumulated image as a PNG file, the same way {@code Texture#saveAsPNG} does for the GL backend.
+     */
+    public void saveAsPNG(String filename) {
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = (x + width * y) * 3;
+                int r = toGammaCorrectedByte(image[index]);
+                int g = toGammaCorrectedByte(image[index + 1]);
+                int b = toGammaCorrectedByte(image[index + 2]);
+                bufferedImage.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        try {
+            ImageIO.write(bufferedImage, "png", new File(filename));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save image as PNG", e);
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static int toGammaCorrectedByte(float value) {
+        // Quantize like reading back a GL_RGB/GL_UNSIGNED_BYTE image, then apply gamma correction (2.2).
+        float clamped = Math.min(Math.max(value, 0), 1);
+        int quantized = Math.round(clamped * 255);
+        return (int) (Math.pow(quantized / 255.0, 1.0 / 2.2) * 255.0f) & 0xFF;
+    }
+
+    private void traceTile(int tileIndex, int firstFrame, int samples, long seed) {
+        // Every tile gets its own random stream, so the result does not depend on which worker picked the tile.
+        SplittableRandom tileRandom = new SplittableRandom(seed + tileIndex * 0x9E3779B97F4A7C15L);
+        SceneBuilder builder = scene.builder;
+        List<WideBVHNode> wideNodes = builder.getWideBVHNodes();
+        WideBVHNode wideRoot = wideNodes.isEmpty() ? null : wideNodes.get(0);
+        PathTracer tracer = new PathTracer(builder.getBVHNodes().get(0), wideRoot, builder.getSettings().layout().stackless,
+                builder.getLights(), builder.getTextures(), scene.camera, maxDepth, (float) Math.sqrt(samplePerPixel),
+                tileRandom);
+
+        int x0 = (tileIndex % numTilesX) * TILE_SIZE;
+        int y0 = (tileIndex / numTilesX) * TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, width);
+        int y1 = Math.min(y0 + TILE_SIZE, height);
+        Vector3f color = new Vector3f();
+
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int index = (x + width * y) * 3;
+                float r = image[index], g = image[index + 1], b = image[index + 2];
+
+                for (int frameCount = firstFrame; frameCount < firstFrame + samples; frameCount++) {
+                    tracer.samplePixel(x, y, frameCount, color);
+
+                    // Mix the previous color with the color of this sample.
+                    r = (r * (frameCount - 1) + color.x) / frameCount;
+                    g = (g * (frameCount - 1) + color.y) / frameCount;
+                    b = (b * (frameCount - 1) + color.z) / frameCount;
+                }
+
+                image[index] = r;
+                image[index + 1] = g;
+                image[index + 2] = b;
+            }
+        }
+
+        rayCount.add(tracer.getRayCount());
+        nodeVisitCount.add(tracer.getNodeVisitCount());
+    }
+
+    /**
+     * Traces the tiles in [from, to). It's split in halves until a single tile is left, so idle workers can steal the
+     * other halves.
+     */
+    private class TileTask extends RecursiveAction {
+        private final int from, to;
+        private final int firstFrame, samples;
+        private final long seed;
+
+        private TileTask(int from, int to, int firstFrame, int samples, long seed) {
+            this.from = from;
+            this.to = to;
+            this.firstFrame = firstFrame;
+            this.samples = samples;
+            this.seed = seed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                traceTile(from, firstFrame, samples, seed);
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new TileTask(from, mid, firstFrame, samples, seed), new TileTask(mid, to, firstFrame, samples, seed));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package net.bowen.cpu;
+
+import org.joml.Vector3f;
+
+class HitRecord {
+    /**
+     * Whether this hit hits the front face of the object.
+     */
+    boolean isFrontFace;
+    /**
+     * The hit point.
+     */
+    final Vector3f p = new Vector3f();
+    /**
+     * The normal at the hit point of the object.
+     */
+    final Vector3f normal = new Vector3f();
+    /**
+     * The scale of the ray from its origin to the hit point.
+     */
+    float t;
+    /**
+     * The uv coordinate for texture mapping.
+     */
+    float u, v;
+}
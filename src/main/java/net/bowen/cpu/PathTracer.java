@@ -0,0 +1,1032 @@
+package net.bowen.cpu;
+
+import net.bowen.draw.Color;
+import net.bowen.draw.materials.Material;
+import net.bowen.draw.models.raytrace.*;
+import net.bowen.draw.models.raytrace.bvh.WideBVHNode;
+import net.bowen.draw.textures.Texture;
+import net.bowen.math.Interval;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The CPU version of compute.glsl and its includes. The methods mirror the shader functions one by one, so the CPU
+ * backend accumulates the same image as the GL backend does. An instance holds the per-invocation state (the random
+ * generator, the motion blur time, the material globals and some scratch objects), so each worker needs its own.
+ */
+class PathTracer {
+    private static final float INFINITY = 3.402823E+38f;
+    private static final float PI = 3.14159265359f;
+
+    private final BVHNode root;
+    /**
+     * The root of the collapsed BVH. If it's not null, it's traversed instead of the binary tree.
+     */
+    private final WideBVHNode wideRoot;
+    /**
+     * If the binary tree is traversed by its skip links instead of a stack.
+     */
+    private final boolean stackless;
+    private final List<RaytraceModel> lights;
+    /**
+     * The textures of the scene, indexed by the packed values of the materials.
+     */
+    private final List<Texture> textures;
+    private final Camera camera;
+    private final int maxDepth;
+    private final float sqrtSpp, recipSqrtSpp;
+    private final SplittableRandom random;
+
+    private final BVHNode[] stack = new BVHNode[64];
+    /**
+     * The distances the rays enter the nodes in the stack at.
+     */
+    private final float[] stackT = new float[64];
+    /**
+     * The stack of the wide BVH traversal. An entry is either an inner node or a leaf, the other one is null.
+     */
+    private final WideBVHNode[] wideStack = new WideBVHNode[64];
+    private final BVHNode[] leafStack = new BVHNode[64];
+    private final Ray ray = new Ray(), lightRay = new Ray();
+    /**
+     * The ray in the object space of the instance whose BLAS is traversed.
+     */
+    private final Ray objectRay = new Ray();
+    private final HitRecord hitRecord = new HitRecord(), lightRecord = new HitRecord();
+    private final HitRecord boundaryRecord1 = new HitRecord(), boundaryRecord2 = new HitRecord();
+    private final Vector3f accumulatedAttenuation = new Vector3f();
+    private final Vector3f onbU = new Vector3f(), onbV = new Vector3f(), onbW = new Vector3f();
+    private final Vector3f scratch = new Vector3f();
+    /**
+     * The ray in the object space of the box being tested.
+     */
+    private final Vector3f boxOrigin = new Vector3f(), boxDirection = new Vector3f();
+
+    /**
+     * A factor that is in range [0, 1).
+     */
+    private float time;
+    /**
+     * The properties of the closest hit, like the globals set by set_material_properties() in the shader.
+     */
+    private Material material;
+    private final Vector3f attenuation = new Vector3f();
+    private final Vector3f colorFromEmission = new Vector3f();
+    /**
+     * Set by {@link #scatter}. Whether the scattered ray skips the mixture PDF.
+     */
+    private boolean skipPdf;
+
+    /**
+     * How many rays have been traced through the BVH, and how many nodes they visited in total.
+     */
+    private long rayCount, nodeVisitCount;
+
+    PathTracer(BVHNode root, WideBVHNode wideRoot, boolean stackless, List<RaytraceModel> lights,
+               List<Texture> textures, Camera camera, int maxDepth, float sqrtSpp, SplittableRandom random) {
+        this.root = root;
+        this.wideRoot = wideRoot;
+        this.stackless = stackless;
+        this.lights = lights;
+        this.textures = textures;
+        this.camera = camera;
+        this.maxDepth = maxDepth;
+        this.sqrtSpp = sqrtSpp;
+        this.recipSqrtSpp = 1f / sqrtSpp;
+        this.random = random;
+    }
+
+    /**
+     * Trace a single sample of the pixel (x, y). This is what main() in compute.glsl does before the accumulation.
+     *
+     * @param frameCount the 1-based index of the sample.
+     * @param dest       will hold the sampled color.
+     */
+    void samplePixel(int x, int y, int frameCount, Vector3f dest) {
+        time = rand();
+        getRay(x, y, frameCount);
+        rayColor(dest);
+    }
+
+    // --- compute.glsl ---
+
+    private void getRay(int x, int y, int frameCount) {
+        // The sampled point around the pixel location.
+        ray.dir.set(camera.getUpLeftPosition()).fma(x, camera.getPixelDeltaU()).fma(y, camera.getPixelDeltaV());
+        pixelSampleSquare(frameCount, ray.dir);
+
+        // The camera ray originates from the defocus disk.
+        if (camera.getDefocusAngle() <= 0)
+            ray.o.set(camera.getLookFrom());
+        else
+            defocusDiskSample(ray.o);
+
+        ray.dir.sub(ray.o);
+    }
+
+    private void rayColor(Vector3f dest) {
+        accumulatedAttenuation.set(1);
+
+        // Loop until we either reach the maximum recursion depth or stop scattering.
+        for (int i = 0; i < maxDepth; i++) {
+            if (!traceThroughBVH(0.001f, INFINITY, hitRecord)) {
+                Color background = camera.getBackground();
+                dest.set(background.r, background.g, background.b).mul(accumulatedAttenuation);
+                return;
+            }
+
+            if (!scatter(hitRecord)) {
+                dest.set(colorFromEmission).mul(accumulatedAttenuation);
+                return;
+            }
+
+            // Update the ray origin to the hit point.
+            ray.o.set(hitRecord.p);
+
+            if (skipPdf) {
+                accumulatedAttenuation.mul(attenuation);
+                continue;
+            }
+
+            // The mixture of the lights PDF and the material PDF. Without lights, only the material PDF is left, like
+            // in the shader.
+            float pdfValue;
+            if (lights.isEmpty()) {
+                pdfValue = materialPdfValue(ray.dir, material, hitRecord.normal);
+            } else {
+                if (rand() < 0.5f) lightsRandom(ray.o, ray.dir);
+                float lightsPdfValue = lightsPdfValue(ray.o, ray.dir);
+                pdfValue = 0.5f * lightsPdfValue + 0.5f * materialPdfValue(ray.dir, material, hitRecord.normal);
+            }
+
+            // If the PDF value is zero, the direction is invalid.
+            if (pdfValue == 0) {
+                dest.set(colorFromEmission).mul(accumulatedAttenuation);
+                return;
+            }
+
+            float scatteringPdf = scatteringPdf(hitRecord.normal, ray.dir, material);
+            accumulatedAttenuation.mul(attenuation).mul(scatteringPdf / pdfValue);
+        }
+
+        dest.set(0);
+    }
+
+    long getRayCount() {
+        return rayCount;
+    }
+
+    long getNodeVisitCount() {
+        return nodeVisitCount;
+    }
+
+    private boolean traceThroughBVH(float tMin, float tMax, HitRecord hitRecord) {
+        rayCount++;
+        if (wideRoot != null)
+            return traverseWide(ray, wideRoot, 0, tMin, tMax, hitRecord, null);
+        if (stackless)
+            return traverseThreaded(ray, root, tMin, tMax, hitRecord, null);
+        return traverse(ray, root, 0, tMin, tMax, hitRecord, null);
+    }
+
+    /**
+     * Find the closest hit in the tree. The stack entries from the base are used, so a BLAS can be traversed in the
+     * middle of the top-level traversal.
+     *
+     * @param instance the instance whose BLAS the tree is, and the ray is in its object space. It's null for the
+     *                 top-level tree.
+     */
+    private boolean traverse(Ray ray, BVHNode root, int stackBase, float tMin, float tMax, HitRecord hitRecord,
+                             Instance instance) {
+        float rootT = aabbEntry(ray, tMin, tMax, root.boundingBox());
+        if (rootT == INFINITY)
+            return false;
+
+        int stackPtr = stackBase;
+        stack[stackPtr] = root;
+        stackT[stackPtr++] = rootT;
+        boolean hasHit = false;
+
+        while (stackPtr > stackBase) {
+            stackPtr--;
+            // Skip the node if a closer hit has been found since it was pushed.
+            if (stackT[stackPtr] > tMax)
+                continue;
+
+            BVHNode node = stack[stackPtr];
+            nodeVisitCount++;
+
+            if (node.isLeaf()) {
+                if (hitLeaf(ray, tMin, tMax, node, hitRecord, stackPtr, instance)) {
+                    hasHit = true;
+                    tMax = hitRecord.t;
+                }
+            } else {
+                BVHNode near = node.left, far = node.right;
+                float nearT = aabbEntry(ray, tMin, tMax, near.boundingBox());
+                float farT = aabbEntry(ray, tMin, tMax, far.boundingBox());
+                if (farT < nearT) {
+                    near = node.right;
+                    far = node.left;
+                    float t = nearT;
+                    nearT = farT;
+                    farT = t;
+                }
+
+                // Push the far child first, so the near child is popped first.
+                if (farT != INFINITY) {
+                    stack[stackPtr] = far;
+                    stackT[stackPtr++] = farT;
+                }
+                if (nearT != INFINITY) {
+                    stack[stackPtr] = near;
+                    stackT[stackPtr++] = nearT;
+                }
+            }
+        }
+
+        return hasHit;
+    }
+
+    /**
+     * The same as {@link #traverse}, but without a stack. A hit inner node goes on to its left child, which is the next
+     * node in depth-first order, and a missed node or a leaf goes on to its skip link.
+     */
+    private boolean traverseThreaded(Ray ray, BVHNode root, float tMin, float tMax, HitRecord hitRecord,
+                                     Instance instance) {
+        boolean hasHit = false;
+        BVHNode node = root;
+
+        while (node != null) {
+            nodeVisitCount++;
+            if (aabbEntry(ray, tMin, tMax, node.boundingBox()) == INFINITY) {
+                node = node.getSkip();
+                continue;
+            }
+
+            if (!node.isLeaf()) {
+                node = node.left;
+                continue;
+            }
+
+            // The shader can't recurse into a BLAS, so it keeps the leaf and the primitive to go on from instead.
+            if (hitLeaf(ray, tMin, tMax, node, hitRecord, 0, instance)) {
+                hasHit = true;
+                tMax = hitRecord.t;
+            }
+            node = node.getSkip();
+        }
+
+        return hasHit;
+    }
+
+    /**
+     * The same as {@link #traverse}, but for a collapsed tree.
+     */
+    private boolean traverseWide(Ray ray, WideBVHNode root, int stackBase, float tMin, float tMax,
+                                 HitRecord hitRecord, Instance instance) {
+        // The root is always visited. The boxes of its children are tested then.
+        int stackPtr = stackBase;
+        wideStack[stackPtr] = root;
+        leafStack[stackPtr] = null;
+        stackT[stackPtr++] = tMin;
+        boolean hasHit = false;
+
+        while (stackPtr > stackBase) {
+            stackPtr--;
+            // Skip the entry if a closer hit has been found since it was pushed.
+            if (stackT[stackPtr] > tMax)
+                continue;
+
+            BVHNode leaf = leafStack[stackPtr];
+            if (leaf != null) {
+                if (hitLeaf(ray, tMin, tMax, leaf, hitRecord, stackPtr, instance)) {
+                    hasHit = true;
+                    tMax = hitRecord.t;
+                }
+                continue;
+            }
+
+            WideBVHNode node = wideStack[stackPtr];
+            nodeVisitCount++;
+
+            // Push the hit children sorted from far to near, so the nearest one is popped first.
+            int base = stackPtr;
+            for (int i = 0; i < node.childCount; i++) {
+                float t = wideChildEntry(ray, tMin, tMax, node, i);
+                if (t == INFINITY) continue;
+
+                int j = stackPtr++;
+                while (j > base && stackT[j - 1] < t) {
+                    wideStack[j] = wideStack[j - 1];
+                    leafStack[j] = leafStack[j - 1];
+                    stackT[j] = stackT[j - 1];
+                    j--;
+                }
+                wideStack[j] = node.innerChildren[i];
+                leafStack[j] = node.leafChildren[i];
+                stackT[j] = t;
+            }
+        }
+
+        return hasHit;
+    }
+
+    /**
+     * Test the models or the triangles of a leaf, and keep the closest hit.
+     */
+    private boolean hitLeaf(Ray ray, float tMin, float tMax, BVHNode leaf, HitRecord hitRecord, int stackTop,
+                            Instance instance) {
+        boolean hasHit = false;
+        if (leaf.mesh != null) {
+            // The triangles of a mesh are only in BLASes, so there's always an instance.
+            TriangleMesh mesh = leaf.mesh;
+            for (int i = leaf.firstTriangle; i < leaf.firstTriangle + leaf.triangleCount; i++) {
+                if (hitTriangle(ray, tMin, tMax, mesh, leaf.triangles[i], hitRecord)) {
+                    hasHit = true;
+                    tMax = hitRecord.t;
+                }
+            }
+            if (hasHit) {
+                toWorldSpace(hitRecord, instance);
+                setMaterialProperties(mesh.getMaterial(), hitRecord.isFrontFace, hitRecord);
+            }
+            return hasHit;
+        }
+
+        for (RaytraceModel primitive : leaf.primitives) {
+            if (hitPrimitive(ray, tMin, tMax, primitive, hitRecord, stackTop, instance)) {
+                hasHit = true;
+                tMax = hitRecord.t;
+            }
+        }
+        return hasHit;
+    }
+
+    /**
+     * Test a model of a leaf, and set the material properties if it's hit. An instance is tested by traversing its
+     * BLAS with the stack entries from the top.
+     *
+     * @param instance the instance whose BLAS the leaf is in. It's null for the top-level tree.
+     */
+    private boolean hitPrimitive(Ray ray, float tMin, float tMax, RaytraceModel primitive, HitRecord hitRecord,
+                                 int stackTop, Instance instance) {
+        if (primitive instanceof Instance blasInstance) {
+            // The direction is not normalized, so the distances are the same in the object space.
+            Matrix4f worldToObject = blasInstance.getWorldToObject();
+            worldToObject.transformPosition(ray.o, objectRay.o);
+            worldToObject.transformDirection(ray.dir, objectRay.dir);
+
+            BLAS blas = blasInstance.getBLAS();
+            if (wideRoot != null)
+                return traverseWide(objectRay, blas.getWideRoot(), stackTop, tMin, tMax, hitRecord, blasInstance);
+            if (stackless)
+                return traverseThreaded(objectRay, blas.getRoot(), tMin, tMax, hitRecord, blasInstance);
+            return traverse(objectRay, blas.getRoot(), stackTop, tMin, tMax, hitRecord, blasInstance);
+        }
+
+        if (!hitModel(ray, tMin, tMax, primitive, hitRecord))
+            return false;
+
+        if (instance != null)
+            toWorldSpace(hitRecord, instance);
+        setMaterialProperties(primitive, hitRecord);
+        return true;
+    }
+
+    /**
+     * Transform a hit in the object space of the instance back to the world space. The normals are transformed by the
+     * transpose of the world to object matrix.
+     */
+    private void toWorldSpace(HitRecord hitRecord, Instance instance) {
+        Matrix4f m = instance.getWorldToObject();
+        Vector3f n = hitRecord.normal;
+        hitRecord.p.set(this.ray.dir).mul(hitRecord.t).add(this.ray.o);
+        n.set(m.m00() * n.x + m.m01() * n.y + m.m02() * n.z,
+                m.m10() * n.x + m.m11() * n.y + m.m12() * n.z,
+                m.m20() * n.x + m.m21() * n.y + m.m22() * n.z).normalize();
+    }
+
+    private void setMaterialProperties(RaytraceModel model, HitRecord hitRecord) {
+        Material mat;
+        boolean emits = hitRecord.isFrontFace;
+        if (model instanceof Sphere sphere) {
+            mat = sphere.getMaterial();
+        } else if (model instanceof Quad quad) {
+            mat = quad.material;
+        } else if (model instanceof ConstantMedium medium) {
+            mat = medium.getPhaseFunction();
+            emits = false;
+        } else if (model instanceof Box box) {
+            mat = box.getMaterial();
+        } else {
+            return;
+        }
+        setMaterialProperties(mat, emits, hitRecord);
+    }
+
+    private void setMaterialProperties(Material mat, boolean emits, HitRecord hitRecord) {
+        material = mat;
+        Texture.sample(textures, mat.getTexturePackedValue(), hitRecord.p, hitRecord.u, hitRecord.v, attenuation);
+        if (emits) {
+            Color emission = mat.emitted();
+            colorFromEmission.set(emission.r, emission.g, emission.b);
+        } else {
+            colorFromEmission.set(0);
+        }
+    }
+
+    // --- hitting.glsl ---
+
+    private boolean hitSphere(Ray ray, float tMin, float tMax, Sphere sphere, HitRecord hitRecord) {
+        Vector3f center1 = sphere.getCenter1();
+        Vector3f centerVec = sphere.getCenterVec();
+        float radius = sphere.getRadius();
+        float cx = center1.x + centerVec.x * time;
+        float cy = center1.y + centerVec.y * time;
+        float cz = center1.z + centerVec.z * time;
+
+        float ocx = ray.o.x - cx, ocy = ray.o.y - cy, ocz = ray.o.z - cz;
+        float a = ray.dir.dot(ray.dir);
+        float halfB = ocx * ray.dir.x + ocy * ray.dir.y + ocz * ray.dir.z;
+        float c = ocx * ocx + ocy * ocy + ocz * ocz - radius * radius;
+        float discriminant = halfB * halfB - a * c;
+
+        if (discriminant < 0)
+            return false;
+
+        float sqrtd = (float) Math.sqrt(discriminant);
+
+        // Find the nearest root that lies in the acceptable range.
+        float root = (-halfB - sqrtd) / a;
+        if (!(tMin < root && root < tMax)) {
+            root = (-halfB + sqrtd) / a;
+            if (!(tMin < root && root < tMax))
+                return false;
+        }
+
+        hitRecord.t = root;
+        hitRecord.p.set(ray.dir).mul(root).add(ray.o);
+        hitRecord.normal.set(hitRecord.p).sub(cx, cy, cz).div(radius);
+        setFaceNormal(ray, hitRecord);
+        setSphereUV(hitRecord.p.x - cx, hitRecord.p.y - cy, hitRecord.p.z - cz, hitRecord);
+
+        return true;
+    }
+
+    /**
+     * @return The distance the ray enters the box at, or {@link #INFINITY} if it misses the box.
+     */
+    private static float aabbEntry(Ray ray, float tMin, float tMax, AABB aabb) {
+        for (int axis = 0; axis < 3; axis++) {
+            Interval ax = aabb.axisInterval(axis);
+            float origin = ray.o.get(axis);
+            float adinv = 1f / ray.dir.get(axis);
+
+            float t0 = (ax.min - origin) * adinv;
+            float t1 = (ax.max - origin) * adinv;
+
+            if (t0 < t1) {
+                if (t0 > tMin) tMin = t0;
+                if (t1 < tMax) tMax = t1;
+            } else {
+                if (t1 > tMin) tMin = t1;
+                if (t0 < tMax) tMax = t0;
+            }
+
+            if (tMax <= tMin)
+                return INFINITY;
+        }
+
+        return tMin;
+    }
+
+    /**
+     * The same as {@link #aabbEntry}, but for a child box of a wide node.
+     */
+    private static float wideChildEntry(Ray ray, float tMin, float tMax, WideBVHNode node, int child) {
+        for (int axis = 0; axis < 3; axis++) {
+            float origin = ray.o.get(axis);
+            float adinv = 1f / ray.dir.get(axis);
+
+            float t0 = (node.bounds[node.boundsIndex(axis, false, child)] - origin) * adinv;
+            float t1 = (node.bounds[node.boundsIndex(axis, true, child)] - origin) * adinv;
+
+            if (t0 < t1) {
+                if (t0 > tMin) tMin = t0;
+                if (t1 < tMax) tMax = t1;
+            } else {
+                if (t1 > tMin) tMin = t1;
+                if (t0 < tMax) tMax = t0;
+            }
+
+            if (tMax <= tMin)
+                return INFINITY;
+        }
+
+        return tMin;
+    }
+
+    private static boolean hitQuad(Ray ray, float tMin, float tMax, Quad quad, HitRecord hitRecord) {
+        Vector3f normal = quad.normal;
+        float denom = normal.dot(ray.dir);
+
+        // No hit if the ray is parallel to the plane.
+        if (Math.abs(denom) < 1e-8f)
+            return false;
+
+        // Return false if the hit point parameter t is outside the ray interval.
+        float t = (quad.d - normal.dot(ray.o)) / denom;
+        if (!(tMin <= t && t <= tMax))
+            return false;
+
+        // Determine if the hit point lies within the planar shape using its plane coordinates.
+        float ix = ray.o.x + ray.dir.x * t;
+        float iy = ray.o.y + ray.dir.y * t;
+        float iz = ray.o.z + ray.dir.z * t;
+        float px = ix - quad.q.x, py = iy - quad.q.y, pz = iz - quad.q.z;
+
+        Vector3f u = quad.u;
+        Vector3f v = quad.v;
+        float delta, alpha, beta;
+        if ((delta = u.x * v.y - u.y * v.x) != 0) {
+            alpha = (px * v.y - py * v.x) / delta;
+            beta = (py * u.x - px * u.y) / delta;
+        } else if ((delta = u.x * v.z - u.z * v.x) != 0) {
+            alpha = (px * v.z - pz * v.x) / delta;
+            beta = (pz * u.x - px * u.z) / delta;
+        } else {
+            delta = u.y * v.z - u.z * v.y;
+            alpha = (py * v.z - pz * v.y) / delta;
+            beta = (pz * u.y - py * u.z) / delta;
+        }
+
+        if (!(0 <= alpha && alpha <= 1 && 0 <= beta && beta <= 1))
+            return false;
+
+        // Ray hits the 2D shape; set the rest of the hit record and return true.
+        hitRecord.u = alpha;
+        hitRecord.v = beta;
+        hitRecord.t = t;
+        hitRecord.p.set(ix, iy, iz);
+        hitRecord.normal.set(normal);
+        setFaceNormal(ray, hitRecord);
+
+        return true;
+    }
+
+    private boolean hitBox(Ray ray, float tMin, float tMax, Box box, HitRecord hitRecord) {
+        // Intersect the slabs in the object space, where the box is axis aligned. A rotation keeps the lengths, so the
+        // distances are the same in both spaces.
+        Quaternionf orientation = box.getOrientation();
+        Vector3f o = ray.o.sub(box.getOffset(), boxOrigin);
+        orientation.transformInverse(o);
+        Vector3f dir = orientation.transformInverse(ray.dir, boxDirection);
+        Vector3f min = box.getMin(), max = box.getMax();
+
+        float tEnter = -INFINITY, tExit = INFINITY;
+        int enterAxis = 0, exitAxis = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            float invDir = 1 / dir.get(axis);
+            float t0 = (min.get(axis) - o.get(axis)) * invDir;
+            float t1 = (max.get(axis) - o.get(axis)) * invDir;
+            float tNear = Math.min(t0, t1), tFar = Math.max(t0, t1);
+            if (tNear > tEnter) {
+                tEnter = tNear;
+                enterAxis = axis;
+            }
+            if (tFar < tExit) {
+                tExit = tFar;
+                exitAxis = axis;
+            }
+        }
+        if (tEnter > tExit)
+            return false;
+
+        // The ray hits the face it enters through, or the face it leaves through if it starts inside the box.
+        float t = tEnter;
+        int axis = enterAxis;
+        boolean maxFace = dir.get(axis) < 0;
+        if (!(tMin <= t && t <= tMax)) {
+            t = tExit;
+            axis = exitAxis;
+            maxFace = dir.get(axis) > 0;
+            if (!(tMin <= t && t <= tMax))
+                return false;
+        }
+
+        // The same uv as the sides had when a box was made of 6 quads.
+        float lx = (o.x + dir.x * t - min.x) / (max.x - min.x);
+        float ly = (o.y + dir.y * t - min.y) / (max.y - min.y);
+        float lz = (o.z + dir.z * t - min.z) / (max.z - min.z);
+        if (axis == 0) {
+            hitRecord.u = maxFace ? 1 - lz : lz;
+            hitRecord.v = ly;
+        } else if (axis == 1) {
+            hitRecord.u = lx;
+            hitRecord.v = maxFace ? 1 - lz : lz;
+        } else {
+            hitRecord.u = maxFace ? lx : 1 - lx;
+            hitRecord.v = ly;
+        }
+
+        hitRecord.t = t;
+        hitRecord.p.set(ray.dir).mul(t).add(ray.o);
+        hitRecord.normal.set(0).setComponent(axis, maxFace ? 1 : -1);
+        orientation.transform(hitRecord.normal);
+        setFaceNormal(ray, hitRecord);
+
+        return true;
+    }
+
+    /**
+     * The Moller-Trumbore intersection. The uv is the barycentric coordinate of the hit.
+     */
+    private static boolean hitTriangle(Ray ray, float tMin, float tMax, TriangleMesh mesh, int triangle,
+                                       HitRecord hitRecord) {
+        int i0 = mesh.getVertexIndex(triangle, 0);
+        int i1 = mesh.getVertexIndex(triangle, 1);
+        int i2 = mesh.getVertexIndex(triangle, 2);
+        float p0x = mesh.getVertexComponent(i0, 0), p0y = mesh.getVertexComponent(i0, 1);
+        float p0z = mesh.getVertexComponent(i0, 2);
+        float e1x = mesh.getVertexComponent(i1, 0) - p0x, e1y = mesh.getVertexComponent(i1, 1) - p0y;
+        float e1z = mesh.getVertexComponent(i1, 2) - p0z;
+        float e2x = mesh.getVertexComponent(i2, 0) - p0x, e2y = mesh.getVertexComponent(i2, 1) - p0y;
+        float e2z = mesh.getVertexComponent(i2, 2) - p0z;
+        Vector3f d = ray.dir;
+
+        // No hit if the ray is parallel to the plane. The determinant is tiny for tiny triangles, so only 0 is rejected.
+        float px = d.y * e2z - d.z * e2y, py = d.z * e2x - d.x * e2z, pz = d.x * e2y - d.y * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (det == 0)
+            return false;
+
+        float invDet = 1 / det;
+        float tx = ray.o.x - p0x, ty = ray.o.y - p0y, tz = ray.o.z - p0z;
+        float u = (tx * px + ty * py + tz * pz) * invDet;
+        if (u < 0 || u > 1)
+            return false;
+
+        float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+        float v = (d.x * qx + d.y * qy + d.z * qz) * invDet;
+        if (v < 0 || u + v > 1)
+            return false;
+
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        if (!(tMin <= t && t <= tMax))
+            return false;
+
+        hitRecord.u = u;
+        hitRecord.v = v;
+        hitRecord.t = t;
+        hitRecord.p.set(d).mul(t).add(ray.o);
+        hitRecord.normal.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
+        setFaceNormal(ray, hitRecord);
+
+        return true;
+    }
+
+    private boolean hitBoundary(Ray ray, float tMin, float tMax, RaytraceModel model, HitRecord hitRecord) {
+        if (model instanceof Sphere sphere)
+            return hitSphere(ray, tMin, tMax, sphere, hitRecord);
+        if (model instanceof Quad quad)
+            return hitQuad(ray, tMin, tMax, quad, hitRecord);
+        if (model instanceof Box box)
+            return hitBox(ray, tMin, tMax, box, hitRecord);
+        return false;
+    }
+
+    private boolean hitConstantMedium(Ray ray, float tMin, float tMax, ConstantMedium medium, HitRecord hitRecord) {
+        HitRecord rec1 = boundaryRecord1, rec2 = boundaryRecord2;
+        RaytraceModel boundary = medium.getBoundary();
+
+        if (!hitBoundary(ray, -INFINITY, INFINITY, boundary, rec1))
+            return false;
+
+        if (!hitBoundary(ray, rec1.t + 0.0001f, INFINITY, boundary, rec2))
+            return false;
+
+        float t1 = Math.max(rec1.t, tMin);
+        float t2 = Math.min(rec2.t, tMax);
+
+        if (t1 >= t2)
+            return false;
+
+        if (t1 < 0)
+            t1 = 0;
+
+        float rayLength = ray.dir.length();
+        float distanceInsideBoundary = (t2 - t1) * rayLength;
+        float hitDistance = -1f / medium.getDensity() * (float) Math.log(rand());
+
+        if (hitDistance > distanceInsideBoundary)
+            return false;
+
+        hitRecord.t = t1 + hitDistance / rayLength;
+        hitRecord.p.set(ray.dir).mul(hitRecord.t).add(ray.o);
+        hitRecord.normal.set(1, 0, 0); // arbitrary
+        hitRecord.isFrontFace = true; // also arbitrary
+
+        return true;
+    }
+
+    private boolean hitModel(Ray ray, float tMin, float tMax, RaytraceModel model, HitRecord hitRecord) {
+        // Check the single hit models. e.g. quads, spheres, and boxes.
+        if (hitBoundary(ray, tMin, tMax, model, hitRecord))
+            return true;
+
+        // If it's a more complex model like constant mediums, check using its special function.
+        if (model instanceof ConstantMedium medium)
+            return hitConstantMedium(ray, tMin, tMax, medium, hitRecord);
+
+        return false;
+    }
+
+    /**
+     * Make {@link HitRecord#normal}, which holds the outward normal, face against the ray.
+     */
+    private static void setFaceNormal(Ray ray, HitRecord hitRecord) {
+        hitRecord.isFrontFace = ray.dir.dot(hitRecord.normal) < 0;
+        if (!hitRecord.isFrontFace)
+            hitRecord.normal.negate();
+    }
+
+    private static void setSphereUV(float x, float y, float z, HitRecord hitRecord) {
+        // Same as get_sphere_uv() in texture.glsl.
+        float invLength = 1f / (float) Math.sqrt(x * x + y * y + z * z);
+        x *= invLength;
+        y *= invLength;
+        z *= invLength;
+        float theta = (float) Math.acos(-y);
+        float phi = (float) Math.atan2(-z, x) + PI;
+
+        hitRecord.u = phi / (2 * PI);
+        hitRecord.v = theta / PI;
+    }
+
+    // --- scatter.glsl ---
+
+    private boolean scatter(HitRecord hitRecord) {
+        Vector3f normal = hitRecord.normal;
+        boolean shouldScatter = false;
+
+        switch (material.getMaterialId()) {
+            case Material.LAMBERTIAN -> {
+                randCosineDirection(scratch);
+                transformOnb(scratch.x, scratch.y, scratch.z, normal, ray.dir);
+                shouldScatter = true;
+                skipPdf = false;
+            }
+            case Material.METAL -> {
+                float fuzz = material.getParameter();
+                reflect(ray.dir, normal);
+                ray.dir.normalize().add(randUnitVec(scratch).mul(fuzz));
+                shouldScatter = ray.dir.dot(normal) > 0; // check if the ray is absorbed by the metal
+                skipPdf = true;
+            }
+            case Material.DIELECTRIC -> {
+                float eta = material.getParameter();
+                if (hitRecord.isFrontFace) eta = 1f / eta;
+                refractScatter(ray.dir, normal, eta);
+                shouldScatter = true;
+                skipPdf = true;
+            }
+            case Material.DIFFUSE_LIGHT -> {
+                return false;
+            }
+            case Material.ISOTROPIC -> {
+                ray.o.set(hitRecord.p);
+                randUnitVec(ray.dir);
+                shouldScatter = true;
+                skipPdf = false;
+            }
+        }
+
+        // Catch degenerate scatter direction.
+        float s = 1e-8f;
+        if (Math.abs(ray.dir.x) < s && Math.abs(ray.dir.y) < s && Math.abs(ray.dir.z) < s)
+            ray.dir.set(normal);
+
+        return shouldScatter;
+    }
+
+    private static void reflect(Vector3f dir, Vector3f normal) {
+        dir.fma(-2 * normal.dot(dir), normal);
+    }
+
+    private static float reflectance(float cosTheta, float eta) {
+        // Use Schlick's approximation for reflectance.
+        float r0 = (1 - eta) / (1 + eta);
+        r0 = r0 * r0;
+        return r0 + (1 - r0) * (float) Math.pow(1 - cosTheta, 5);
+    }
+
+    private void refractScatter(Vector3f dir, Vector3f normal, float eta) {
+        dir.normalize();
+        float cosTheta = Math.min(-dir.dot(normal), 1);
+        float sinTheta = (float) Math.sqrt(1 - cosTheta * cosTheta);
+
+        // Check if total internal reflection happens.
+        boolean cannotRefract = eta * sinTheta > 1;
+
+        if (cannotRefract || reflectance(cosTheta, eta) > rand()) {
+            reflect(dir, normal);
+        } else {
+            // Same as GLSL refract().
+            float nDotI = normal.dot(dir);
+            float k = 1 - eta * eta * (1 - nDotI * nDotI);
+            if (k < 0)
+                dir.set(0);
+            else
+                dir.mul(eta).fma(-(eta * nDotI + (float) Math.sqrt(k)), normal);
+        }
+    }
+
+    // --- pdf.glsl ---
+
+    private float sphereModelPdf(Vector3f origin, Vector3f direction, Sphere sphere) {
+        // This method only works for stationary spheres.
+        lightRay.o.set(origin);
+        lightRay.dir.set(direction);
+        if (!hitSphere(lightRay, 0.001f, INFINITY, sphere, lightRecord))
+            return 0;
+
+        float radius = sphere.getRadius();
+        float distanceSquared = origin.distanceSquared(sphere.getCenter1());
+        float cosThetaMax = (float) Math.sqrt(1 - radius * radius / distanceSquared);
+        float solidAngle = 2 * PI * (1 - cosThetaMax);
+
+        return 1 / solidAngle;
+    }
+
+    private void sphereModelRandom(Vector3f origin, Vector3f sphereCenter, float sphereRadius, Vector3f dest) {
+        Vector3f direction = scratch.set(sphereCenter).sub(origin);
+        float distanceSquared = direction.dot(direction);
+
+        // rand_to_sphere()
+        float r1 = rand();
+        float r2 = rand();
+        float z = 1 + r2 * ((float) Math.sqrt(1 - sphereRadius * sphereRadius / distanceSquared) - 1);
+        float phi = 2 * PI * r1;
+        float sinTheta = (float) Math.sqrt(1 - z * z);
+        float x = (float) Math.cos(phi) * sinTheta;
+        float y = (float) Math.sin(phi) * sinTheta;
+
+        transformOnb(x, y, z, direction, dest);
+    }
+
+    private static float cosinePdfValue(Vector3f direction, Vector3f normal) {
+        // The shader normalizes the dot product, which is a float, so only its sign is kept.
+        float cosTheta = Math.signum(direction.dot(normal));
+        return Math.max(0, cosTheta / PI);
+    }
+
+    private float quadPdfValue(Vector3f origin, Vector3f direction, Quad quad) {
+        lightRay.o.set(origin);
+        lightRay.dir.set(direction);
+        if (!hitQuad(lightRay, 0.001f, INFINITY, quad, lightRecord))
+            return 0;
+
+        float distanceSquared = lightRecord.t * lightRecord.t * direction.dot(direction);
+        float cosine = Math.abs(direction.dot(lightRecord.normal) / direction.length());
+
+        return distanceSquared / (cosine * quad.area);
+    }
+
+    private float lightsPdfValue(Vector3f origin, Vector3f direction) {
+        float weight = 1f / lights.size();
+        float sum = 0;
+
+        for (RaytraceModel light : lights) {
+            float pdfValue = 0;
+            if (light instanceof Sphere sphere)
+                pdfValue = sphereModelPdf(origin, direction, sphere);
+            else if (light instanceof Quad quad)
+                pdfValue = quadPdfValue(origin, direction, quad);
+
+            sum += weight * pdfValue;
+        }
+
+        return sum;
+    }
+
+    private void lightsRandom(Vector3f origin, Vector3f dest) {
+        RaytraceModel light = lights.get(randInt(0, lights.size() - 1));
+
+        if (light instanceof Sphere sphere) {
+            sphereModelRandom(origin, sphere.getCenter1(), sphere.getRadius(), dest);
+        } else if (light instanceof Quad quad) {
+            // quad_random()
+            dest.set(quad.q).fma(rand(), quad.u).fma(rand(), quad.v).sub(origin);
+        }
+    }
+
+    private static float materialPdfValue(Vector3f direction, Material material, Vector3f normal) {
+        int materialId = material.getMaterialId();
+
+        return switch (materialId) {
+            case Material.LAMBERTIAN -> cosinePdfValue(direction, normal);
+            case Material.ISOTROPIC -> 1 / (4 * PI);
+            default -> 0;
+        };
+    }
+
+    private static float scatteringPdf(Vector3f normal, Vector3f scatterDir, Material material) {
+        int materialId = material.getMaterialId();
+
+        return switch (materialId) {
+            case Material.LAMBERTIAN -> {
+                float cosTheta = normal.dot(scatterDir) / scatterDir.length();
+                yield Math.max(0, cosTheta / PI);
+            }
+            case Material.ISOTROPIC -> 1 / (4 * PI);
+            default -> 0;
+        };
+    }
+
+    // --- math.glsl ---
+
+    private void transformOnb(float x, float y, float z, Vector3f normal, Vector3f dest) {
+        Vector3f w = onbW.set(normal).normalize();
+        Vector3f v = (Math.abs(w.x) > 0.9f) ? onbV.set(0, 1, 0) : onbV.set(1, 0, 0);
+        w.cross(v, v).normalize();
+        Vector3f u = w.cross(v, onbU);
+
+        dest.set(u).mul(x).fma(y, v).fma(z, w);
+    }
+
+    // --- random.glsl ---
+
+    /**
+     * @return A random value in section [0, 1).
+     */
+    private float rand() {
+        return random.nextFloat();
+    }
+
+    /**
+     * @return A random value in section [minVal, maxVal).
+     */
+    private float rand(float minVal, float maxVal) {
+        return minVal + rand() * (maxVal - minVal);
+    }
+
+    /**
+     * @return A random integer value in the range [minVal, maxVal].
+     */
+    private int randInt(int minVal, int maxVal) {
+        return (int) Math.floor(rand(minVal, maxVal + 1));
+    }
+
+    private void defocusDiskSample(Vector3f dest) {
+        // Random point in unit disk.
+        float x, y;
+        do {
+            x = rand(-1, 1);
+            y = rand(-1, 1);
+        } while (x * x + y * y >= 1);
+
+        dest.set(camera.getLookFrom()).fma(x, camera.getDefocusDiskU()).fma(y, camera.getDefocusDiskV());
+    }
+
+    private Vector3f randUnitVec(Vector3f dest) {
+        // Random vector in unit sphere, normalized.
+        do {
+            dest.set(rand(-1, 1), rand(-1, 1), rand(-1, 1));
+        } while (dest.lengthSquared() >= 1);
+
+        return dest.normalize();
+    }
+
+    private void randCosineDirection(Vector3f dest) {
+        float r1 = rand();
+        float r2 = rand();
+
+        float phi = 2 * PI * r1;
+        float sqrtR2 = (float) Math.sqrt(r2);
+        dest.set((float) Math.cos(phi) * sqrtR2, (float) Math.sin(phi) * sqrtR2, (float) Math.sqrt(1 - r2));
+    }
+
+    private void pixelSampleSquare(int frameCount, Vector3f dest) {
+        float column = frameCount % sqrtSpp; // Column index in the stratified grid
+        float layer = frameCount / sqrtSpp;  // Row index in the stratified grid
+
+        // Calculate the center point of the current grid cell
+        float baseX = (column + 0.5f) * recipSqrtSpp;
+        float baseY = (layer + 0.5f) * recipSqrtSpp;
+
+        // Add random jitter within the grid cell
+        float jitterX = (rand() - 0.5f) * recipSqrtSpp;
+        float jitterY = (rand() - 0.5f) * recipSqrtSpp;
+
+        // Adjust the sample position to the local pixel space
+        float px = baseX + jitterX - 0.5f;
+        float py = baseY + jitterY - 0.5f;
+
+        dest.fma(px, camera.getPixelDeltaU()).fma(py, camera.getPixelDeltaV());
+    }
+}
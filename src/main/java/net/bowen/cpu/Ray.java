@@ -0,0 +1,14 @@
+package net.bowen.cpu;
+
+import org.joml.Vector3f;
+
+class Ray {
+    /**
+     * The origin.
+     */
+    final Vector3f o = new Vector3f();
+    /**
+     * The direction. It's not necessarily a unit vector.
+     */
+    final Vector3f dir = new Vector3f();
+}
@@ -2,20 +2,44 @@ package net.bowen.draw;
 
 import net.bowen.draw.materials.*;
 import net.bowen.draw.models.raytrace.*;
+import net.bowen.draw.models.raytrace.mesh.ObjLoader;
+import net.bowen.draw.models.raytrace.mesh.PlyLoader;
 import net.bowen.draw.textures.*;
+import net.bowen.system.RenderBackend;
 import net.bowen.system.ShaderProgram;
+import net.bowen.system.StartupPhases;
+import org.joml.Matrix4f;
 import org.joml.Vector3f;
 
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
 
 public final class Scene {
-    public final Camera camera = new Camera();
-    private final ShaderProgram computeProgram;
+    private static final String COMPUTE_SHADER_PATH = "shaders/raytrace/compute.glsl";
 
-    public Scene(int sceneID, int initImageWidth, int initImageHeight, ShaderProgram computeProgram) {
-        this.computeProgram = computeProgram;
-        RaytraceModel.initSSBOs();
+    /**
+     * The mesh file scene 9 renders. See {@link #setMeshFile(Path)}.
+     */
+    private static Path meshFile;
 
+    public final Camera camera = new Camera();
+    public final SceneBuilder builder;
+    /**
+     * The raytrace compute program variant of the scene. It's null until {@link #upload()}, and in
+     * {@link RenderBackend#CPU}.
+     */
+    private ShaderProgram computeProgram;
+
+    /**
+     * Create the scene with its models. It doesn't need the GL context, so it can be done on any thread. It should then
+     * be prepared by {@link #prepare()}, and in the GL backend, uploaded by {@link #upload()} on the GL thread.
+     */
+    public Scene(int sceneID, int initImageWidth, int initImageHeight, SceneSettings settings) {
+        builder = new SceneBuilder(settings);
         switch (sceneID) {
             case 0 -> bouncingSpheres();
             case 1 -> checkerSpheres();
@@ -26,28 +50,98 @@ public final class Scene {
             case 6 -> cornellBox();
             case 7 -> cornellSmoke();
             case 8 -> finalScene();
+            case 9 -> mesh();
             default -> throw new IllegalArgumentException("Invalid scene ID: " + sceneID);
         }
 
-        Texture.putTextureIndices(computeProgram);
         camera.setImageSize(initImageWidth, initImageHeight);
+        camera.calculateProperties();
+    }
+
+    /**
+     * Build the BVH and pack the buffers. It doesn't need the GL context either.
+     *
+     * @return This scene.
+     * @see SceneBuilder#prepare()
+     */
+    public Scene prepare() {
+        builder.prepare();
+        return this;
+    }
+
+    /**
+     * Upload the prepared scene, and the camera to the compute program variant of the scene. It should be called on the
+     * GL thread.
+     */
+    public void upload() {
+        computeProgram = getComputeProgram(builder.getShaderDefines());
+        builder.upload();
         camera.init(computeProgram);
     }
 
+    /**
+     * @return The compute program variant of the scene. It's null until {@link #upload()}.
+     */
+    public ShaderProgram getComputeProgram() {
+        return computeProgram;
+    }
+
+    /**
+     * Bind the camera of the scene to its compute program. The camera of the last scene uploaded is bound otherwise.
+     */
+    public void bindCamera() {
+        camera.bind(computeProgram);
+    }
+
+    /**
+     * @return The raytrace compute program with the defines. It's compiled the first time it's asked for, so it can be
+     * compiled before the scene is uploaded. See {@link SceneBuilder#getShaderDefines()}.
+     */
+    public static ShaderProgram getComputeProgram(Map<String, String> defines) {
+        return ShaderProgram.getVariant(COMPUTE_SHADER_PATH, defines, GL_COMPUTE_SHADER);
+    }
+
+    /**
+     * Create the scene on a worker thread, so the GL context can be created meanwhile. Its models are all it takes to
+     * know the shader variant it needs. See {@link SceneBuilder#getShaderDefines()}.
+     */
+    public static CompletableFuture<Scene> createAsync(int sceneID, int initImageWidth, int initImageHeight,
+                                                      SceneSettings settings) {
+        return CompletableFuture.supplyAsync(() -> StartupPhases.get("Scene creation",
+                () -> new Scene(sceneID, initImageWidth, initImageHeight, settings)));
+    }
+
+    /**
+     * Prepare the scene on a worker thread once it's been created, so its shader variant can be compiled meanwhile.
+     */
+    public static CompletableFuture<Scene> prepareAsync(CompletableFuture<Scene> createdScene) {
+        return createdScene.thenApplyAsync(scene -> StartupPhases.get("Scene preparation", scene::prepare));
+    }
+
+    /**
+     * Set the mesh file scene 9 renders. It's an OBJ file or a binary little-endian PLY file.
+     */
+    public static void setMeshFile(Path file) {
+        meshFile = file;
+    }
+
     public void updateCamera(int imageWidth, int imageHeight) {
         camera.setImageSize(imageWidth, imageHeight);
         camera.calculateProperties();
-        camera.putToShaderProgram(computeProgram);
+        if (RenderBackend.usesGL())
+            camera.putToShaderProgram(computeProgram);
     }
 
     private void bouncingSpheres() {
-        SolidTexture.init();
-        CheckerTexture.init();
+        // The small spheres are random.
+        builder.setCacheable(false);
+        SolidTexture solid = builder.getSolidTexture();
+        CheckerTexture checker = builder.getCheckerTexture();
 
-        Material mat = new Lambertian(SolidTexture.registerColor(0.5f, 0.5f, 0.5f));
-        RaytraceModel.addModel(new Sphere(0, -1, 0, 0.5f, mat));
-        Material groundMaterial = new Lambertian(CheckerTexture.registerColor(.2f, .3f, .1f, .9f, .9f, .9f, .32f));
-        RaytraceModel.addModel(new Sphere(0, -1000, 0, 1000, groundMaterial));
+        Material mat = new Lambertian(solid.registerColor(0.5f, 0.5f, 0.5f));
+        builder.addModel(new Sphere(0, -1, 0, 0.5f, mat));
+        Material groundMaterial = new Lambertian(checker.registerColor(.2f, .3f, .1f, .9f, .9f, .9f, .32f));
+        builder.addModel(new Sphere(0, -1000, 0, 1000, groundMaterial));
 
         Random random = new Random();
         for (int a = -11; a < 11; a++) {
@@ -65,36 +159,32 @@ public final class Scene {
                     if (chooseMaterial < 0.8) {
                         // diffuse
                         Color albedo = Color.randomColor().mul(Color.randomColor());
-                        sphereMaterial = new Lambertian(SolidTexture.registerColor(albedo));
+                        sphereMaterial = new Lambertian(solid.registerColor(albedo));
                         Vector3f center2 = new Vector3f(center).add(new Vector3f(0, (float) (Math.random() * 0.5f), 0));
-                        RaytraceModel.addModel(new Sphere(center, center2, 0.2f, sphereMaterial));
+                        builder.addModel(new Sphere(center, center2, 0.2f, sphereMaterial));
                     } else if (chooseMaterial < 0.95) {
                         // metal
                         Color albedo = Color.randomColor(0.5f, 1);
                         float fuzz = random.nextFloat(0, 0.5f);
-                        sphereMaterial = new Metal(SolidTexture.registerColor(albedo), fuzz);
-                        RaytraceModel.addModel(new Sphere(center, 0.2f, sphereMaterial));
+                        sphereMaterial = new Metal(solid.registerColor(albedo), fuzz);
+                        builder.addModel(new Sphere(center, 0.2f, sphereMaterial));
                     } else {
                         // glass
                         sphereMaterial = new Dielectric(1.5f);
-                        RaytraceModel.addModel(new Sphere(center, 0.2f, sphereMaterial));
+                        builder.addModel(new Sphere(center, 0.2f, sphereMaterial));
                     }
                 }
             }
         }
 
         Material material1 = new Dielectric(1.5f);
-        RaytraceModel.addModel(new Sphere(0, 1, 0, 1, material1));
-
-        Material material2 = new Lambertian(SolidTexture.registerColor(0.4f, 0.2f, 0.1f));
-        RaytraceModel.addModel(new Sphere(-4, 1, 0, 1, material2));
+        builder.addModel(new Sphere(0, 1, 0, 1, material1));
 
-        Material material3 = new Metal(SolidTexture.registerColor(0.7f, 0.6f, 0.5f), 0);
-        RaytraceModel.addModel(new Sphere(4, 1, 0, 1, material3));
+        Material material2 = new Lambertian(solid.registerColor(0.4f, 0.2f, 0.1f));
+        builder.addModel(new Sphere(-4, 1, 0, 1, material2));
 
-        RaytraceModel.putModelsToProgram();
-        SolidTexture.putDataToTexture();
-        CheckerTexture.putDataToTexture();
+        Material material3 = new Metal(solid.registerColor(0.7f, 0.6f, 0.5f), 0);
+        builder.addModel(new Sphere(4, 1, 0, 1, material3));
 
         camera.setVerticalFOV(20);
         camera.setLookFrom(13, 2, 3);
@@ -105,16 +195,13 @@ public final class Scene {
     }
 
     private void checkerSpheres() {
-        CheckerTexture.init();
+        CheckerTexture checker = builder.getCheckerTexture();
 
-        int checker1 = CheckerTexture.registerColor(.2f, .3f, .1f, .9f, .9f, .9f, 0.32f);
-        int checker2 = CheckerTexture.registerColor(.5f, .2f, .1f, .9f, .9f, .9f, 0.32f);
+        int checker1 = checker.registerColor(.2f, .3f, .1f, .9f, .9f, .9f, 0.32f);
+        int checker2 = checker.registerColor(.5f, .2f, .1f, .9f, .9f, .9f, 0.32f);
 
-        RaytraceModel.addModel(new Sphere(0, -10, 0, 10, new Lambertian(checker1)));
-        RaytraceModel.addModel(new Sphere(0, 10, 0, 10, new Lambertian(checker2)));
-
-        RaytraceModel.putModelsToProgram();
-        CheckerTexture.putDataToTexture();
+        builder.addModel(new Sphere(0, -10, 0, 10, new Lambertian(checker1)));
+        builder.addModel(new Sphere(0, 10, 0, 10, new Lambertian(checker2)));
 
         camera.setVerticalFOV(20);
         camera.setLookFrom(13, 2, 3);
@@ -128,8 +215,7 @@ public final class Scene {
         Material earthSurface = new Lambertian(earthTexture);
         Sphere globe = new Sphere(0, 0, 0, 2, earthSurface);
 
-        RaytraceModel.addModel(globe);
-        RaytraceModel.putModelsToProgram();
+        builder.addModel(globe);
 
         camera.setVerticalFOV(20);
         camera.setLookFrom(0, 0, 12);
@@ -142,12 +228,10 @@ public final class Scene {
         PerlinNoiseTexture perlinNoise = PerlinNoiseTexture.create(4);
 
         Material groundSurface = new Lambertian(perlinNoise);
-        RaytraceModel.addModel(new Sphere(0, -1000, 0, 1000, groundSurface));
+        builder.addModel(new Sphere(0, -1000, 0, 1000, groundSurface));
 
         Material sphereSurface = new Lambertian(perlinNoise);
-        RaytraceModel.addModel(new Sphere(0, 2, 0, 2, sphereSurface));
-
-        RaytraceModel.putModelsToProgram();
+        builder.addModel(new Sphere(0, 2, 0, 2, sphereSurface));
 
         camera.setVerticalFOV(20);
         camera.setLookFrom(13, 2, 3);
@@ -157,22 +241,19 @@ public final class Scene {
     }
 
     private void quads() {
-        SolidTexture.init();
-
-        Material leftRed = new Lambertian(SolidTexture.registerColor(1.0f, 0.2f, 0.2f));
-        Material backGreen = new Lambertian(SolidTexture.registerColor(0.2f, 1.0f, 0.2f));
-        Material rightBlue = new Lambertian(SolidTexture.registerColor(0.2f, 0.2f, 1.0f));
-        Material upperOrange = new Lambertian(SolidTexture.registerColor(1.0f, 0.5f, 0.0f));
-        Material lowerTeal = new Lambertian(SolidTexture.registerColor(0.2f, 0.8f, 0.8f));
+        SolidTexture solid = builder.getSolidTexture();
 
-        RaytraceModel.addModel(new Quad(new Vector3f(-3, -2, 5), new Vector3f(0, 0, -4), new Vector3f(0, 4, 0), leftRed));
-        RaytraceModel.addModel(new Quad(new Vector3f(-2, -2, 0), new Vector3f(4, 0, 0), new Vector3f(0, 4, 0), backGreen));
-        RaytraceModel.addModel(new Quad(new Vector3f(3, -2, 1), new Vector3f(0, 0, 4), new Vector3f(0, 4, 0), rightBlue));
-        RaytraceModel.addModel(new Quad(new Vector3f(-2, 3, 1), new Vector3f(4, 0, 0), new Vector3f(0, 0, 4), upperOrange));
-        RaytraceModel.addModel(new Quad(new Vector3f(-2, -3, 5), new Vector3f(4, 0, 0), new Vector3f(0, 0, -4), lowerTeal));
+        Material leftRed = new Lambertian(solid.registerColor(1.0f, 0.2f, 0.2f));
+        Material backGreen = new Lambertian(solid.registerColor(0.2f, 1.0f, 0.2f));
+        Material rightBlue = new Lambertian(solid.registerColor(0.2f, 0.2f, 1.0f));
+        Material upperOrange = new Lambertian(solid.registerColor(1.0f, 0.5f, 0.0f));
+        Material lowerTeal = new Lambertian(solid.registerColor(0.2f, 0.8f, 0.8f));
 
-        RaytraceModel.putModelsToProgram();
-        SolidTexture.putDataToTexture();
+        builder.addModel(new Quad(new Vector3f(-3, -2, 5), new Vector3f(0, 0, -4), new Vector3f(0, 4, 0), leftRed));
+        builder.addModel(new Quad(new Vector3f(-2, -2, 0), new Vector3f(4, 0, 0), new Vector3f(0, 4, 0), backGreen));
+        builder.addModel(new Quad(new Vector3f(3, -2, 1), new Vector3f(0, 0, 4), new Vector3f(0, 4, 0), rightBlue));
+        builder.addModel(new Quad(new Vector3f(-2, 3, 1), new Vector3f(4, 0, 0), new Vector3f(0, 0, 4), upperOrange));
+        builder.addModel(new Quad(new Vector3f(-2, -3, 5), new Vector3f(4, 0, 0), new Vector3f(0, 0, -4), lowerTeal));
 
         camera.setVerticalFOV(80);
         camera.setLookFrom(0, 0, 9);
@@ -184,24 +265,22 @@ public final class Scene {
     private void simpleLight() {
         PerlinNoiseTexture perlinNoise = PerlinNoiseTexture.create(4);
 
-        RaytraceModel.addModel(new Sphere(0, -1000, 0, 1000, new Lambertian(perlinNoise)));
-        RaytraceModel.addModel(new Sphere(0, 2, 0, 2, new Lambertian(perlinNoise)));
+        builder.addModel(new Sphere(0, -1000, 0, 1000, new Lambertian(perlinNoise)));
+        builder.addModel(new Sphere(0, 2, 0, 2, new Lambertian(perlinNoise)));
 
         Material diffLight = new DiffuseLight(new Color(4, 4, 4));
-        RaytraceModel.addModel(new Sphere(
+        builder.addModel(new Sphere(
                 new Vector3f(0, 7, 0),
                 2,
                 diffLight
         ));
-        RaytraceModel.addModel(new Quad(
+        builder.addModel(new Quad(
                 new Vector3f(3, 1, -2),
                 new Vector3f(2, 0, 0),
                 new Vector3f(0, 2, 0),
                 diffLight
         ));
 
-        RaytraceModel.putModelsToProgram();
-
         camera.setVerticalFOV(20);
         camera.setLookFrom(26, 3, 6);
         camera.setLookAt(0, 2, 0);
@@ -210,22 +289,22 @@ public final class Scene {
     }
 
     private void cornellBox() {
-        SolidTexture.init();
+        SolidTexture solid = builder.getSolidTexture();
 
-        Material red = new Lambertian(SolidTexture.registerColor(0.65f, 0.05f, 0.05f));
-        Material white = new Lambertian(SolidTexture.registerColor(0.73f, 0.73f, 0.73f));
-        Material green = new Lambertian(SolidTexture.registerColor(0.12f, 0.45f, 0.15f));
+        Material red = new Lambertian(solid.registerColor(0.65f, 0.05f, 0.05f));
+        Material white = new Lambertian(solid.registerColor(0.73f, 0.73f, 0.73f));
+        Material green = new Lambertian(solid.registerColor(0.12f, 0.45f, 0.15f));
         Material light = new DiffuseLight(new Color(15, 15, 15));
 
         Quad lightQuad = new Quad(new Vector3f(343, 554, 332), new Vector3f(-130, 0, 0), new Vector3f(0, 0, -105), light);
 
-        RaytraceModel.addModel(new Quad(new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), green));
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), red));
-        RaytraceModel.addModel(lightQuad);
-        RaytraceModel.addLight(lightQuad);
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(555, 0, 0), new Vector3f(0, 0, 555), white));
-        RaytraceModel.addModel(new Quad(new Vector3f(555, 555, 555), new Vector3f(-555, 0, 0), new Vector3f(0, 0, -555), white));
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 0, 555), new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), white));
+        builder.addModel(new Quad(new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), green));
+        builder.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), red));
+        builder.addModel(lightQuad);
+        builder.addLight(lightQuad);
+        builder.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(555, 0, 0), new Vector3f(0, 0, 555), white));
+        builder.addModel(new Quad(new Vector3f(555, 555, 555), new Vector3f(-555, 0, 0), new Vector3f(0, 0, -555), white));
+        builder.addModel(new Quad(new Vector3f(0, 0, 555), new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), white));
 
         Vector3f box1Translation = new Vector3f(265,0,295);
         Vector3f box1Rotation = new Vector3f(0, (float) Math.toRadians(15), 0);
@@ -234,12 +313,9 @@ public final class Scene {
         Material glass = new Dielectric(1.5f);
         Sphere glassSphere = new Sphere(new Vector3f(190, 90, 190), 90, glass);
 
-        RaytraceModel.addModel(box1);
-        RaytraceModel.addModel(glassSphere);
-        RaytraceModel.addLight(glassSphere);
-
-        RaytraceModel.putModelsToProgram();
-        SolidTexture.putDataToTexture();
+        builder.addModel(box1);
+        builder.addModel(glassSphere);
+        builder.addLight(glassSphere);
 
         camera.setVerticalFOV(40);
         camera.setLookFrom(278, 278, -800);
@@ -249,28 +325,25 @@ public final class Scene {
     }
 
     private void cornellSmoke() {
-        SolidTexture.init();
+        SolidTexture solid = builder.getSolidTexture();
 
-        Material red = new Lambertian(SolidTexture.registerColor(0.65f, 0.05f, 0.05f));
-        Material white = new Lambertian(SolidTexture.registerColor(0.73f, 0.73f, 0.73f));
-        Material green = new Lambertian(SolidTexture.registerColor(0.12f, 0.45f, 0.15f));
+        Material red = new Lambertian(solid.registerColor(0.65f, 0.05f, 0.05f));
+        Material white = new Lambertian(solid.registerColor(0.73f, 0.73f, 0.73f));
+        Material green = new Lambertian(solid.registerColor(0.12f, 0.45f, 0.15f));
         Material light = new DiffuseLight(new Color(7, 7, 7));
 
-        RaytraceModel.addModel(new Quad(new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), green));
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), red));
-        RaytraceModel.addModel(new Quad(new Vector3f(113, 554, 127), new Vector3f(330, 0, 0), new Vector3f(0, 0, 305), light));
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 555, 0), new Vector3f(555, 0, 0), new Vector3f(0, 0, 555), white));
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(555, 0, 0), new Vector3f(0, 0, 555), white));
-        RaytraceModel.addModel(new Quad(new Vector3f(0, 0, 555), new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), white));
+        builder.addModel(new Quad(new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), green));
+        builder.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(0, 555, 0), new Vector3f(0, 0, 555), red));
+        builder.addModel(new Quad(new Vector3f(113, 554, 127), new Vector3f(330, 0, 0), new Vector3f(0, 0, 305), light));
+        builder.addModel(new Quad(new Vector3f(0, 555, 0), new Vector3f(555, 0, 0), new Vector3f(0, 0, 555), white));
+        builder.addModel(new Quad(new Vector3f(0, 0, 0), new Vector3f(555, 0, 0), new Vector3f(0, 0, 555), white));
+        builder.addModel(new Quad(new Vector3f(0, 0, 555), new Vector3f(555, 0, 0), new Vector3f(0, 555, 0), white));
 
         Box box1 = new Box(new Vector3f(0, 0,0), new Vector3f(165,330,165), new Vector3f(265, 0, 295), new Vector3f(0, (float) Math.toRadians(15), 0), white);
         Box box2 = new Box(new Vector3f(0, 0,0), new Vector3f(165,165,165), new Vector3f(130, 0, 65), new Vector3f(0, (float) Math.toRadians(-18), 0), white);
 
-        RaytraceModel.addModel(new ConstantMedium(box1, 0.01f, new Isotropic(SolidTexture.registerColor(0.0f, 0.0f, 0.0f))));
-        RaytraceModel.addModel(new ConstantMedium(box2, 0.01f, new Isotropic(SolidTexture.registerColor(1, 1, 1))));
-
-        RaytraceModel.putModelsToProgram();
-        SolidTexture.putDataToTexture();
+        builder.addModel(new ConstantMedium(box1, 0.01f, new Isotropic(solid.registerColor(0.0f, 0.0f, 0.0f))));
+        builder.addModel(new ConstantMedium(box2, 0.01f, new Isotropic(solid.registerColor(1, 1, 1))));
 
         camera.setVerticalFOV(40);
         camera.setLookFrom(278, 278, -800);
@@ -280,10 +353,14 @@ public final class Scene {
     }
 
     private void finalScene() {
-        SolidTexture.init();
+        // The heights of the ground boxes and the spheres in the cube are random.
+        builder.setCacheable(false);
+        SolidTexture solid = builder.getSolidTexture();
 
-        Material ground = new Lambertian(SolidTexture.registerColor(0.48f, 0.83f, 0.53f));
+        Material ground = new Lambertian(solid.registerColor(0.48f, 0.83f, 0.53f));
 
+        // The ground boxes are instances of a unit box, scaled to their sizes.
+        BLAS unitBox = new BLAS().add(new Box(new Vector3f(0, 0, 0), new Vector3f(1, 1, 1), ground));
         int boxesPerSide = 20;
         for (int i = 0; i < boxesPerSide; i++) {
             for (int j = 0; j < boxesPerSide; j++) {
@@ -291,49 +368,46 @@ public final class Scene {
                 float x0 = -1000.0f + i*w;
                 float z0 = -1000.0f + j*w;
                 float y0 = 0.0f;
-                float x1 = x0 + w;
                 float y1 = (float) (1 + Math.random() * 100);
-                float z1 = z0 + w;
-                RaytraceModel.addModel(new Box(new Vector3f(x0, y0, z0), new Vector3f(x1, y1, z1), ground));
+                Matrix4f transform = new Matrix4f().translate(x0, y0, z0).scale(w, y1 - y0, w);
+                builder.addModel(new Instance(unitBox, transform));
             }
         }
 
         Material light = new DiffuseLight(new Color(7, 7, 7));
-        RaytraceModel.addModel(new Quad(new Vector3f(123,554,147), new Vector3f(300, 0, 0), new Vector3f(0, 0, 265), light));
+        builder.addModel(new Quad(new Vector3f(123,554,147), new Vector3f(300, 0, 0), new Vector3f(0, 0, 265), light));
 
         Vector3f center1 = new Vector3f(400, 400, 200);
         Vector3f center2 = new Vector3f(center1).add(new Vector3f(100, 0, 0));
-        Material sphereMaterial = new Lambertian(SolidTexture.registerColor(0.7f, 0.3f, 0.1f));
-        RaytraceModel.addModel(new Sphere(center1, center2, 50, sphereMaterial));
-
-        RaytraceModel.addModel(new Sphere(new Vector3f(260, 150, 45), 50, new Dielectric(1.5f)));
-        RaytraceModel.addModel(new Sphere(new Vector3f(0, 150, 145), 50, new Metal(SolidTexture.registerColor(0.8f, 0.8f, 0.9f), 0.999f)));
+        Material sphereMaterial = new Lambertian(solid.registerColor(0.7f, 0.3f, 0.1f));
+        builder.addModel(new Sphere(center1, center2, 50, sphereMaterial));
 
+        builder.addModel(new Sphere(new Vector3f(260, 150, 45), 50, new Dielectric(1.5f)));
+        builder.addModel(new Sphere(new Vector3f(0, 150, 145), 50, new Metal(solid.registerColor(0.8f, 0.8f, 0.9f), 0.999f)));
 
         Sphere boundary = new Sphere(new Vector3f(360, 150, 145), 70, new Dielectric(1.5f));
-        RaytraceModel.addModel(boundary);
-        RaytraceModel.addModel(new ConstantMedium(boundary, 0.2f, new Isotropic(SolidTexture.registerColor(0.2f, 0.4f, 0.9f))));
+        builder.addModel(boundary);
+        builder.addModel(new ConstantMedium(boundary, 0.2f, new Isotropic(solid.registerColor(0.2f, 0.4f, 0.9f))));
 
         boundary = new Sphere(new Vector3f(0, 0, 0), 5000, new Dielectric(1.5f));
-        RaytraceModel.addModel(new ConstantMedium(boundary, 0.0001f, new Isotropic(SolidTexture.registerColor(1, 1, 1))));
+        builder.addModel(new ConstantMedium(boundary, 0.0001f, new Isotropic(solid.registerColor(1, 1, 1))));
 
         Material earthMaterial = new Lambertian(ImageTexture.create("textures/earthmap.jpg", 100, 0));
-        RaytraceModel.addModel(new Sphere(new Vector3f(400, 200, 400), 100, earthMaterial));
+        builder.addModel(new Sphere(new Vector3f(400, 200, 400), 100, earthMaterial));
 
         Texture perlinTexture = PerlinNoiseTexture.create(0.2f);
         Material noiseMaterial = new Lambertian(perlinTexture);
-        RaytraceModel.addModel(new Sphere(new Vector3f(220, 280, 300), 80, noiseMaterial));
+        builder.addModel(new Sphere(new Vector3f(220, 280, 300), 80, noiseMaterial));
 
-        Lambertian white = new Lambertian(SolidTexture.registerColor(0.73f, 0.73f, 0.73f));
+        Lambertian white = new Lambertian(solid.registerColor(0.73f, 0.73f, 0.73f));
+        BLAS sphereCluster = new BLAS();
         int ns = 1000;
         for (int j = 0; j < ns; j++) {
             Vector3f center = new Vector3f((float) (165 * Math.random()), (float) (165 * Math.random()), (float) (165 * Math.random()));
-            center.add(-100, 270, 395);
-            RaytraceModel.addModel(new Sphere(center, 10, white));
+            sphereCluster.add(new Sphere(center, 10, white));
         }
-
-        RaytraceModel.putModelsToProgram();
-        SolidTexture.putDataToTexture();
+        Matrix4f clusterTransform = new Matrix4f().translate(-100, 270, 395);
+        builder.addModel(new Instance(sphereCluster, clusterTransform));
 
         camera.setVerticalFOV(40);
         camera.setLookFrom( 478, 278, -600);
@@ -341,4 +415,47 @@ public final class Scene {
         camera.setDefocusAngle(0);
         camera.setBackground(0, 0, 0);
     }
+
+    private void mesh() {
+        if (meshFile == null)
+            throw new IllegalStateException("Scene 9 renders a mesh file. Set it with --mesh <file>.");
+
+        SolidTexture solid = builder.getSolidTexture();
+
+        Material meshMaterial = new Lambertian(solid.registerColor(0.73f, 0.73f, 0.73f));
+        TriangleMesh mesh = loadMesh(meshFile, meshMaterial);
+        if (mesh.getTriangleCount() == 0)
+            throw new IllegalStateException("The mesh file has no triangles: " + meshFile);
+
+        // Scale the mesh to fit in a box of size 2, standing on the ground at the origin.
+        AABB box = mesh.boundingBox();
+        float scale = 2 / Math.max(box.x.size(), Math.max(box.y.size(), box.z.size()));
+        Matrix4f transform = new Matrix4f().scale(scale)
+                .translate(-(box.x.min + box.x.max) / 2, -box.y.min, -(box.z.min + box.z.max) / 2);
+        builder.addModel(new Instance(mesh, transform));
+
+        Material ground = new Lambertian(solid.registerColor(0.48f, 0.83f, 0.53f));
+        builder.addModel(new Sphere(0, -1000, 0, 1000, ground));
+
+        Quad lightQuad = new Quad(new Vector3f(-1, 5, -1), new Vector3f(2, 0, 0), new Vector3f(0, 0, 2),
+                new DiffuseLight(new Color(8, 8, 8)));
+        builder.addModel(lightQuad);
+        builder.addLight(lightQuad);
+
+        camera.setVerticalFOV(30);
+        camera.setLookFrom(0, 2, 6);
+        camera.setLookAt(0, 1, 0);
+        camera.setDefocusAngle(0);
+        camera.setBackground(0.70f, 0.80f, 1.00f);
+    }
+
+    private static TriangleMesh loadMesh(Path file, Material material) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".obj"))
+            return ObjLoader.load(file, material);
+        if (name.endsWith(".ply"))
+            return PlyLoader.load(file, material);
+        throw new IllegalArgumentException("Unsupported mesh file: " + file +
+                ". Only .obj and .ply files can be loaded.");
+    }
 }
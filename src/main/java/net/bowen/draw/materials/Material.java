@@ -1,7 +1,11 @@
 package net.bowen.draw.materials;
 
 import net.bowen.draw.Color;
+import net.bowen.draw.models.raytrace.SceneBuilder;
 import net.bowen.draw.textures.Texture;
+import net.bowen.system.DataUtils;
+
+import java.nio.ByteBuffer;
 
 public abstract class Material {
     public static final int LAMBERTIAN = 0;
@@ -11,15 +15,32 @@ public abstract class Material {
     public static final int ISOTROPIC = 4;
 
     protected final int materialId;
+    /**
+     * The texture of the material, or null if it's given as a packed value. The packed value of a texture is only
+     * known when the texture is added to a scene, so it's read when the material is packed.
+     */
+    private final Texture texture;
     private final int texturePackedValue;
 
+    /**
+     * The index in the material SSBO. It's set when a model of the material is added, and -1 before that.
+     */
+    public int indexInList = -1;
+    /**
+     * The scene the material has been added to, or null. The index is only valid in that scene, so a material can't be
+     * added to another one.
+     */
+    public SceneBuilder owner;
+
     public Material(int materialId, Texture texture) {
         this.materialId = materialId;
-        this.texturePackedValue = texture.getValue();
+        this.texture = texture;
+        this.texturePackedValue = 0;
     }
 
     public Material(int materialId, int texturePackedValue) {
         this.materialId = materialId;
+        this.texture = null;
         this.texturePackedValue = texturePackedValue;
     }
 
@@ -28,11 +49,17 @@ public abstract class Material {
     }
 
     /**
-     * @return A packed value where upper 16 bits is the material id, and the lower 16 bits is whatever data a type
-     * of texture want to store. For example, metal stores its fuzz value in the lower 16 bits.
+     * @return The type of the material, e.g. {@link #LAMBERTIAN}.
+     */
+    public int getMaterialId() {
+        return materialId;
+    }
+
+    /**
+     * @return The parameter of the material type, e.g. the fuzz of a metal. It's 0 if the type has none.
      */
-    public int getMaterialPackedValue() {
-        return materialId << 16;
+    public float getParameter() {
+        return 0;
     }
 
     /**
@@ -40,6 +67,22 @@ public abstract class Material {
      * @see Texture#getValue()
      */
     public int getTexturePackedValue() {
-        return texturePackedValue;
+        return texture != null ? texture.getValue() : texturePackedValue;
+    }
+
+    /**
+     * @return The texture of the material, or null if it's given as a packed value.
+     */
+    public Texture getTexture() {
+        return texture;
+    }
+
+    public void putToBuffer(ByteBuffer buffer) {
+        buffer.putInt(materialId);
+        buffer.putInt(getTexturePackedValue());
+        buffer.putFloat(getParameter());
+        buffer.putInt(0); // padding
+        DataUtils.putToBuffer(emitted(), buffer);
+        buffer.putFloat(0); // padding
     }
 }
@@ -25,12 +25,11 @@ public class Metal extends Material {
         this.fuzz = fuzz;
     }
 
+    /**
+     * @return The fuzz.
+     */
     @Override
-    public int getMaterialPackedValue() {
-        // Quantize the fuzz value (assuming fuzz is in the range [0, 1])
-        int fuzzQuantized = (int) (fuzz * 65535.0f); // Quantize float to 16 bits (range 0-65535)
-
-        // Pack the material ID (16 bits) and fuzzQuantized (16 bits) into a single 32-bit integer
-        return super.getMaterialPackedValue() | (fuzzQuantized & 0xFFFF);
+    public float getParameter() {
+        return fuzz;
     }
 }
@@ -7,6 +7,11 @@ import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 public class AABB extends RaytraceModel {
+    /**
+     * No side of a box made from points is narrower than this. A narrower side is padded to it.
+     */
+    static final float MIN_SIZE = 0.001f;
+
     public final Interval x = new Interval(), y = new Interval(), z = new Interval();
 
     /**
@@ -31,6 +36,14 @@ public class AABB extends RaytraceModel {
         padToMinimums();
     }
 
+    public AABB(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        x.set(minX, maxX);
+        y.set(minY, maxY);
+        z.set(minZ, maxZ);
+
+        padToMinimums();
+    }
+
     public AABB(AABB box1, AABB box2) {
         set(box1, box2);
     }
@@ -48,6 +61,14 @@ public class AABB extends RaytraceModel {
         return x;
     }
 
+    /**
+     * @return The surface area of the box. It's used by the surface area heuristic (SAH).
+     */
+    public float surfaceArea() {
+        float dx = x.size(), dy = y.size(), dz = z.size();
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
     public int longestAxis() {
         // Returns the index of the longest axis of the bounding box.
         if (x.size() > y.size())
@@ -59,9 +80,8 @@ public class AABB extends RaytraceModel {
     private void padToMinimums() {
         // Adjust the AABB so that no side is narrower than some delta, padding if necessary.
 
-        float delta = 0.001f;
-        if (x.size() < delta) x.expand(delta);
-        if (y.size() < delta) y.expand(delta);
-        if (z.size() < delta) z.expand(delta);
+        if (x.size() < MIN_SIZE) x.expand(MIN_SIZE);
+        if (y.size() < MIN_SIZE) y.expand(MIN_SIZE);
+        if (z.size() < MIN_SIZE) z.expand(MIN_SIZE);
     }
 }
@@ -0,0 +1,83 @@
+package net.bowen.draw.models.raytrace;
+
+import net.bowen.draw.models.raytrace.bvh.WideBVHNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bottom-level acceleration structure: a group of models in their own object space with their own BVH. It's drawn
+ * by {@link Instance}s, so any number of copies of the group cost a single copy of the models and the nodes.
+ * <p>
+ * The models are added to a scene with its first instance. They're uploaded with the other models, but they're not in
+ * the top-level BVH. The BVH is built with the top-level one by {@link SceneBuilder#build()}, and its nodes are put
+ * after the top-level nodes.
+ */
+public class BLAS {
+    private final List<RaytraceModel> models = new ArrayList<>();
+    // The bounding box of the models. A mesh sets it to the box of its triangles.
+    final AABB bbox = new AABB();
+
+    // The root of the BVH and the root of the collapsed BVH. They're set when the BVH is built.
+    BVHNode root;
+    WideBVHNode wideRoot;
+    /**
+     * The index of the root in the BVH node SSBO in the current layout.
+     */
+    int rootIndex;
+    /**
+     * The SAH cost of the BVH when it was last built. Refits rebuild it once it's grown too much. See
+     * {@link SceneBuilder#refitBVH()}.
+     */
+    float buildCost;
+    /**
+     * The scene the BLAS has been added to, or null. Its root index and the indices of its models are only valid in
+     * that scene, so a BLAS can't be instanced in another one.
+     */
+    SceneBuilder owner;
+
+    /**
+     * Add a model in object space. All models should be added before the BLAS is instanced.
+     *
+     * @throws IllegalArgumentException if the model is a constant medium or an instance, which can't be instanced.
+     */
+    public BLAS add(RaytraceModel model) {
+        if (model instanceof ConstantMedium || model instanceof Instance)
+            throw new IllegalArgumentException("Only spheres, quads and boxes can be put in a BLAS. Triangles are " +
+                    "put in a TriangleMesh.");
+
+        models.add(model);
+        bbox.set(bbox, model.boundingBox());
+        return this;
+    }
+
+    /**
+     * Take the bounding box of the root again after the BVH has been refitted.
+     */
+    void refitBoundingBox() {
+        bbox.set(root.boundingBox(), root.boundingBox());
+    }
+
+    public List<RaytraceModel> getModels() {
+        return Collections.unmodifiableList(models);
+    }
+
+    /**
+     * @return The bounding box of the models in object space.
+     */
+    public AABB boundingBox() {
+        return bbox;
+    }
+
+    public BVHNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return The root of the collapsed BVH. It's null unless a wide layout is used.
+     */
+    public WideBVHNode getWideRoot() {
+        return wideRoot;
+    }
+}
@@ -3,20 +3,119 @@ package net.bowen.draw.models.raytrace;
 import net.bowen.math.Interval;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 
 public class BVHNode extends RaytraceModel {
-    // Left and right children.
-    public final RaytraceModel left, right;
+    // Left and right children. They're null if the node is a leaf.
+    public final BVHNode left, right;
+    /**
+     * The models of a leaf. It's null if the node is not a leaf, or if it's a leaf of triangles.
+     */
+    public final RaytraceModel[] primitives;
+    /**
+     * The mesh of a leaf of triangles, or null. The triangles of the leaf are the range of {@link #triangles} from
+     * {@link #firstTriangle}.
+     */
+    public final TriangleMesh mesh;
+    /**
+     * The triangle indices in the mesh. The leaves of a mesh BVH share one array, and each refers to a range of it.
+     */
+    public final int[] triangles;
+    public final int firstTriangle, triangleCount;
 
-    public BVHNode(List<? extends RaytraceModel> objects, int start, int end) {
-        // Add self to the static BVH nodes list.
-        BVH_NODES.add(this);
+    /**
+     * The index of the first primitive of the leaf in the BVH primitive SSBO. It's set by
+     * {@link #flatten(BVHNode, List, int)}.
+     */
+    private int firstPrimitive;
+    /**
+     * The node that comes after the subtree of this node in depth-first order, or null if the subtree ends the tree.
+     * It's set by {@link #flatten(BVHNode, List, int)}.
+     */
+    private BVHNode skip;
+
+    /**
+     * Construct an inner node from its children.
+     */
+    public BVHNode(BVHNode left, BVHNode right) {
+        this.left = left;
+        this.right = right;
+        primitives = null;
+        mesh = null;
+        triangles = null;
+        firstTriangle = triangleCount = 0;
+        bbox = new AABB(left.boundingBox(), right.boundingBox());
+    }
+
+    /**
+     * Construct a leaf that holds the models.
+     */
+    public BVHNode(RaytraceModel[] primitives) {
+        if (primitives.length == 0)
+            throw new IllegalArgumentException("A leaf needs at least 1 model.");
+
+        left = right = null;
+        this.primitives = primitives;
+        mesh = null;
+        triangles = null;
+        firstTriangle = triangleCount = 0;
+        bbox = new AABB();
+        for (RaytraceModel primitive : primitives)
+            bbox.set(bbox, primitive.boundingBox());
+    }
 
-        // The index in list.
-        indexInList = BVH_NODES.size() - 1;
+    /**
+     * Construct a leaf that holds the models, with a box that may be smaller than theirs. It's for the leaves of
+     * {@link net.bowen.draw.models.raytrace.bvh.SBVHBuilder}, which only hold the parts of the models in the box.
+     * A {@link #refit()} gives the leaf the box of the whole models again.
+     */
+    public BVHNode(RaytraceModel[] primitives, AABB bbox) {
+        if (primitives.length == 0)
+            throw new IllegalArgumentException("A leaf needs at least 1 model.");
+
+        left = right = null;
+        this.primitives = primitives;
+        mesh = null;
+        triangles = null;
+        firstTriangle = triangleCount = 0;
+        this.bbox = bbox;
+    }
+
+    /**
+     * Construct a leaf that holds a range of the triangle indices of the mesh.
+     */
+    public BVHNode(TriangleMesh mesh, int[] triangles, int first, int count) {
+        this(mesh, triangles, first, count, new AABB());
+        refitTriangles(bbox);
+    }
+
+    /**
+     * Construct a leaf that holds a range of the triangle indices of the mesh, with a box that may be smaller than
+     * theirs, like {@link #BVHNode(RaytraceModel[], AABB)}.
+     */
+    public BVHNode(TriangleMesh mesh, int[] triangles, int first, int count, AABB bbox) {
+        if (count == 0)
+            throw new IllegalArgumentException("A leaf needs at least 1 triangle.");
+
+        left = right = null;
+        primitives = null;
+        this.mesh = mesh;
+        this.triangles = triangles;
+        firstTriangle = first;
+        triangleCount = count;
+        this.bbox = bbox;
+    }
 
+    /**
+     * Build the tree by splitting the models at the median along the longest axis. Leaves hold 1 or 2 models.
+     * <p>
+     * Note that the nodes are not added to the node list of the scene. Call {@link #flatten(BVHNode, List, int)} on
+     * the root when the tree is complete.
+     */
+    public BVHNode(List<? extends RaytraceModel> objects, int start, int end) {
         // Build the bounding box of the span of source objects.
         bbox = new AABB();
         for (int i = start; i < end; i++)
@@ -30,17 +129,214 @@ public class BVHNode extends RaytraceModel {
 
         int objectSpan = end - start;
 
-        if (objectSpan == 1) {
-            left = right = objects.get(start);
-        } else if (objectSpan == 2) {
-            left = objects.get(start);
-            right = objects.get(start + 1);
+        mesh = null;
+        triangles = null;
+        firstTriangle = triangleCount = 0;
+        if (objectSpan <= 2) {
+            left = right = null;
+            primitives = objects.subList(start, end).toArray(new RaytraceModel[0]);
         } else {
             objects.subList(start, end).sort(comparator);
 
             int mid = start + objectSpan / 2;
             left = new BVHNode(objects, start, mid);
             right = new BVHNode(objects, mid, end);
+            primitives = null;
+        }
+    }
+
+    /**
+     * Build the tree of the mesh like {@link #BVHNode(List, int, int)}, by splitting the triangles at the median along
+     * the longest axis.
+     *
+     * @return The root node.
+     */
+    public static BVHNode buildMedian(TriangleMesh mesh) {
+        int count = mesh.getTriangleCount();
+        if (count == 0)
+            throw new IllegalArgumentException("Cannot build a BVH without triangles.");
+
+        int[] triangles = new int[count];
+        for (int i = 0; i < count; i++)
+            triangles[i] = i;
+        return buildMedian(mesh, mesh.triangleBounds(), triangles, 0, count);
+    }
+
+    private static BVHNode buildMedian(TriangleMesh mesh, float[] bounds, int[] triangles, int start, int end) {
+        if (end - start <= 2)
+            return new BVHNode(mesh, triangles, start, end - start);
+
+        // The longest axis of the box of the triangles.
+        int count = bounds.length / 6;
+        int axis = 0;
+        float longest = -1;
+        for (int a = 0; a < 3; a++) {
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (int i = start; i < end; i++) {
+                min = Math.min(min, bounds[a * count + triangles[i]]);
+                max = Math.max(max, bounds[(3 + a) * count + triangles[i]]);
+            }
+            if (max - min > longest) {
+                longest = max - min;
+                axis = a;
+            }
+        }
+
+        // Only the median has to be in place, so the triangles are partitioned around it instead of sorted.
+        int mid = start + (end - start) / 2;
+        select(bounds, axis * count, triangles, start, end - 1, mid);
+        return new BVHNode(buildMedian(mesh, bounds, triangles, start, mid),
+                buildMedian(mesh, bounds, triangles, mid, end));
+    }
+
+    /**
+     * Partition the triangles in [first, last] by their minimums on an axis (quickselect), so the triangle at k has the
+     * k-th smallest minimum, the ones before it have no larger ones, and the ones after it have no smaller ones.
+     *
+     * @param minOffset the offset of the minimums of the axis in the SoA bounds.
+     */
+    private static void select(float[] bounds, int minOffset, int[] triangles, int first, int last, int k) {
+        while (first < last) {
+            float pivot = bounds[minOffset + triangles[(first + last) >>> 1]];
+            int i = first, j = last;
+            while (i <= j) {
+                while (bounds[minOffset + triangles[i]] < pivot) i++;
+                while (bounds[minOffset + triangles[j]] > pivot) j--;
+                if (i <= j) {
+                    int tmp = triangles[i];
+                    triangles[i++] = triangles[j];
+                    triangles[j--] = tmp;
+                }
+            }
+
+            if (k <= j)
+                last = j;
+            else if (k >= i)
+                first = i;
+            else
+                return;
+        }
+    }
+
+    /**
+     * @return How many primitives the leaf holds: its models or its triangles.
+     */
+    public int primitiveCount() {
+        return primitives != null ? primitives.length : triangleCount;
+    }
+
+    /**
+     * @return The index of the first primitive of the leaf in the primitive list.
+     */
+    public int getFirstPrimitive() {
+        return firstPrimitive;
+    }
+
+    /**
+     * @return The node that comes after the subtree of this node in depth-first order, where a traversal goes when it
+     * misses this node. It's null if the subtree ends the tree.
+     */
+    public BVHNode getSkip() {
+        return skip;
+    }
+
+    public boolean isLeaf() {
+        return left == null;
+    }
+
+    /**
+     * Recompute the bounding box from the children, or from the models if it's a leaf. The children must have been
+     * refitted first.
+     *
+     * @return If the bounding box has changed.
+     */
+    public boolean refit() {
+        AABB refitted = new AABB();
+        if (mesh != null) {
+            refitTriangles(refitted);
+        } else if (isLeaf()) {
+            for (RaytraceModel primitive : primitives)
+                refitted.set(refitted, primitive.boundingBox());
+        } else {
+            refitted.set(left.boundingBox(), right.boundingBox());
+        }
+
+        boolean changed = false;
+        for (int axis = 0; axis < 3; axis++) {
+            Interval old = bbox.axisInterval(axis), now = refitted.axisInterval(axis);
+            changed |= old.min != now.min || old.max != now.max;
+        }
+        if (changed)
+            bbox.set(refitted, refitted);
+        return changed;
+    }
+
+    /**
+     * Set the box to the box of the triangles of the leaf.
+     */
+    private void refitTriangles(AABB box) {
+        float[] bounds = new float[6];
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = firstTriangle; i < firstTriangle + triangleCount; i++) {
+            mesh.putTriangleBounds(triangles[i], bounds, 0, 1);
+            minX = Math.min(minX, bounds[0]);
+            minY = Math.min(minY, bounds[1]);
+            minZ = Math.min(minZ, bounds[2]);
+            maxX = Math.max(maxX, bounds[3]);
+            maxY = Math.max(maxY, bounds[4]);
+            maxZ = Math.max(maxZ, bounds[5]);
+        }
+        box.x.set(minX, maxX);
+        box.y.set(minY, maxY);
+        box.z.set(minZ, maxZ);
+    }
+
+    /**
+     * Add the nodes of the tree to the list in depth-first order (node, left subtree, right subtree), and set their
+     * indices in the list, so the root is always at the first index. The leaves are given the ranges of the primitive
+     * SSBO after the first primitive in the same order. See {@link #putPrimitivesToBuffer(ByteBuffer)}.
+     * <p>
+     * The skip links are set at the same time. The left child of an inner node is always the next node in the list.
+     *
+     * @return The end of the ranges, where the primitives of the next tree start.
+     */
+    public static int flatten(BVHNode root, List<BVHNode> nodes, int firstPrimitive) {
+        Deque<BVHNode> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            BVHNode node = stack.pop();
+            nodes.add(node);
+            node.indexInList = nodes.size() - 1;
+            // The top of the stack is the next node after the subtree.
+            node.skip = stack.peek();
+
+            if (node.isLeaf()) {
+                node.firstPrimitive = firstPrimitive;
+                firstPrimitive += node.primitiveCount();
+            } else {
+                stack.push(node.right);
+                stack.push(node.left);
+            }
+        }
+        return firstPrimitive;
+    }
+
+    /**
+     * Put the packed references of the primitives of the leaf at its range of the primitive SSBO. The buffer is
+     * written at absolute indices, so the leaves can be put concurrently.
+     */
+    void putPrimitivesToBuffer(ByteBuffer buffer) {
+        int index = firstPrimitive * Integer.BYTES;
+        if (mesh != null) {
+            for (int i = firstTriangle; i < firstTriangle + triangleCount; i++, index += Integer.BYTES)
+                buffer.putInt(index, TRIANGLE_ID << REFERENCE_INDEX_BITS | mesh.triangleOffset + triangles[i]);
+        } else {
+            for (RaytraceModel primitive : primitives) {
+                buffer.putInt(index, primitive.packedReference());
+                index += Integer.BYTES;
+            }
         }
     }
 
@@ -49,10 +345,23 @@ public class BVHNode extends RaytraceModel {
         buffer.putFloat(bbox.y.min).putFloat(bbox.y.max);
         buffer.putFloat(bbox.z.min).putFloat(bbox.z.max);
 
+        if (isLeaf()) {
+            // The first primitive index with the leaf id, and the primitive count.
+            buffer.putInt(BVH_LEAF_ID << REFERENCE_INDEX_BITS | firstPrimitive);
+            buffer.putInt(primitiveCount());
+        } else {
+            buffer.putInt(left.packedReference());
+            buffer.putInt(right.packedReference());
+        }
+    }
 
-        // Put the index in list in upper 16 bits; model id in lower 16 bits.
-        buffer.putInt((left.indexInList << 16) | (left.getModelId() & 0xFFFF));
-        buffer.putInt((right.indexInList << 16) | (right.getModelId() & 0xFFFF));
+    /**
+     * Put the node with its skip link, for {@link net.bowen.draw.models.raytrace.bvh.BVHLayout#THREADED}. The skip
+     * link is the index of the node, or -1 at the end of the tree.
+     */
+    protected void putThreadedToBuffer(ByteBuffer buffer) {
+        putToBuffer(buffer);
+        buffer.putInt(skip != null ? skip.indexInList : -1);
     }
 
     @Override
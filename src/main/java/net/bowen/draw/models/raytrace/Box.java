@@ -1,16 +1,32 @@
 package net.bowen.draw.models.raytrace;
 
 import net.bowen.draw.materials.Material;
+import net.bowen.system.DataUtils;
 import org.joml.Matrix3f;
+import org.joml.Quaternionf;
 import org.joml.Vector3f;
 
 import java.nio.ByteBuffer;
 
+/**
+ * An oriented box. The shader stores it as its corners in the object space, a rotation and a translation, and
+ * intersects the slabs of the corners with the ray in the object space.
+ * <p>
+ * The sides are kept as quads on the CPU to compute the bounding box and to clip the box in
+ * {@link net.bowen.draw.models.raytrace.bvh.SBVHBuilder}, but they're not uploaded.
+ */
 public class Box extends RaytraceModel {
-    private final Vector3f translation;
-    private final Vector3f rotation;
+    private final Vector3f min, max;
     private final Material material;
     private final Quad[] sides = new Quad[6];
+    private Vector3f translation;
+    private Vector3f rotation;
+    /**
+     * The rotation from the object space to the world space, and the translation after it. They're the identity if
+     * the box has no transformation.
+     */
+    private final Quaternionf orientation = new Quaternionf();
+    private final Vector3f offset = new Vector3f();
 
     /**
      * Construct the 3D box (six sides) that contains the two opposite vertices a & b, and apply the transformation
@@ -18,12 +34,37 @@ public class Box extends RaytraceModel {
      */
     public Box(Vector3f a, Vector3f b, Vector3f translation, Vector3f rotation, Material material) {
         this.material = material;
+
+        // Instantiate 4d vectors in convenience to apply transformation.
+        min = new Vector3f(Math.min(a.x, b.x), Math.min(a.y, b.y), Math.min(a.z, b.z));
+        max = new Vector3f(Math.max(a.x, b.x), Math.max(a.y, b.y), Math.max(a.z, b.z));
+
+        bbox = new AABB();
+        setTransform(translation, rotation);
+    }
+
+    /**
+     * Construct the 3D box (six sides) that contains the two opposite vertices a & b, and apply no transformation.
+     */
+    public Box(Vector3f a, Vector3f b, Material material) {
+        this(a, b, null, null, material);
+    }
+
+    /**
+     * Rebuild the sides with the new transformation. The bounding box is updated in place, then
+     * {@link SceneBuilder#refitBVH()} should be called to update the BVH and the SSBOs.
+     */
+    public void setTransform(Vector3f translation, Vector3f rotation) {
         this.translation = translation;
         this.rotation = rotation;
 
-        // Instantiate 4d vectors in convenience to apply transformation.
-        Vector3f min = new Vector3f(Math.min(a.x, b.x), Math.min(a.y, b.y), Math.min(a.z, b.z));
-        Vector3f max = new Vector3f(Math.max(a.x, b.x), Math.max(a.y, b.y), Math.max(a.z, b.z));
+        if (rotation != null && translation != null) {
+            new Matrix3f().rotateX(rotation.x).rotateY(rotation.y).rotateZ(rotation.z).getNormalizedRotation(orientation);
+            offset.set(translation);
+        } else {
+            orientation.identity();
+            offset.set(0);
+        }
 
         Vector3f dx = new Vector3f(max.x - min.x, 0, 0);
         Vector3f dy = new Vector3f(0, max.y - min.y, 0);
@@ -37,25 +78,59 @@ public class Box extends RaytraceModel {
         sides[5] = (getSide(new Vector3f(min.x, min.y, min.z), dx, dz)); // bottom
 
         setBoundingBox();
-    }
-
-    /**
-     * Construct the 3D box (six sides) that contains the two opposite vertices a & b, and apply no transformation.
-     */
-    public Box(Vector3f a, Vector3f b, Material material) {
-        this(a, b, null, null, material);
+        markMoved();
     }
 
     private void setBoundingBox() {
-        bbox = new AABB();
         for (int i = 0; i < 6; i++) {
             bbox.set(sides[i++].bbox, sides[i].boundingBox());
         }
     }
 
+    public Quad[] getSides() {
+        return sides;
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
+
+    /**
+     * @return The min corner in the object space.
+     */
+    public Vector3f getMin() {
+        return min;
+    }
+
+    /**
+     * @return The max corner in the object space.
+     */
+    public Vector3f getMax() {
+        return max;
+    }
+
+    /**
+     * @return The rotation from the object space to the world space.
+     */
+    public Quaternionf getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return The translation from the object space to the world space, which is applied after the rotation.
+     */
+    public Vector3f getOffset() {
+        return offset;
+    }
+
     public void putToBuffer(ByteBuffer buffer) {
-        for (Quad side : sides)
-            side.putToBuffer(buffer);
+        DataUtils.putToBuffer(min, buffer);
+        buffer.putInt(material.indexInList);
+        DataUtils.putToBuffer(max, buffer);
+        buffer.putFloat(0); // padding
+        buffer.putFloat(orientation.x).putFloat(orientation.y).putFloat(orientation.z).putFloat(orientation.w);
+        DataUtils.putToBuffer(offset, buffer);
+        buffer.putFloat(0); // padding
     }
 
     private Quad getSide(Vector3f q, Vector3f u, Vector3f v) {
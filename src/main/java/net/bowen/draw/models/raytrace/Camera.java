@@ -84,6 +84,14 @@ public class Camera {
         // Init the UBO.
         ubo = new BufferObject(GL_UNIFORM_BUFFER);
         ubo.bind();
+        bind(program);
+    }
+
+    /**
+     * Bind the UBO to the compute shader's binding point and send the data to the program, so it renders with this
+     * camera again after another one has been bound.
+     */
+    public void bind(ShaderProgram program) {
         glBindBufferBase(GL_UNIFORM_BUFFER, 0, ubo.getId());
         putToShaderProgram(program);
     }
@@ -174,4 +182,36 @@ public class Camera {
     public void setBackground(float r, float g, float b) {
         background.set(r, g, b);
     }
+
+    public Vector3f getLookFrom() {
+        return lookFrom;
+    }
+
+    public Vector3f getUpLeftPosition() {
+        return upLeftPosition;
+    }
+
+    public Vector3f getPixelDeltaU() {
+        return pixelDeltaU;
+    }
+
+    public Vector3f getPixelDeltaV() {
+        return pixelDeltaV;
+    }
+
+    public Vector3f getDefocusDiskU() {
+        return defocusDiskU;
+    }
+
+    public Vector3f getDefocusDiskV() {
+        return defocusDiskV;
+    }
+
+    public float getDefocusAngle() {
+        return defocusAngle;
+    }
+
+    public Color getBackground() {
+        return background;
+    }
 }
@@ -15,7 +15,6 @@ public class ConstantMedium extends RaytraceModel {
         this.density = density;
         this.phaseFunction = super.material;
 
-        addModel(boundary);
         bbox = boundary.boundingBox();
     }
 
@@ -23,6 +22,14 @@ public class ConstantMedium extends RaytraceModel {
         return boundary;
     }
 
+    public float getDensity() {
+        return density;
+    }
+
+    public Material getPhaseFunction() {
+        return phaseFunction;
+    }
+
     public void putToBuffer(ByteBuffer buffer) {
         // model index in its list
         buffer.putInt(boundary.indexInList);
@@ -30,10 +37,8 @@ public class ConstantMedium extends RaytraceModel {
         buffer.putInt(boundary.getModelId());
         // negative inverted density
         buffer.putFloat(-1f/density);
-        // phase function material
-        buffer.putInt(phaseFunction.getMaterialPackedValue());
-        // texture id
-        buffer.putInt(phaseFunction.getTexturePackedValue());
+        // phase function material index
+        buffer.putInt(phaseFunction.indexInList);
     }
 
     @Override
@@ -0,0 +1,78 @@
+package net.bowen.draw.models.raytrace;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A copy of a {@link BLAS} placed in the scene with a transformation. Rays are transformed into the object space of the
+ * BLAS and traverse its BVH, so the models are stored only once however many instances there are.
+ * <p>
+ * The direction of a transformed ray is not normalized, so the distance of a hit is the same in both spaces.
+ */
+public class Instance extends RaytraceModel {
+    private final BLAS blas;
+    private final Matrix4f objectToWorld = new Matrix4f();
+    private final Matrix4f worldToObject = new Matrix4f();
+
+    /**
+     * @param objectToWorld the transformation from the object space of the BLAS to the world space. It should be
+     *                      invertible.
+     */
+    public Instance(BLAS blas, Matrix4f objectToWorld) {
+        this.blas = blas;
+        bbox = new AABB();
+        setTransform(objectToWorld);
+    }
+
+    /**
+     * Move the instance. The bounding box is updated in place, then {@link SceneBuilder#refitBVH()} should be called to
+     * update the BVH and the SSBOs.
+     */
+    public void setTransform(Matrix4f objectToWorld) {
+        this.objectToWorld.set(objectToWorld);
+        this.worldToObject.set(objectToWorld).invert();
+        updateBoundingBox();
+        markMoved();
+    }
+
+    /**
+     * Transform the bounding box of the BLAS to the world space.
+     */
+    void updateBoundingBox() {
+        AABB box = blas.boundingBox();
+        Vector3f min = new Vector3f(), max = new Vector3f();
+        objectToWorld.transformAab(box.x.min, box.y.min, box.z.min, box.x.max, box.y.max, box.z.max, min, max);
+        bbox.set(new AABB(min, max), new AABB(min, max));
+    }
+
+    public BLAS getBLAS() {
+        return blas;
+    }
+
+    public Matrix4f getObjectToWorld() {
+        return objectToWorld;
+    }
+
+    public Matrix4f getWorldToObject() {
+        return worldToObject;
+    }
+
+    public void putToBuffer(ByteBuffer buffer) {
+        // The world to object matrix, column by column. Its transpose transforms the normals back to the world space.
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++)
+                buffer.putFloat(worldToObject.get(column, row));
+        }
+        // The BLAS root in the BVH node SSBO.
+        buffer.putInt(blas.rootIndex);
+        // 3 int paddings.
+        buffer.putInt(0).putInt(0).putInt(0);
+    }
+
+    @Override
+    protected int getModelId() {
+        return INSTANCE_ID;
+    }
+}
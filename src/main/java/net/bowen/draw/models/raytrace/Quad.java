@@ -44,12 +44,10 @@ public class Quad extends RaytraceModel {
         DataUtils.putToBuffer(normal, buffer);
         buffer.putFloat(d);
         DataUtils.putToBuffer(q, buffer);
-        buffer.putInt(material.getMaterialPackedValue());
+        buffer.putInt(material.indexInList);
         DataUtils.putToBuffer(u, buffer);
-        buffer.putInt(material.getTexturePackedValue());
-        DataUtils.putToBuffer(v, buffer);
         buffer.putFloat(area);
-        DataUtils.putToBuffer(material.emitted(), buffer);
+        DataUtils.putToBuffer(v, buffer);
         buffer.putFloat(0); // padding
     }
 
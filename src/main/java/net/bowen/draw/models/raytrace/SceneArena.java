@@ -0,0 +1,189 @@
+package net.bowen.draw.models.raytrace;
+
+import net.bowen.system.BufferObject;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * One buffer object that holds every SSBO of the scene as a section. The sections are laid out one after another at
+ * offsets aligned to {@code GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT}, so they're packed into a single off-heap
+ * allocation, uploaded with a single call, and bound to their binding points as ranges of the buffer. The offset table
+ * is kept, so a range of a section can be updated in place.
+ * <p>
+ * The sections are packed into a staging buffer that's leased from a pool shared by all arenas, and given back once
+ * it's uploaded. A scene has its own buffer while it waits for the upload, so scenes can be packed at the same time,
+ * and loading another scene or updating a range reuses a native allocation that's been given back.
+ * <p>
+ * Only the uploads need the GL context. The layout and the packing can be done on any thread before the first upload.
+ */
+final class SceneArena {
+    /**
+     * The alignment of the section offsets. It's the largest {@code GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT} the GL
+     * spec allows, so the arena can be laid out before the context is created. A smaller power of two divides it.
+     */
+    private static final long ALIGNMENT = 256;
+
+    /**
+     * The GL buffer. It's created by the first upload.
+     */
+    private BufferObject buffer;
+    /**
+     * The binding point of each section in the shader.
+     */
+    private final int[] bindings;
+    private final long[] offsets, sizes;
+    private long totalBytes;
+    /**
+     * The staging buffers that have been given back. Only these are ever freed, never a leased one.
+     */
+    private static final List<ByteBuffer> freeStagingBuffers = new ArrayList<>();
+
+    SceneArena(int[] bindings) {
+        this.bindings = bindings;
+        offsets = new long[bindings.length];
+        sizes = new long[bindings.length];
+    }
+
+    /**
+     * Lay the sections out by their sizes in bytes. An empty range can't be bound, so each section takes at least one
+     * alignment unit.
+     *
+     * @throws IllegalStateException if the arena would be too large to be packed in one buffer.
+     */
+    void layout(long[] sectionBytes) {
+        long offset = 0;
+        for (int i = 0; i < bindings.length; i++) {
+            offsets[i] = offset;
+            sizes[i] = sectionBytes[i];
+            offset += reservedBytes(i);
+        }
+        if (offset > Integer.MAX_VALUE)
+            throw new IllegalStateException("The scene buffers take " + offset + " bytes, but the limit is " +
+                    Integer.MAX_VALUE + ".");
+        totalBytes = offset;
+    }
+
+    long getOffset(int section) {
+        return offsets[section];
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Lease a staging buffer. It's the caller's until it's given back by {@link #returnStaging(ByteBuffer)}. The
+     * largest free buffer is reused, and it's only replaced if it's too small. It can be called on any thread.
+     *
+     * @return A staging buffer from 0 to the size in bytes.
+     */
+    static ByteBuffer leaseStaging(long bytes) {
+        ByteBuffer buffer = null;
+        synchronized (freeStagingBuffers) {
+            for (ByteBuffer freeBuffer : freeStagingBuffers) {
+                if (buffer == null || freeBuffer.capacity() > buffer.capacity())
+                    buffer = freeBuffer;
+            }
+            freeStagingBuffers.remove(buffer);
+        }
+
+        if (buffer == null || buffer.capacity() < bytes) {
+            if (buffer != null) MemoryUtil.memFree(buffer);
+            buffer = MemoryUtil.memAlloc((int) bytes);
+        }
+        return buffer.clear().limit((int) bytes);
+    }
+
+    /**
+     * Give the leased staging buffer back to be reused. It must not be used by the caller after that.
+     */
+    static void returnStaging(ByteBuffer buffer) {
+        synchronized (freeStagingBuffers) {
+            freeStagingBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * @return The section in the staging buffer, from 0 to its size, in the native byte order. It shares the data
+     * with the staging buffer.
+     */
+    ByteBuffer slice(ByteBuffer staging, int section) {
+        return staging.slice((int) offsets[section], (int) sizes[section]).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Upload the staging buffer to the start of the arena. If the staging buffer ends before the arena does, the rest
+     * is allocated but left to {@link #uploadSubData}.
+     */
+    void upload(ByteBuffer staging) {
+        bindBuffer();
+        if (staging.remaining() == totalBytes) {
+            buffer.uploadData(staging, GL_STATIC_DRAW);
+        } else {
+            buffer.allocate(totalBytes, GL_STATIC_DRAW);
+            buffer.uploadSubData(0, staging);
+        }
+    }
+
+    /**
+     * Allocate the arena and upload each section from its own buffer, like the mapped sections of a scene cache file,
+     * so they aren't copied to the staging buffer first.
+     */
+    void upload(ByteBuffer[] sections) {
+        bindBuffer();
+        buffer.allocate(totalBytes, GL_STATIC_DRAW);
+        for (int i = 0; i < sections.length; i++) {
+            if (sections[i].hasRemaining())
+                buffer.uploadSubData(offsets[i], sections[i]);
+        }
+    }
+
+    /**
+     * Bind the GL buffer. It's created by the first call.
+     */
+    private void bindBuffer() {
+        if (buffer == null) {
+            long alignment = glGetInteger(GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT);
+            if (ALIGNMENT % alignment != 0)
+                throw new IllegalStateException("The SSBO offset alignment " + alignment + " doesn't divide " +
+                        ALIGNMENT + ".");
+            buffer = new BufferObject(GL_SHADER_STORAGE_BUFFER);
+        }
+        buffer.bind();
+    }
+
+    /**
+     * Bind each section to its binding point as a range of the arena.
+     */
+    void bind() {
+        for (int i = 0; i < bindings.length; i++)
+            glBindBufferRange(GL_SHADER_STORAGE_BUFFER, bindings[i], buffer.getId(), offsets[i], reservedBytes(i));
+    }
+
+    /**
+     * Replace a range of a section, where the offset is in bytes from the start of the section.
+     */
+    void uploadSubData(int section, long offset, ByteBuffer data) {
+        buffer.bind();
+        buffer.uploadSubData(offsets[section] + offset, data);
+    }
+
+    /**
+     * Replace a range of a section, where the offset is in bytes from the start of the section.
+     */
+    void uploadSubData(int section, long offset, FloatBuffer data) {
+        buffer.bind();
+        buffer.uploadSubData(offsets[section] + offset, data);
+    }
+
+    private long reservedBytes(int section) {
+        return (Math.max(sizes[section], 1) + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,1161 @@
+package net.bowen.draw.models.raytrace;
+
+import net.bowen.draw.materials.Material;
+import net.bowen.draw.models.raytrace.bvh.BVHBuildMethod;
+import net.bowen.draw.models.raytrace.bvh.BVHLayout;
+import net.bowen.draw.models.raytrace.bvh.LBVHBuilder;
+import net.bowen.draw.models.raytrace.bvh.SAHBuilder;
+import net.bowen.draw.models.raytrace.bvh.SBVHBuilder;
+import net.bowen.draw.models.raytrace.bvh.WideBVHNode;
+import net.bowen.draw.textures.CheckerTexture;
+import net.bowen.draw.textures.SolidTexture;
+import net.bowen.draw.textures.Texture;
+import net.bowen.system.RenderBackend;
+import net.bowen.system.ShaderProgram;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Everything a scene is made of: its models, materials and textures, its BVH and the buffers they're uploaded to. Each
+ * builder owns its own, so several scenes can be built at once, and a built scene is swapped in by binding it. See
+ * {@link #bind(ShaderProgram)}.
+ * <p>
+ * A model, a material, a mesh or a texture belongs to the first builder it's added to, since it keeps its index in the
+ * buffers of that scene, and adding it to another builder throws an {@link IllegalStateException}. Each builder has its
+ * own {@link SceneSettings}, which are fixed when it's created.
+ */
+public final class SceneBuilder {
+    /**
+     * The size of the texture array in the compute shader.
+     */
+    public static final int MAX_TEXTURES = 8;
+
+    /**
+     * The sections of the arena in the order they're laid out, which is also the order of the sections of a scene
+     * cache file. The vertices are the last, so they can be uploaded after the rest. See {@link #uploadMeshVertices()}.
+     */
+    private static final int SPHERE_SECTION = 0, QUAD_SECTION = 1, BOX_SECTION = 2, CONSTANT_MEDIUM_SECTION = 3,
+            LIGHT_SECTION = 4, INSTANCE_SECTION = 5, BVH_NODE_SECTION = 6, BVH_PRIMITIVE_SECTION = 7,
+            MATERIAL_SECTION = 8, TRIANGLE_SECTION = 9, VERTEX_SECTION = 10;
+    /**
+     * The binding point of each section in the shader.
+     */
+    private static final int[] SECTION_BINDINGS = {0, 2, 4, 3, 5, 7, 1, 6, 8, 10, 9};
+    private static final int SECTION_COUNT = SECTION_BINDINGS.length;
+    /**
+     * How many elements of a section a packing task packs. It's large enough that a task outweighs its scheduling.
+     */
+    private static final int PACK_CHUNK_SIZE = 1 << 13;
+    /**
+     * The most unchanged elements between two changed runs that are uploaded together by a refit. A
+     * {@code glBufferSubData} call costs more than a few elements it didn't need to upload.
+     */
+    private static final int REFIT_UPLOAD_GAP = 8;
+    /**
+     * The shader macros of the material types, by the type. See {@link #getShaderDefines()}.
+     */
+    private static final String[] MATERIAL_DEFINES = {"HAS_LAMBERTIAN", "HAS_METAL", "HAS_DIELECTRIC",
+            "HAS_DIFFUSE_LIGHT", "HAS_ISOTROPIC"};
+    /**
+     * The shader macros of the texture types, by the type. {@link Texture#DEFAULT} has no branch, so it has none.
+     */
+    private static final String[] TEXTURE_DEFINES = {null, "HAS_IMAGE_TEXTURE", "HAS_CHECKER_TEXTURE",
+            "HAS_PERLIN_TEXTURE", "HAS_SOLID_TEXTURE"};
+
+    private final SceneSettings settings;
+    /**
+     * The node layout of the settings, which most of the packing depends on.
+     */
+    private final BVHLayout bvhLayout;
+
+    private final List<BVHNode> bvhNodes = new ArrayList<>();
+    /**
+     * How many primitive references the BVH leaves have. Each leaf refers to a contiguous range of the primitive SSBO.
+     */
+    private int bvhPrimitiveCount;
+    /**
+     * The nodes of the collapsed BVH. It's empty unless a wide {@link BVHLayout} is used.
+     */
+    private final List<WideBVHNode> wideBVHNodes = new ArrayList<>();
+
+    private final List<RaytraceModel> allModels = new ArrayList<>();
+    private final List<Sphere> spheres = new ArrayList<>();
+    private final List<Quad> quads = new ArrayList<>();
+    private final List<ConstantMedium> constantMediums = new ArrayList<>();
+    private final List<Box> boxes = new ArrayList<>();
+    private final List<Instance> instances = new ArrayList<>();
+    /**
+     * The meshes of the instances. Their vertices and triangles are uploaded one mesh after another.
+     */
+    private final List<TriangleMesh> meshes = new ArrayList<>();
+    private int vertexCount, triangleCount;
+    /**
+     * The BLASes of the instances. Their BVHs are built with the top-level BVH.
+     */
+    private final List<BLAS> blases = new ArrayList<>();
+    private final Set<BLAS> addedBLASes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<RaytraceModel> lights = new ArrayList<>();
+    /**
+     * The materials of all models. The models refer to them by their index.
+     */
+    private final List<Material> materials = new ArrayList<>();
+
+    /**
+     * The textures of the materials. A texture's index in the list is its index in the texture array of the shader.
+     */
+    private final List<Texture> textures = new ArrayList<>();
+    private final SolidTexture solidTexture;
+    private CheckerTexture checkerTexture;
+
+    private float lastBuildCost;
+    /**
+     * How many nodes of {@link #bvhNodes} belong to the top-level BVH. The BLAS nodes follow them.
+     */
+    private int topLevelNodeCount;
+    /**
+     * If the SSBOs were loaded from the scene cache, in which case there's no BVH in memory to refit.
+     */
+    private boolean bvhFromCache;
+    /**
+     * If the scene uses the scene cache. See {@link #setCacheable(boolean)}.
+     */
+    private boolean cacheable = true;
+    /**
+     * The buffer all SSBOs of the scene are ranges of. It's created by the first build in the GL backend.
+     */
+    private SceneArena arena;
+    /**
+     * The packed arena that's waiting for {@link #upload()}. It's a staging buffer leased by this scene, which is given
+     * back once it's uploaded. It's null when there's nothing to upload.
+     */
+    private ByteBuffer pendingStaging;
+    /**
+     * If the vertices weren't packed in {@link #pendingStaging}, so they're uploaded from the meshes.
+     */
+    private boolean pendingMeshVertices;
+    /**
+     * The sections mapped from the scene cache file that are waiting for {@link #upload()}, instead of
+     * {@link #pendingStaging}. It's null when the scene wasn't loaded from the cache.
+     */
+    private ByteBuffer[] pendingCacheSections;
+    /**
+     * The texture unit of each texture, which the sampler array is set to. It's made by {@link #upload()}, so
+     * {@link #bind(ShaderProgram)} doesn't allocate on every dispatch.
+     */
+    private int[] textureUnits;
+    private boolean uploaded;
+
+    public SceneBuilder() {
+        this(SceneSettings.DEFAULT);
+    }
+
+    public SceneBuilder(SceneSettings settings) {
+        this.settings = settings;
+        bvhLayout = settings.layout();
+
+        // The solid texture is always the first, so every scene has white at the same packed value. See
+        // SolidTexture#WHITE.
+        solidTexture = new SolidTexture();
+        addTexture(solidTexture);
+    }
+
+    public SceneSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return The macros the compute shader should be compiled with for this scene: the ones to read the buffers in
+     * the current layouts, and the features of the scene, so the branches of the model types, the material types and
+     * the texture types it doesn't have are left out of the kernel. They're sorted by name, so the same features make
+     * the same source. It can be called once the models have been added, before the scene is prepared.
+     */
+    public Map<String, String> getShaderDefines() {
+        Map<String, String> defines = new TreeMap<>();
+        defines.put("BVH_WIDTH", String.valueOf(bvhLayout.width));
+        defines.put("BVH_QUANTIZED", bvhLayout.quantized ? "1" : "0");
+        defines.put("BVH_STACKLESS", bvhLayout.stackless ? "1" : "0");
+
+        putFeature(defines, "HAS_SPHERES", !spheres.isEmpty());
+        putFeature(defines, "HAS_QUADS", !quads.isEmpty());
+        putFeature(defines, "HAS_CONSTANT_MEDIUMS", !constantMediums.isEmpty());
+        putFeature(defines, "HAS_BOXES", !boxes.isEmpty());
+        putFeature(defines, "HAS_INSTANCES", !instances.isEmpty());
+        putFeature(defines, "HAS_TRIANGLES", triangleCount > 0);
+
+        boolean[] materialTypes = new boolean[MATERIAL_DEFINES.length];
+        boolean[] textureTypes = new boolean[TEXTURE_DEFINES.length];
+        for (Material material : materials) {
+            materialTypes[material.getMaterialId()] = true;
+            // The texture type is in the upper 4 bits. See Texture#getValue().
+            int textureType = material.getTexturePackedValue() >>> 28;
+            if (textureType < textureTypes.length) textureTypes[textureType] = true;
+        }
+        for (int i = 0; i < MATERIAL_DEFINES.length; i++)
+            putFeature(defines, MATERIAL_DEFINES[i], materialTypes[i]);
+        for (int i = 0; i < TEXTURE_DEFINES.length; i++) {
+            if (TEXTURE_DEFINES[i] != null) putFeature(defines, TEXTURE_DEFINES[i], textureTypes[i]);
+        }
+
+        defines.put("LIGHT_COUNT", String.valueOf(lights.size()));
+        return defines;
+    }
+
+    private static void putFeature(Map<String, String> defines, String name, boolean present) {
+        defines.put(name, present ? "1" : "0");
+    }
+
+    /**
+     * Set if the scene is loaded from and saved to the scene cache, which it is by default. A scene with random models
+     * hashes differently every launch, so its file would never be loaded again, and it should be kept out.
+     */
+    public void setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+    }
+
+    public void addLight(RaytraceModel light) {
+        lights.add(light);
+    }
+
+    public List<RaytraceModel> getLights() {
+        return Collections.unmodifiableList(lights);
+    }
+
+    /**
+     * Add the model to the scene and its top-level BVH.
+     *
+     * @throws IllegalStateException if the model has already been added to this scene or to another one.
+     */
+    public void addModel(RaytraceModel model) {
+        addGeometry(model);
+        if (model.topLevel)
+            throw new IllegalStateException("The model has already been added to the scene.");
+
+        model.topLevel = true;
+        allModels.add(model);
+    }
+
+    /**
+     * Add the model to the list of its type, so it's uploaded, but don't put it in the top-level BVH. It's how the
+     * models of a {@link BLAS} are added, when the first instance of it is. A model that's already been added, like
+     * the boundary of a constant medium that's also a model, is left as it is.
+     */
+    private void addGeometry(RaytraceModel model) {
+        if (model == null)
+            throw new RuntimeException("Model cannot be null.");
+        if (!claim(model)) return;
+
+        if (model instanceof Sphere sphere) {
+            spheres.add(sphere);
+            model.indexInList = spheres.size() - 1;
+            addMaterial(sphere.getMaterial());
+        } else if (model instanceof Quad quad) {
+            quads.add(quad);
+            model.indexInList = quads.size() - 1;
+            addMaterial(quad.material);
+        } else if (model instanceof Box box) {
+            boxes.add(box);
+            model.indexInList = boxes.size() - 1;
+            addMaterial(box.getMaterial());
+        } else if (model instanceof ConstantMedium constantMedium) {
+            constantMediums.add(constantMedium);
+            model.indexInList = constantMediums.size() - 1;
+            addMaterial(constantMedium.getPhaseFunction());
+            // The boundary is uploaded, but it's only in the top-level BVH if it's been added as a model itself.
+            addGeometry(constantMedium.getBoundary());
+        } else if (model instanceof Instance instance) {
+            instances.add(instance);
+            model.indexInList = instances.size() - 1;
+            BLAS blas = instance.getBLAS();
+            claim(blas);
+            if (addedBLASes.add(blas)) {
+                blases.add(blas);
+                if (blas instanceof TriangleMesh mesh)
+                    addMesh(mesh);
+                else
+                    blas.getModels().forEach(this::addGeometry);
+            }
+        } else {
+            throw new RuntimeException("Unknown model type.");
+        }
+    }
+
+    /**
+     * Make this scene the owner of the model. The indices of a model are only valid in one scene, so it can't be
+     * shared by two, even if they're prepared one after another.
+     *
+     * @return If the model is new to this scene.
+     * @throws IllegalStateException if the model has been added to another scene.
+     */
+    private boolean claim(RaytraceModel model) {
+        synchronized (model) {
+            if (model.owner == this) return false;
+            if (model.owner != null)
+                throw new IllegalStateException("The model has been added to another scene.");
+            model.owner = this;
+            return true;
+        }
+    }
+
+    /**
+     * Make this scene the owner of the BLAS, like {@link #claim(RaytraceModel)}.
+     *
+     * @throws IllegalStateException if the BLAS has been added to another scene.
+     */
+    private void claim(BLAS blas) {
+        synchronized (blas) {
+            if (blas.owner != null && blas.owner != this)
+                throw new IllegalStateException("The BLAS has been added to another scene.");
+            blas.owner = this;
+        }
+    }
+
+    /**
+     * Add the material to the material list, unless it's been added by another model.
+     *
+     * @throws IllegalStateException if the material has been added to another scene.
+     */
+    private void addMaterial(Material material) {
+        synchronized (material) {
+            if (material.owner == this) return;
+            if (material.owner != null)
+                throw new IllegalStateException("The material has been added to another scene.");
+            material.owner = this;
+        }
+
+        materials.add(material);
+        material.indexInList = materials.size() - 1;
+        if (material.getTexture() != null)
+            addTexture(material.getTexture());
+    }
+
+    /**
+     * Add the texture to the texture list, unless it's been added by another material.
+     *
+     * @throws IllegalStateException if the texture has been added to another scene, or if the scene would have more
+     *                               textures than the shader can sample.
+     */
+    private void addTexture(Texture texture) {
+        if (texture.owner == this) return;
+        if (textures.size() == MAX_TEXTURES)
+            throw new IllegalStateException("A scene can have at most " + MAX_TEXTURES + " textures.");
+        synchronized (texture) {
+            if (texture.owner != null)
+                throw new IllegalStateException("The texture has been added to another scene.");
+            texture.owner = this;
+        }
+
+        textures.add(texture);
+        texture.indexInList = textures.size() - 1;
+    }
+
+    /**
+     * @return The texture of the solid colors of the scene.
+     */
+    public SolidTexture getSolidTexture() {
+        return solidTexture;
+    }
+
+    /**
+     * @return The texture of the checkerboards of the scene. It's added to the scene the first time it's asked for.
+     */
+    public CheckerTexture getCheckerTexture() {
+        if (checkerTexture == null) {
+            checkerTexture = new CheckerTexture();
+            addTexture(checkerTexture);
+        }
+        return checkerTexture;
+    }
+
+    public List<Texture> getTextures() {
+        return Collections.unmodifiableList(textures);
+    }
+
+    /**
+     * @return The nodes of the binary BVH. The root is at index 0. It's empty if the scene was loaded from the cache.
+     */
+    public List<BVHNode> getBVHNodes() {
+        return Collections.unmodifiableList(bvhNodes);
+    }
+
+    /**
+     * @return The nodes of the collapsed BVH. It's empty unless a wide {@link BVHLayout} is used.
+     */
+    public List<WideBVHNode> getWideBVHNodes() {
+        return Collections.unmodifiableList(wideBVHNodes);
+    }
+
+    /**
+     * Add the mesh to the mesh list with its material. Its vertices and triangles are put after the ones of the meshes
+     * added before. The mesh has been claimed with its first instance.
+     */
+    private void addMesh(TriangleMesh mesh) {
+        meshes.add(mesh);
+        mesh.vertexOffset = vertexCount;
+        vertexCount += mesh.getVertexCount();
+        mesh.triangleOffset = triangleCount;
+        triangleCount += mesh.getTriangleCount();
+        addMaterial(mesh.getMaterial());
+    }
+
+    /**
+     * Build the BVH, and upload the models, the nodes and the textures in the GL backend. It should be called on the GL
+     * thread once all models have been added. It's {@link #prepare()} followed by {@link #upload()}.
+     */
+    public void build() {
+        prepare();
+        upload();
+    }
+
+    /**
+     * Do everything of a build that doesn't need the GL context: build the BVH, and pack the SSBOs and the texture data
+     * in the GL backend. It can be called on any thread once all models have been added, e.g. while the context and the
+     * shaders are being created. Each scene packs into its own staging buffer, so scenes can be prepared at the same
+     * time, e.g. the next one on a worker while this one renders.
+     * <p>
+     * If a scene cache directory is set, the packed SSBOs of the scene are loaded from its cache file instead, and
+     * saved to it when there's none, unless the scene isn't cacheable. See {@link SceneSettings#cacheDirectory()}.
+     */
+    public void prepare() {
+        long startTime = System.nanoTime();
+        packModels(settings.cacheDirectory() != null && cacheable);
+        solidTexture.putDataToTexture();
+        if (checkerTexture != null)
+            checkerTexture.putDataToTexture();
+
+        float prepareTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("Scene prepared in %.2f ms.%n", prepareTime);
+    }
+
+    /**
+     * Upload what {@link #prepare()} has packed, and the textures. It should be called on the GL thread. Nothing is
+     * uploaded in the CPU backend.
+     */
+    public void upload() {
+        if (!RenderBackend.usesGL()) return;
+
+        long startTime = System.nanoTime();
+        uploadModels();
+        textures.forEach(Texture::upload);
+        textureUnits = IntStream.range(0, textures.size()).toArray();
+        uploaded = true;
+
+        float uploadTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("Scene uploaded in %.2f ms.%n", uploadTime);
+    }
+
+    /**
+     * Bind the SSBOs and the textures of the scene to the compute program, so it renders this scene from the next
+     * dispatch on. The scene should have been built.
+     */
+    public void bind(ShaderProgram program) {
+        if (!uploaded)
+            throw new IllegalStateException("The scene has not been built. Call build() first.");
+
+        arena.bind();
+        // The textures are bound again each time, since other draws use the same units between dispatches.
+        for (int i = 0; i < textures.size(); i++) {
+            Texture.active(i);
+            textures.get(i).bind();
+        }
+        program.setUniform1iv("textures", textureUnits);
+    }
+
+    /**
+     * Build the BVH and pack the SSBOs into a staging buffer, or map them from the cache file, so they're uploaded by
+     * {@link #uploadModels()}.
+     */
+    private void packModels(boolean useCache) {
+        if (RenderBackend.usesGL() && arena == null)
+            arena = new SceneArena(SECTION_BINDINGS);
+        // Anything packed before that hasn't been uploaded is replaced.
+        releasePendingStaging();
+
+        // The cache only holds the SSBOs, so the CPU backend always builds the BVH.
+        byte[] sceneHash = null;
+        if (useCache && RenderBackend.usesGL()) {
+            sceneHash = hashScene();
+            if (loadFromCache(sceneHash)) return;
+        }
+
+        buildBVH();
+
+        // The CPU backend traverses the models and nodes directly, so there's nothing to upload.
+        if (!RenderBackend.usesGL()) return;
+
+        validateSceneSize();
+
+        // Mapped vertices are only packed if the scene is cached. Otherwise, the vertices are uploaded from the meshes
+        // after the rest of the arena, so the mapped ones aren't copied.
+        boolean packVertices = sceneHash != null || meshes.stream().noneMatch(TriangleMesh::canUploadPositions);
+        arena.layout(getSectionBytes());
+        ByteBuffer staging = SceneArena.leaseStaging(
+                packVertices ? arena.getTotalBytes() : arena.getOffset(VERTEX_SECTION));
+        long startTime = System.nanoTime();
+        packSections(staging, packVertices);
+        float packTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("Scene packed in %.2f ms: %.1f KB.%n", packTime, staging.remaining() / 1024f);
+
+        if (sceneHash != null) {
+            ByteBuffer[] sections = new ByteBuffer[SECTION_COUNT];
+            for (int i = 0; i < SECTION_COUNT; i++)
+                sections[i] = arena.slice(staging, i);
+            SceneCache.save(settings.cacheDirectory(), sceneHash, sections);
+        }
+        pendingStaging = staging;
+        pendingMeshVertices = !packVertices;
+        pendingCacheSections = null;
+    }
+
+    private void uploadModels() {
+        if (pendingCacheSections != null) {
+            arena.upload(pendingCacheSections);
+            pendingCacheSections = null;
+            return;
+        }
+        if (pendingStaging == null) return;
+
+        arena.upload(pendingStaging);
+        releasePendingStaging();
+        if (pendingMeshVertices)
+            uploadMeshVertices();
+    }
+
+    /**
+     * Give the staging buffer that's waiting for the upload back, if there's one.
+     */
+    private void releasePendingStaging() {
+        if (pendingStaging == null) return;
+        SceneArena.returnStaging(pendingStaging);
+        pendingStaging = null;
+    }
+
+    /**
+     * Lay the arena out for the sections of the scene cache file, which are uploaded from the mapping by
+     * {@link #uploadModels()}. The BVH isn't built, so {@link #bvhNodes} stays empty.
+     *
+     * @return If the file was found and loaded.
+     */
+    private boolean loadFromCache(byte[] sceneHash) {
+        long startTime = System.nanoTime();
+        ByteBuffer[] sections = SceneCache.load(settings.cacheDirectory(), sceneHash, SECTION_COUNT);
+        if (sections == null) return false;
+
+        bvhNodes.clear();
+        bvhPrimitiveCount = 0;
+        wideBVHNodes.clear();
+        validateSceneSize();
+
+        long[] sectionBytes = new long[SECTION_COUNT];
+        long bytes = 0;
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            sectionBytes[i] = sections[i].remaining();
+            bytes += sectionBytes[i];
+        }
+
+        arena.layout(sectionBytes);
+        pendingCacheSections = sections;
+        pendingMeshVertices = false;
+        bvhFromCache = true;
+        clearMoved();
+
+        float loadTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("Scene loaded from the cache in %.2f ms: %.1f KB.%n", loadTime, bytes / 1024f);
+        return true;
+    }
+
+    /**
+     * Hash everything the packed SSBOs are made from: the model data, which models are in the top-level BVH and in
+     * each BLAS, the instance transformations and the BVH settings. Each model is packed into a small buffer to be
+     * hashed, which is much cheaper than a build.
+     */
+    private byte[] hashScene() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not supported.", e);
+        }
+
+        // Large enough for any model, and for the BLAS index and the matrix of an instance.
+        ByteBuffer buffer = ByteBuffer.allocate(20 * Float.BYTES).order(ByteOrder.nativeOrder());
+        digestModels(digest, buffer, spheres, Sphere::putToBuffer);
+        digestModels(digest, buffer, quads, Quad::putToBuffer);
+        digestModels(digest, buffer, boxes, Box::putToBuffer);
+        digestModels(digest, buffer, constantMediums, ConstantMedium::putToBuffer);
+        digestModels(digest, buffer, materials, Material::putToBuffer);
+        digestModels(digest, buffer, meshes, (mesh, b) -> b.putInt(mesh.getVertexCount())
+                .putInt(mesh.getTriangleCount()).putInt(mesh.getMaterial().indexInList));
+        for (TriangleMesh mesh : meshes) {
+            digestVertices(digest, buffer, mesh);
+            digestTriangles(digest, buffer, mesh);
+        }
+        digestModels(digest, buffer, lights, (light, b) -> b.putInt(light.packedReference()));
+        digestModels(digest, buffer, allModels, (model, b) -> b.putInt(model.packedReference()));
+        // A mesh has no models, so the BLASes are told apart by the mesh they are, if any.
+        digestModels(digest, buffer, blases, (blas, b) -> b.putInt(meshes.indexOf(blas)));
+        for (BLAS blas : blases)
+            digestModels(digest, buffer, blas.getModels(), (model, b) -> b.putInt(model.packedReference()));
+        digestModels(digest, buffer, instances, (instance, b) -> {
+            b.putInt(blases.indexOf(instance.getBLAS()));
+            for (int column = 0; column < 4; column++) {
+                for (int row = 0; row < 4; row++)
+                    b.putFloat(instance.getWorldToObject().get(column, row));
+            }
+        });
+
+        String bvhSettings = settings.buildMethod() + " " + settings.maxLeafSize() + " " +
+                settings.spatialSplitBudget() + " " + bvhLayout + " " + ByteOrder.nativeOrder();
+        digest.update(bvhSettings.getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    private static <T> void digestModels(MessageDigest digest, ByteBuffer buffer, List<T> models,
+                                         BiConsumer<T, ByteBuffer> put) {
+        // The count keeps the lists apart.
+        buffer.clear();
+        buffer.putInt(models.size()).flip();
+        digest.update(buffer);
+        for (T model : models) {
+            buffer.clear();
+            put.accept(model, buffer);
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    private static void digestVertices(MessageDigest digest, ByteBuffer buffer, TriangleMesh mesh) {
+        // The buffer takes 6 vertices at a time.
+        int vertexCount = mesh.getVertexCount();
+        for (int first = 0; first < vertexCount; first += 6) {
+            buffer.clear();
+            for (int vertex = first; vertex < Math.min(first + 6, vertexCount); vertex++) {
+                for (int axis = 0; axis < 3; axis++)
+                    buffer.putFloat(mesh.getVertexComponent(vertex, axis));
+            }
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    private static void digestTriangles(MessageDigest digest, ByteBuffer buffer, TriangleMesh mesh) {
+        // The buffer takes 6 triangles at a time.
+        int triangleCount = mesh.getTriangleCount();
+        for (int first = 0; first < triangleCount; first += 6) {
+            buffer.clear();
+            for (int triangle = first; triangle < Math.min(first + 6, triangleCount); triangle++) {
+                for (int corner = 0; corner < 3; corner++)
+                    buffer.putInt(mesh.getVertexIndex(triangle, corner));
+            }
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * @return The size of each section in bytes. The BVH should have been built.
+     */
+    private long[] getSectionBytes() {
+        // The sizes in bytes are as described in the pack methods.
+        long[] bytes = new long[SECTION_COUNT];
+        bytes[SPHERE_SECTION] = (long) spheres.size() * 8 * Float.BYTES;
+        bytes[QUAD_SECTION] = (long) quads.size() * 16 * Float.BYTES;
+        bytes[BOX_SECTION] = (long) boxes.size() * 16 * Float.BYTES;
+        bytes[CONSTANT_MEDIUM_SECTION] = (long) constantMediums.size() * 4 * Float.BYTES;
+        bytes[LIGHT_SECTION] = (long) (1 + lights.size()) * Integer.BYTES;
+        bytes[INSTANCE_SECTION] = (long) instances.size() * 20 * Float.BYTES;
+        bytes[BVH_NODE_SECTION] = getBVHNodeBufferSize();
+        bytes[BVH_PRIMITIVE_SECTION] = (long) bvhPrimitiveCount * Integer.BYTES;
+        bytes[MATERIAL_SECTION] = (long) materials.size() * 8 * Float.BYTES;
+        bytes[TRIANGLE_SECTION] = (long) triangleCount * 4 * Integer.BYTES;
+        bytes[VERTEX_SECTION] = (long) vertexCount * 3 * Float.BYTES;
+        return bytes;
+    }
+
+    /**
+     * Pack the data of every section into its slice of the staging buffer. The BVH should have been built, since the
+     * instances refer to the BLAS roots.
+     * <p>
+     * The sections are packed in parallel, and so are the chunks of a large section. Every element has a fixed size, so
+     * each chunk writes to its own view of the slice at the offset of its first element, and no task shares a buffer
+     * position with another.
+     *
+     * @param packVertices if the vertices of the meshes are packed. If not, the staging buffer ends before them, and
+     *                     they're uploaded by {@link #uploadMeshVertices()}.
+     */
+    private void packSections(ByteBuffer staging, boolean packVertices) {
+        List<Runnable> tasks = new ArrayList<>(List.of(
+                () -> packSpheres(arena.slice(staging, SPHERE_SECTION)),
+                () -> packQuads(arena.slice(staging, QUAD_SECTION)),
+                () -> packBoxes(arena.slice(staging, BOX_SECTION)),
+                () -> packConstantMediums(arena.slice(staging, CONSTANT_MEDIUM_SECTION)),
+                () -> packLights(arena.slice(staging, LIGHT_SECTION)),
+                () -> packInstances(arena.slice(staging, INSTANCE_SECTION)),
+                () -> packBVHNodes(arena.slice(staging, BVH_NODE_SECTION)),
+                () -> packBVHPrimitives(arena.slice(staging, BVH_PRIMITIVE_SECTION)),
+                () -> packMaterials(arena.slice(staging, MATERIAL_SECTION)),
+                () -> packTriangles(arena.slice(staging, TRIANGLE_SECTION))));
+        if (packVertices)
+            tasks.add(() -> packVertices(arena.slice(staging, VERTEX_SECTION)));
+        tasks.parallelStream().forEach(Runnable::run);
+    }
+
+    /**
+     * Pack the elements in chunks of {@link #PACK_CHUNK_SIZE} in parallel. A list of a single chunk is packed by
+     * the calling thread.
+     */
+    private static <T> void packInParallel(ByteBuffer section, List<T> elements, int bytesPerElement,
+                                           BiConsumer<T, ByteBuffer> put) {
+        packInParallel(section, elements.size(), bytesPerElement, (view, first, last) -> {
+            for (int i = first; i < last; i++)
+                put.accept(elements.get(i), view);
+        });
+    }
+
+    private static void packInParallel(ByteBuffer section, int count, int bytesPerElement, RangePacker packer) {
+        int chunkCount = (count + PACK_CHUNK_SIZE - 1) / PACK_CHUNK_SIZE;
+        IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+            int first = chunk * PACK_CHUNK_SIZE;
+            int last = Math.min(first + PACK_CHUNK_SIZE, count);
+            ByteBuffer view = section.slice(first * bytesPerElement, (last - first) * bytesPerElement)
+                    .order(ByteOrder.nativeOrder());
+            packer.pack(view, first, last);
+        });
+    }
+
+    /**
+     * Packs the elements from the first to the last, exclusive, into a view that starts at the first one.
+     */
+    @FunctionalInterface
+    private interface RangePacker {
+        void pack(ByteBuffer view, int first, int last);
+    }
+
+    /**
+     * Upload the positions of the meshes one after another to the vertex section. The positions that are off-heap in
+     * the native byte order, like the mapped ones of PLY files, are uploaded as they are, without being copied to the
+     * staging buffer first.
+     */
+    private void uploadMeshVertices() {
+        for (TriangleMesh mesh : meshes) {
+            long offset = (long) mesh.vertexOffset * 3 * Float.BYTES;
+            if (mesh.canUploadPositions()) {
+                arena.uploadSubData(VERTEX_SECTION, offset, mesh.getPositions());
+            } else {
+                ByteBuffer buffer = SceneArena.leaseStaging((long) mesh.getVertexCount() * 3 * Float.BYTES);
+                mesh.putVerticesToBuffer(buffer);
+                arena.uploadSubData(VERTEX_SECTION, offset, buffer.flip());
+                SceneArena.returnStaging(buffer);
+            }
+        }
+    }
+
+    /**
+     * Update the BVH and the SSBOs after models have been moved. The tree is kept, and only the bounding boxes are
+     * recomputed from the leaves up, which is much faster than a build. Only the ranges of the models and the nodes
+     * that have changed are uploaded again.
+     * <p>
+     * A refitted tree gets worse the further the models move from where it was built. If the SAH cost has grown past
+     * the rebuild threshold, the BVH is rebuilt instead. See {@link SceneSettings#refitRebuildThreshold()}.
+     */
+    public void refitBVH() {
+        if (bvhFromCache) {
+            // There's no tree to refit, so build it from the current models. A moved scene has another hash anyway.
+            System.out.println("The BVH was loaded from the scene cache. Building it instead of refitting.");
+            packModels(false);
+            uploadModels();
+            return;
+        }
+        if (bvhNodes.isEmpty())
+            throw new IllegalStateException("The BVH has not been built. Call build() first.");
+
+        long startTime = System.nanoTime();
+
+        // The children always come after their parent in the list, so going backwards refits them first.
+        BitSet changedNodes = new BitSet(bvhNodes.size());
+        for (int i = bvhNodes.size() - 1; i >= 0; i--) {
+            // The BLAS nodes are after the top-level nodes, so they're all refitted when the top-level nodes are
+            // reached. The instances take the new boxes of their BLASes then.
+            if (i == topLevelNodeCount - 1) {
+                blases.forEach(BLAS::refitBoundingBox);
+                instances.forEach(Instance::updateBoundingBox);
+            }
+
+            if (bvhNodes.get(i).refit())
+                changedNodes.set(i);
+        }
+
+        // The wide nodes read the bounds from the binary nodes, so the order doesn't matter.
+        BitSet changedWideNodes = new BitSet(wideBVHNodes.size());
+        for (int i = wideBVHNodes.size() - 1; i >= 0; i--) {
+            if (wideBVHNodes.get(i).refit())
+                changedWideNodes.set(i);
+        }
+
+        // The top-level cost only sees the boxes of the instances, so the BLASes are checked against their own costs.
+        float threshold = settings.refitRebuildThreshold();
+        float cost = SAHBuilder.cost(bvhNodes.get(0));
+        boolean rebuild = cost > lastBuildCost * threshold;
+        if (rebuild)
+            System.out.printf("BVH SAH cost grew from %.3f to %.3f by refits. Rebuilding.%n", lastBuildCost, cost);
+        for (int i = 0; i < blases.size() && !rebuild; i++) {
+            BLAS blas = blases.get(i);
+            float blasCost = SAHBuilder.cost(blas.root);
+            rebuild = blasCost > blas.buildCost * threshold;
+            if (rebuild) {
+                System.out.printf("BLAS %d SAH cost grew from %.3f to %.3f by refits. Rebuilding.%n",
+                        i, blas.buildCost, blasCost);
+            }
+        }
+        if (rebuild) {
+            // A moving scene isn't worth caching.
+            packModels(false);
+            uploadModels();
+            return;
+        }
+
+        int uploads = 0;
+        if (RenderBackend.usesGL()) {
+            // The sizes in bytes are as described in the put methods.
+            uploads += uploadMoved(SPHERE_SECTION, spheres, 8 * Float.BYTES, Sphere::putToBuffer);
+            uploads += uploadMoved(BOX_SECTION, boxes, 16 * Float.BYTES, Box::putToBuffer);
+            uploads += uploadMoved(INSTANCE_SECTION, instances, 20 * Float.BYTES, Instance::putToBuffer);
+
+            if (bvhLayout.isWide()) {
+                uploads += uploadChanged(BVH_NODE_SECTION, wideBVHNodes, changedWideNodes,
+                        WideBVHNode.bytes(bvhLayout.width, bvhLayout.quantized), WideBVHNode::putToBuffer);
+            } else {
+                uploads += uploadChanged(BVH_NODE_SECTION, bvhNodes, changedNodes, getBVHNodeBytes(),
+                        bvhLayout.stackless ? BVHNode::putThreadedToBuffer : BVHNode::putToBuffer);
+            }
+        }
+        clearMoved();
+
+        float refitTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("BVH refitted in %.2f ms: %d of %d nodes changed, %d uploads, SAH cost %.3f.%n",
+                refitTime, changedNodes.cardinality(), bvhNodes.size(), uploads, cost);
+    }
+
+    private void clearMoved() {
+        for (RaytraceModel sphere : spheres) sphere.moved = false;
+        for (RaytraceModel box : boxes) box.moved = false;
+        for (RaytraceModel instance : instances) instance.moved = false;
+    }
+
+    /**
+     * Upload the moved models of the list. See {@link #uploadChanged}.
+     *
+     * @return How many uploads it took.
+     */
+    private <T extends RaytraceModel> int uploadMoved(int section, List<T> models, int bytesPerElement,
+                                                      BiConsumer<T, ByteBuffer> put) {
+        BitSet moved = new BitSet(models.size());
+        for (int i = 0; i < models.size(); i++) {
+            if (models.get(i).moved)
+                moved.set(i);
+        }
+        return uploadChanged(section, models, moved, bytesPerElement, put);
+    }
+
+    /**
+     * Upload the runs of changed elements, one {@code glBufferSubData} each. Runs at most {@link #REFIT_UPLOAD_GAP}
+     * elements apart are uploaded as one.
+     *
+     * @return How many uploads it took.
+     */
+    private <T> int uploadChanged(int section, List<T> elements, BitSet changed, int bytesPerElement,
+                                  BiConsumer<T, ByteBuffer> put) {
+        int uploads = 0;
+        int start = changed.nextSetBit(0);
+        while (start != -1) {
+            int end = changed.nextClearBit(start);
+            int next;
+            while ((next = changed.nextSetBit(end)) != -1 && next - end <= REFIT_UPLOAD_GAP)
+                end = changed.nextClearBit(next);
+
+            uploadRange(section, elements.subList(start, end), start, bytesPerElement, put);
+            uploads++;
+            start = next;
+        }
+        return uploads;
+    }
+
+    /**
+     * Upload the elements with {@code glBufferSubData}, where the first element is at the index in the section.
+     */
+    private <T> void uploadRange(int section, List<T> elements, int firstIndex, int bytesPerElement,
+                                 BiConsumer<T, ByteBuffer> put) {
+        if (elements.isEmpty()) return;
+
+        ByteBuffer buffer = SceneArena.leaseStaging((long) elements.size() * bytesPerElement);
+        for (T element : elements)
+            put.accept(element, buffer);
+        buffer.flip();
+
+        arena.uploadSubData(section, (long) firstIndex * bytesPerElement, buffer);
+        SceneArena.returnStaging(buffer);
+    }
+
+    /**
+     * Build the BVH of all models with the {@link BVHBuildMethod} of the settings. The nodes are put to
+     * {@link #bvhNodes}, and the root is at index 0.
+     */
+    private void buildBVH() {
+        long startTime = System.nanoTime();
+        bvhFromCache = false;
+        bvhNodes.clear();
+
+        BVHNode root = buildTree(allModels);
+        bvhPrimitiveCount = BVHNode.flatten(root, bvhNodes, 0);
+        lastBuildCost = SAHBuilder.cost(root);
+        topLevelNodeCount = bvhNodes.size();
+
+        // The BLAS nodes and primitives are put after the top-level ones.
+        for (BLAS blas : blases) {
+            blas.root = blas instanceof TriangleMesh mesh ? buildTree(mesh) : buildTree(blas.getModels());
+            blas.buildCost = SAHBuilder.cost(blas.root);
+            bvhPrimitiveCount = BVHNode.flatten(blas.root, bvhNodes, bvhPrimitiveCount);
+            blas.rootIndex = blas.root.indexInList;
+            blas.wideRoot = null;
+        }
+
+        // Everything is uploaded after a build.
+        clearMoved();
+
+        float buildTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("BVH built with %s in %.2f ms: %d nodes, %d primitive references, SAH cost %.3f.%n",
+                settings.buildMethod(), buildTime, bvhNodes.size(), bvhPrimitiveCount, lastBuildCost);
+        if (!blases.isEmpty()) {
+            System.out.printf("BVH has %d instances of %d BLASes, %d of the nodes are in the BLASes.%n",
+                    instances.size(), blases.size(), bvhNodes.size() - topLevelNodeCount);
+        }
+
+        wideBVHNodes.clear();
+        if (bvhLayout.isWide()) {
+            startTime = System.nanoTime();
+            WideBVHNode.flatten(WideBVHNode.collapse(root, bvhLayout.width), wideBVHNodes);
+            for (BLAS blas : blases) {
+                blas.wideRoot = WideBVHNode.collapse(blas.root, bvhLayout.width);
+                WideBVHNode.flatten(blas.wideRoot, wideBVHNodes);
+                blas.rootIndex = blas.wideRoot.indexInList;
+            }
+            if (bvhLayout.quantized)
+                wideBVHNodes.forEach(WideBVHNode::quantize);
+
+            float collapseTime = (System.nanoTime() - startTime) / 1e6f;
+            System.out.printf("BVH collapsed to %s in %.2f ms: %d nodes.%n",
+                    bvhLayout, collapseTime, wideBVHNodes.size());
+        }
+
+        System.out.printf("BVH node buffer: %.1f KB.%n", getBVHNodeBufferSize() / 1024f);
+    }
+
+    private BVHNode buildTree(List<? extends RaytraceModel> models) {
+        int maxLeafSize = settings.maxLeafSize();
+        return switch (settings.buildMethod()) {
+            case SAH -> new SAHBuilder(SAHBuilder.DEFAULT_BIN_COUNT, maxLeafSize).build(models);
+            case LBVH -> new LBVHBuilder(maxLeafSize).build(models);
+            case SBVH -> new SBVHBuilder(SAHBuilder.DEFAULT_BIN_COUNT, maxLeafSize, settings.spatialSplitBudget())
+                    .build(models);
+            // The median split sorts the list in place.
+            case MEDIAN -> new BVHNode(new ArrayList<>(models), 0, models.size());
+        };
+    }
+
+    /**
+     * Build the BVH of the triangles of the mesh. Its leaves hold ranges of triangle indices instead of models.
+     */
+    private BVHNode buildTree(TriangleMesh mesh) {
+        int maxLeafSize = settings.maxLeafSize();
+        return switch (settings.buildMethod()) {
+            case SAH -> new SAHBuilder(SAHBuilder.DEFAULT_BIN_COUNT, maxLeafSize).build(mesh);
+            case LBVH -> new LBVHBuilder(maxLeafSize).build(mesh);
+            case SBVH -> new SBVHBuilder(SAHBuilder.DEFAULT_BIN_COUNT, maxLeafSize, settings.spatialSplitBudget())
+                    .build(mesh);
+            case MEDIAN -> BVHNode.buildMedian(mesh);
+        };
+    }
+
+    /**
+     * @return The size of the BVH node SSBO in bytes in the current layout.
+     */
+    private long getBVHNodeBufferSize() {
+        int nodeCount = bvhLayout.isWide() ? wideBVHNodes.size() : bvhNodes.size();
+        return (long) nodeCount * getBVHNodeBytes();
+    }
+
+    /**
+     * @return The size of a node in the BVH node SSBO in bytes in the current layout.
+     */
+    private int getBVHNodeBytes() {
+        if (bvhLayout.isWide())
+            return WideBVHNode.bytes(bvhLayout.width, bvhLayout.quantized);
+        // A threaded node has an int for the skip link after the binary node.
+        return bvhLayout.stackless ? 9 * Float.BYTES : 8 * Float.BYTES;
+    }
+
+    /**
+     * Make sure every model can be referred to by a packed reference and every SSBO fits in a buffer.
+     *
+     * @throws IllegalStateException if the scene is too large for the GL backend.
+     */
+    private void validateSceneSize() {
+        // The sizes in bytes are as described in the put methods.
+        validateSize("spheres", spheres.size(), 8 * Float.BYTES);
+        validateSize("quads", quads.size(), 16 * Float.BYTES);
+        validateSize("boxes", boxes.size(), 16 * Float.BYTES);
+        validateSize("constant mediums", constantMediums.size(), 4 * Float.BYTES);
+        validateSize("materials", materials.size(), 8 * Float.BYTES);
+        validateSize("instances", instances.size(), 20 * Float.BYTES);
+        validateSize("BVH nodes", bvhLayout.isWide() ? wideBVHNodes.size() : bvhNodes.size(), getBVHNodeBytes());
+        validateSize("BVH primitives", bvhPrimitiveCount, Integer.BYTES);
+        validateSize("lights", lights.size() + 1, Integer.BYTES);
+        validateSize("vertices", vertexCount, 3 * Float.BYTES);
+        validateSize("triangles", triangleCount, 4 * Integer.BYTES);
+    }
+
+    private static void validateSize(String name, int count, int bytesPerElement) {
+        if (count > RaytraceModel.MAX_MODELS_PER_TYPE)
+            throw new IllegalStateException("Too many " + name + ": " + count + ". The limit is " +
+                    RaytraceModel.MAX_MODELS_PER_TYPE + ".");
+
+        long bytes = (long) count * bytesPerElement;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many " + name + ": " + count + ". Their buffer would take " +
+                    bytes + " bytes, but the limit is " + Integer.MAX_VALUE + ".");
+    }
+
+    private void packSpheres(ByteBuffer buffer) {
+        // - 3 floats for center (vec3)
+        // - 1 int for material index.
+        // - 3 floats for center vector (vec3)
+        // - 1 float for radius
+        packInParallel(buffer, spheres, 8 * Float.BYTES, Sphere::putToBuffer);
+    }
+
+    private void packQuads(ByteBuffer buffer) {
+        // - 3 floats for normal (vec3)
+        // - 1 float for d
+        // - 3 floats for q (vec3)
+        // - 1 int for material index
+        // - 3 floats for u (vec3)
+        // - 1 float for area
+        // - 3 floats for v (vec3)
+        // - 1 int padding
+        packInParallel(buffer, quads, 16 * Float.BYTES, Quad::putToBuffer);
+    }
+
+    private void packBoxes(ByteBuffer buffer) {
+        // - 3 floats for the min corner in the object space (vec3)
+        // - 1 int for material index
+        // - 3 floats for the max corner in the object space (vec3)
+        // - 1 int padding
+        // - 4 floats for the rotation quaternion (vec4)
+        // - 3 floats for the translation (vec3)
+        // - 1 int padding
+        packInParallel(buffer, boxes, 16 * Float.BYTES, Box::putToBuffer);
+    }
+
+    private void packConstantMediums(ByteBuffer buffer) {
+        // - 1 int for boundary model index in its SSBO.
+        // - 1 int for boundary model type.
+        // - 1 float for negative inverse density.
+        // - 1 int for the material index of the phase function.
+
+        packInParallel(buffer, constantMediums, 4 * Float.BYTES, ConstantMedium::putToBuffer);
+    }
+
+    private void packInstances(ByteBuffer buffer) {
+        // - 16 floats for the world to object matrix (mat4).
+        // - 1 int for the BLAS root index in the BVH node SSBO.
+        // - 3 int paddings.
+        packInParallel(buffer, instances, 20 * Float.BYTES, Instance::putToBuffer);
+    }
+
+    private void packBVHNodes(ByteBuffer buffer) {
+        if (bvhLayout.isWide()) {
+            packWideBVHNodes(buffer);
+            return;
+        }
+
+        // - 2 floats for x interval.
+        // - 2 floats for y interval.
+        // - 2 floats for z interval.
+        // - 1 int for left id, or the first primitive of a leaf.
+        // - 1 int for right id, or the primitive count of a leaf.
+        // - 1 int for the skip link in the threaded layout.
+        packInParallel(buffer, bvhNodes, getBVHNodeBytes(),
+                bvhLayout.stackless ? BVHNode::putThreadedToBuffer : BVHNode::putToBuffer);
+    }
+
+    private void packWideBVHNodes(ByteBuffer buffer) {
+        // The layout is described in WideBVHNode#bytes.
+        packInParallel(buffer, wideBVHNodes, WideBVHNode.bytes(bvhLayout.width, bvhLayout.quantized),
+                WideBVHNode::putToBuffer);
+    }
+
+    private void packBVHPrimitives(ByteBuffer buffer) {
+        // - 1 int for the packed model reference, in the range of each leaf. The leaves write at absolute indices.
+        IntStream.range(0, bvhNodes.size()).parallel().forEach(i -> {
+            BVHNode node = bvhNodes.get(i);
+            if (node.isLeaf())
+                node.putPrimitivesToBuffer(buffer);
+        });
+    }
+
+    private void packMaterials(ByteBuffer buffer) {
+        // - 1 int for the material type.
+        // - 1 int for the texture packed value.
+        // - 1 float for the parameter, e.g. the fuzz of a metal.
+        // - 1 int padding.
+        // - 3 floats for emission (vec3).
+        // - 1 int padding.
+        packInParallel(buffer, materials, 8 * Float.BYTES, Material::putToBuffer);
+    }
+
+    private void packVertices(ByteBuffer buffer) {
+        // - 3 floats for the position of each vertex, mesh after mesh.
+        for (TriangleMesh mesh : meshes) {
+            int bytesPerVertex = 3 * Float.BYTES;
+            ByteBuffer meshBuffer = buffer.slice(mesh.vertexOffset * bytesPerVertex,
+                    mesh.getVertexCount() * bytesPerVertex);
+            packInParallel(meshBuffer, mesh.getVertexCount(), bytesPerVertex,
+                    (view, first, last) -> mesh.putVerticesToBuffer(view, first, last - first));
+        }
+    }
+
+    private void packTriangles(ByteBuffer buffer) {
+        // - 3 ints for the indices of the vertices in the vertex SSBO.
+        // - 1 int for material index.
+        // The triangles of a mesh follow the ones of the meshes before.
+        for (TriangleMesh mesh : meshes) {
+            int bytesPerTriangle = 4 * Integer.BYTES;
+            ByteBuffer meshBuffer = buffer.slice(mesh.triangleOffset * bytesPerTriangle,
+                    mesh.getTriangleCount() * bytesPerTriangle);
+            packInParallel(meshBuffer, mesh.getTriangleCount(), bytesPerTriangle,
+                    (view, first, last) -> mesh.putTrianglesToBuffer(view, first, last - first));
+        }
+    }
+
+    private void packLights(ByteBuffer buffer) {
+        // - 1 int for the light count.
+        // - 1 int for the packed model reference of each light.
+        buffer.putInt(lights.size());
+        for (RaytraceModel light : lights) {
+            buffer.putInt(light.packedReference());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.bowen.draw.models.raytrace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Files of the packed SSBOs of scenes, named by the hash of the scene. A file is memory-mapped when it's loaded, so the
+ * buffers are uploaded straight from the file without being read or built again.
+ * <p>
+ * A file is made of a header and the sections:
+ * <ul>
+ *     <li>1 int for the magic number and 1 int for the version.</li>
+ *     <li>The hash of the scene.</li>
+ *     <li>1 int for the section count, then 1 long for the length of each section in bytes.</li>
+ *     <li>The sections, one after another.</li>
+ * </ul>
+ * The header is little-endian. The sections are the bytes of the SSBOs as they're uploaded, in the native byte order,
+ * which is a part of the scene hash.
+ */
+final class SceneCache {
+    private static final int MAGIC = 0x43535452; // "RTSC" in little-endian.
+    private static final int VERSION = 3;
+
+    private SceneCache() {
+    }
+
+    /**
+     * Map the file of the scene and slice it into the sections.
+     *
+     * @return The sections, or null if there's no valid file of the scene.
+     */
+    static ByteBuffer[] load(Path directory, byte[] hash, int sectionCount) {
+        Path file = fileOf(directory, hash);
+        if (!Files.isRegularFile(file)) return null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int headerBytes = headerBytes(hash, sectionCount);
+            // The sections can't be more than an arena holds, which is also the most a mapping can.
+            if (size < headerBytes || size - headerBytes > Integer.MAX_VALUE) return invalid(file);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) return invalid(file);
+
+            byte[] fileHash = new byte[hash.length];
+            header.get(fileHash);
+            if (!Arrays.equals(fileHash, hash) || header.getInt() != sectionCount) return invalid(file);
+
+            long[] lengths = new long[sectionCount];
+            long totalLength = 0;
+            for (int i = 0; i < sectionCount; i++) {
+                lengths[i] = header.getLong();
+                if (lengths[i] < 0 || lengths[i] > Integer.MAX_VALUE) return invalid(file);
+                totalLength += lengths[i];
+            }
+            if (headerBytes + totalLength != size) return invalid(file);
+
+            // The sections are mapped apart from the header, so they can take the whole limit. The mapping stays valid
+            // after the channel is closed.
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes, totalLength);
+            ByteBuffer[] sections = new ByteBuffer[sectionCount];
+            long position = 0;
+            for (int i = 0; i < sectionCount; i++) {
+                sections[i] = map.slice((int) position, (int) lengths[i]).order(ByteOrder.nativeOrder());
+                position += lengths[i];
+            }
+            return sections;
+        } catch (IOException e) {
+            System.out.println("Failed to read the scene cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the sections to the file of the scene. The file is written beside and moved in place at the end, so a
+     * file is never read half-written. A failure is printed but not thrown, since the scene has been uploaded anyway.
+     */
+    static void save(Path directory, byte[] hash, ByteBuffer[] sections) {
+        Path file = fileOf(directory, hash);
+        Path temporaryFile = null;
+        try {
+            Files.createDirectories(directory);
+            temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+            ByteBuffer header = ByteBuffer.allocate(headerBytes(hash, sections.length)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).put(hash).putInt(sections.length);
+            for (ByteBuffer section : sections)
+                header.putLong(section.remaining());
+            header.flip();
+
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                // Write duplicates, so the positions of the sections are kept.
+                for (ByteBuffer section : sections)
+                    writeFully(channel, section.duplicate());
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Scene cache saved to: " + file.toAbsolutePath());
+        } catch (IOException e) {
+            System.out.println("Failed to save the scene cache " + file + ": " + e.getMessage());
+            try {
+                if (temporaryFile != null) Files.deleteIfExists(temporaryFile);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static Path fileOf(Path directory, byte[] hash) {
+        return directory.resolve(HexFormat.of().formatHex(hash) + ".scene");
+    }
+
+    private static int headerBytes(byte[] hash, int sectionCount) {
+        return 3 * Integer.BYTES + hash.length + sectionCount * Long.BYTES;
+    }
+
+    private static ByteBuffer[] invalid(Path file) {
+        System.out.println("Ignoring the invalid scene cache: " + file);
+        return null;
+    }
+}
@@ -0,0 +1,42 @@
+package net.bowen.draw.models.raytrace;
+
+import net.bowen.draw.models.raytrace.bvh.BVHBuildMethod;
+import net.bowen.draw.models.raytrace.bvh.BVHLayout;
+import net.bowen.draw.models.raytrace.bvh.SAHBuilder;
+import net.bowen.draw.models.raytrace.bvh.SBVHBuilder;
+
+import java.nio.file.Path;
+
+/**
+ * How a {@link SceneBuilder} builds, lays out and caches its BVH. A builder is given its settings when it's created, so
+ * they're fixed from the models to the uploads, and scenes built at the same time can have different ones.
+ *
+ * @param buildMethod           How the BVH is built.
+ * @param maxLeafSize           The most models a BVH leaf can hold.
+ * @param spatialSplitBudget    How many more primitive references than models {@link BVHBuildMethod#SBVH} can make,
+ *                              relative to the model count. E.g. 0.3 allows 30% more references.
+ * @param layout                The node layout of the BVH. It decides the shader variant of the scene.
+ * @param refitRebuildThreshold How much the SAH cost can grow by {@link SceneBuilder#refitBVH()}, relative to the cost
+ *                              of the last build, before the BVH is rebuilt instead.
+ * @param cacheDirectory        Where the packed SSBOs of the scene are cached, or null if the cache is disabled. The
+ *                              cache is only used by the GL backend.
+ */
+public record SceneSettings(BVHBuildMethod buildMethod, int maxLeafSize, float spatialSplitBudget, BVHLayout layout,
+                            float refitRebuildThreshold, Path cacheDirectory) {
+    public static final SceneSettings DEFAULT = new SceneSettings(BVHBuildMethod.SAH,
+            SAHBuilder.DEFAULT_MAX_LEAF_SIZE, SBVHBuilder.DEFAULT_DUPLICATE_BUDGET, BVHLayout.BINARY, 1.5f, null);
+
+    /**
+     * @throws IllegalArgumentException if a setting is out of its range.
+     */
+    public SceneSettings {
+        if (buildMethod == null || layout == null)
+            throw new IllegalArgumentException("The BVH build method and layout should not be null.");
+        if (maxLeafSize < 1 || maxLeafSize > SAHBuilder.MAX_LEAF_SIZE)
+            throw new IllegalArgumentException("Leaf size should be in range [1, " + SAHBuilder.MAX_LEAF_SIZE + "].");
+        if (!(spatialSplitBudget >= 0))
+            throw new IllegalArgumentException("The spatial split budget should not be negative.");
+        if (!(refitRebuildThreshold >= 1))
+            throw new IllegalArgumentException("The rebuild threshold should be at least 1.");
+    }
+}
@@ -20,34 +20,63 @@ public class Sphere extends RaytraceModel {
 
     public Sphere(Vector3f center1, Vector3f center2, float radius, Material material) {
         super(material);
-        this.center1 = center1;
-        this.vec12 = new Vector3f(center2).sub(center1);
+        this.center1 = new Vector3f(center1);
+        this.vec12 = new Vector3f();
         this.radius = radius;
 
+        bbox = new AABB();
+        setCenter(center1, center2);
+    }
+
+    /**
+     * Move the sphere. The bounding box is updated in place, then {@link SceneBuilder#refitBVH()} should be called to
+     * update the BVH and the SSBOs.
+     *
+     * @param center1 the center at time 0.
+     * @param center2 the center at time 1.
+     */
+    public void setCenter(Vector3f center1, Vector3f center2) {
+        this.center1.set(center1);
+        this.vec12.set(center2).sub(center1);
+
         Vector3f rvec = new Vector3f(radius);
         AABB box1 = new AABB(new Vector3f(center1).sub(rvec), new Vector3f(center1).add(rvec));
         AABB box2 = new AABB(new Vector3f(center2).sub(rvec), new Vector3f(center2).add(rvec));
-        bbox = new AABB(box1, box2);
+        bbox.set(box1, box2);
+        markMoved();
+    }
+
+    public Vector3f getCenter1() {
+        return center1;
+    }
+
+    /**
+     * @return The vector from the center at time 0 to the center at time 1.
+     */
+    public Vector3f getCenterVec() {
+        return vec12;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    public Material getMaterial() {
+        return material;
     }
 
     protected void putToBuffer(ByteBuffer buffer) {
         // Center position (vec3)
         DataUtils.putToBuffer(center1, buffer);
 
-        // Material id (int).
-        buffer.putInt(material.getTexturePackedValue());
+        // Material index (int).
+        buffer.putInt(material.indexInList);
 
         // Center vector (vec3)
         DataUtils.putToBuffer(vec12, buffer);
 
         // Radius (float)
         buffer.putFloat(radius);
-
-        // Emission (vec3)
-        DataUtils.putToBuffer(material.emitted(), buffer);
-
-        // Material (int)
-        buffer.putInt(material.getMaterialPackedValue());
     }
 
     @Override
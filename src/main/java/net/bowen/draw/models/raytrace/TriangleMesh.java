@@ -0,0 +1,187 @@
+package net.bowen.draw.models.raytrace;
+
+import net.bowen.draw.materials.Material;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * A mesh of triangles with one material. The vertex positions are shared by the triangles, which refer to them by
+ * index, so a vertex is stored once however many triangles it's a corner of.
+ * <p>
+ * A mesh is a {@link BLAS} of its triangles: it has its own BVH and is placed in the scene by {@link Instance}s. The
+ * positions of all meshes are uploaded to one vertex SSBO, and a triangle is uploaded as the indices of its vertices in
+ * it.
+ * <p>
+ * A mesh can have millions of triangles, so they're not models of their own. They're only indices in the mesh: the BVH
+ * builders take their bounds as one array from {@link #triangleBounds()}, and the leaves of the BVH hold ranges of
+ * triangle indices.
+ */
+public class TriangleMesh extends BLAS {
+    private final FloatBuffer positions;
+    private final int[] indices;
+    private final int vertexCount, triangleCount;
+    private final Material material;
+
+    /**
+     * The index of the first vertex of the mesh in the vertex SSBO. It's -1 until the mesh is added.
+     */
+    int vertexOffset = -1;
+    /**
+     * The index of the first triangle of the mesh in the triangle SSBO. It's -1 until the mesh is added.
+     */
+    int triangleOffset = -1;
+
+    /**
+     * @param positions     the x, y and z of each vertex, from the position to the limit of the buffer. The buffer is
+     *                      kept, not copied.
+     * @param indices       the indices of the 3 vertices of each triangle, counter-clockwise seen from the front.
+     * @param triangleCount how many triangles the indices hold. The rest of the array is ignored.
+     * @throws IllegalArgumentException if an index is not a vertex of the mesh.
+     */
+    public TriangleMesh(FloatBuffer positions, int[] indices, int triangleCount, Material material) {
+        this.positions = positions.slice();
+        this.indices = indices;
+        this.vertexCount = this.positions.remaining() / 3;
+        this.triangleCount = triangleCount;
+        this.material = material;
+
+        if (3L * triangleCount > indices.length)
+            throw new IllegalArgumentException("There are only " + indices.length / 3 + " triangles in the indices.");
+        for (int i = 0; i < 3 * triangleCount; i++) {
+            if (indices[i] < 0 || indices[i] >= vertexCount)
+                throw new IllegalArgumentException("Vertex index " + indices[i] + " of triangle " + i / 3 +
+                        " is out of range. The mesh has " + vertexCount + " vertices.");
+        }
+
+        // The box of the triangles, each padded like the BVH leaves pad them.
+        float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        float[] triangleBox = new float[6];
+        for (int i = 0; i < triangleCount; i++) {
+            putTriangleBounds(i, triangleBox, 0, 1);
+            for (int axis = 0; axis < 3; axis++) {
+                box[axis] = Math.min(box[axis], triangleBox[axis]);
+                box[3 + axis] = Math.max(box[3 + axis], triangleBox[3 + axis]);
+            }
+        }
+        if (triangleCount > 0)
+            bbox.set(bbox, new AABB(box[0], box[1], box[2], box[3], box[4], box[5]));
+    }
+
+    /**
+     * The triangles are the only models of a mesh.
+     *
+     * @throws IllegalArgumentException always.
+     */
+    @Override
+    public BLAS add(RaytraceModel model) {
+        throw new IllegalArgumentException("Models can't be added to a mesh. It only holds its triangles.");
+    }
+
+    /**
+     * @return The bounds of all triangles in SoA order: the x minimums of all triangles, then the y and z minimums,
+     * then the x, y and z maximums. The bounds of triangle i on an axis are at {@code axis * triangleCount + i} and
+     * {@code (3 + axis) * triangleCount + i}. Like an {@link AABB}, no side is narrower than {@link AABB#MIN_SIZE}.
+     */
+    public float[] triangleBounds() {
+        float[] bounds = new float[6 * triangleCount];
+        IntStream.range(0, triangleCount).parallel().forEach(i -> putTriangleBounds(i, bounds, i, triangleCount));
+        return bounds;
+    }
+
+    /**
+     * Put the bounds of the triangle, padded like {@link #triangleBounds()}. The minimum on an axis is put at
+     * {@code offset + axis * stride}, and the maximum at {@code offset + (3 + axis) * stride}.
+     */
+    public void putTriangleBounds(int triangle, float[] dest, int offset, int stride) {
+        int a = indices[triangle * 3] * 3, b = indices[triangle * 3 + 1] * 3, c = indices[triangle * 3 + 2] * 3;
+        for (int axis = 0; axis < 3; axis++) {
+            float pa = positions.get(a + axis), pb = positions.get(b + axis), pc = positions.get(c + axis);
+            float min = Math.min(pa, Math.min(pb, pc));
+            float max = Math.max(pa, Math.max(pb, pc));
+            if (max - min < AABB.MIN_SIZE) {
+                float padding = AABB.MIN_SIZE / 2;
+                min -= padding;
+                max += padding;
+            }
+            dest[offset + axis * stride] = min;
+            dest[offset + (3 + axis) * stride] = max;
+        }
+    }
+
+    /**
+     * @return The index in the mesh of a corner (0, 1 or 2) of the triangle.
+     */
+    public int getVertexIndex(int triangle, int corner) {
+        return indices[triangle * 3 + corner];
+    }
+
+    public Vector3f getVertex(int vertex, Vector3f dest) {
+        int i = vertex * 3;
+        return dest.set(positions.get(i), positions.get(i + 1), positions.get(i + 2));
+    }
+
+    /**
+     * @return The x, y or z (0, 1 or 2) of the vertex.
+     */
+    public float getVertexComponent(int vertex, int axis) {
+        return positions.get(vertex * 3 + axis);
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
+
+    /**
+     * @return If the positions can be uploaded as they are, which is when they're off-heap in the native byte order,
+     * like the mapped positions of {@link net.bowen.draw.models.raytrace.mesh.PlyLoader}.
+     */
+    boolean canUploadPositions() {
+        return positions.isDirect() && positions.order() == ByteOrder.nativeOrder();
+    }
+
+    /**
+     * @return The x, y and z of each vertex. It shares the data with the mesh.
+     */
+    FloatBuffer getPositions() {
+        return positions.duplicate();
+    }
+
+    /**
+     * Put the triangles from the first one: the indices of the vertices in the vertex SSBO, and the material index.
+     */
+    void putTrianglesToBuffer(ByteBuffer buffer, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            for (int corner = 0; corner < 3; corner++)
+                buffer.putInt(vertexOffset + indices[i * 3 + corner]);
+            buffer.putInt(material.indexInList);
+        }
+    }
+
+    /**
+     * Put the positions of all vertices, 3 floats each.
+     */
+    void putVerticesToBuffer(ByteBuffer buffer) {
+        putVerticesToBuffer(buffer, 0, vertexCount);
+    }
+
+    /**
+     * Put the positions of the vertices from the first one, 3 floats each.
+     */
+    void putVerticesToBuffer(ByteBuffer buffer, int first, int count) {
+        buffer.asFloatBuffer().put(positions.slice(first * 3, count * 3));
+        buffer.position(buffer.position() + count * 3 * Float.BYTES);
+    }
+}
@@ -0,0 +1,23 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+/**
+ * The algorithms the BVH of a scene can be built with.
+ */
+public enum BVHBuildMethod {
+    /**
+     * Split the models at the median along the longest axis of the node. It's the builder from the book.
+     */
+    MEDIAN,
+    /**
+     * Split the models with the binned surface area heuristic. See {@link SAHBuilder}.
+     */
+    SAH,
+    /**
+     * Sort the models by Morton code and split where the codes change. See {@link LBVHBuilder}.
+     */
+    LBVH,
+    /**
+     * Split the models with the binned SAH, or with planes that cut through large models. See {@link SBVHBuilder}.
+     */
+    SBVH
+}
@@ -0,0 +1,52 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+/**
+ * The node layouts the BVH can be uploaded and traversed in. The layout decides the shader variant, so it must be set
+ * before the compute program is created.
+ */
+public enum BVHLayout {
+    /**
+     * The binary tree of {@link net.bowen.draw.models.raytrace.BVHNode}s.
+     */
+    BINARY(2, false),
+    /**
+     * The binary tree collapsed into {@link WideBVHNode}s of 4 children.
+     */
+    BVH4(4, false),
+    /**
+     * The binary tree collapsed into {@link WideBVHNode}s of 8 children.
+     */
+    BVH8(8, false),
+    /**
+     * {@link #BVH4} with the child bounds quantized to 8 bits. See {@link WideBVHNode#quantize()}.
+     */
+    BVH4_QUANTIZED(4, true),
+    /**
+     * {@link #BVH8} with the child bounds quantized to 8 bits. See {@link WideBVHNode#quantize()}.
+     */
+    BVH8_QUANTIZED(8, true),
+    /**
+     * The binary tree with a skip link in each node: the node that comes after its subtree in depth-first order. It's
+     * traversed without a stack, by going to the left child on a hit and to the skip link on a miss, so it takes no
+     * per-ray memory, but the children are always visited left first instead of near first.
+     */
+    THREADED(2, false, true);
+
+    public final int width;
+    public final boolean quantized;
+    public final boolean stackless;
+
+    BVHLayout(int width, boolean quantized) {
+        this(width, quantized, false);
+    }
+
+    BVHLayout(int width, boolean quantized, boolean stackless) {
+        this.width = width;
+        this.quantized = quantized;
+        this.stackless = stackless;
+    }
+
+    public boolean isWide() {
+        return width > 2;
+    }
+}
@@ -0,0 +1,241 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+import net.bowen.draw.models.raytrace.BVHNode;
+import net.bowen.draw.models.raytrace.RaytraceModel;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a linear BVH (LBVH). The models are sorted by the 30-bit Morton codes of their centroids with a radix sort,
+ * so models that are close in space are close in the order. Then a node is split where the highest bit of the codes
+ * in its range changes. There's no cost evaluation, so the tree is worse than {@link SAHBuilder}'s, but it's built
+ * many times faster. It suits scenes that are rebuilt every frame.
+ */
+public class LBVHBuilder {
+    /**
+     * The bits of a Morton code per axis. 3 axes take 30 bits.
+     */
+    private static final int BITS_PER_AXIS = 10;
+    /**
+     * The bits the radix sort handles per pass. 3 passes sort the 30-bit codes.
+     */
+    private static final int RADIX_BITS = 10;
+
+    private final int maxLeafSize;
+
+    // The models or the mesh the primitives are from.
+    private List<? extends RaytraceModel> models;
+    private TriangleMesh mesh;
+    /**
+     * The sorted Morton codes, and the primitive indices in the same order.
+     */
+    private int[] codes, refs;
+
+    public LBVHBuilder() {
+        this(SAHBuilder.DEFAULT_MAX_LEAF_SIZE);
+    }
+
+    /**
+     * @param maxLeafSize the most primitives a leaf can hold.
+     */
+    public LBVHBuilder(int maxLeafSize) {
+        if (maxLeafSize < 1 || maxLeafSize > SAHBuilder.MAX_LEAF_SIZE)
+            throw new IllegalArgumentException("Leaf size should be in range [1, " + SAHBuilder.MAX_LEAF_SIZE + "].");
+        this.maxLeafSize = maxLeafSize;
+    }
+
+    /**
+     * Build the tree over the models. Like {@link SAHBuilder#build(List)}, the large subtrees are built on the common
+     * fork/join pool, and the nodes are not added to the node list of the scene.
+     *
+     * @return The root node.
+     */
+    public BVHNode build(List<? extends RaytraceModel> models) {
+        if (models.isEmpty())
+            throw new IllegalArgumentException("Cannot build a BVH without models.");
+
+        this.models = models;
+        BVHNode root = build(SAHBuilder.modelBounds(models));
+        this.models = null;
+        return root;
+    }
+
+    /**
+     * Build the tree over the triangles of the mesh, like {@link SAHBuilder#build(TriangleMesh)}.
+     *
+     * @return The root node.
+     */
+    public BVHNode build(TriangleMesh mesh) {
+        if (mesh.getTriangleCount() == 0)
+            throw new IllegalArgumentException("Cannot build a BVH without triangles.");
+
+        this.mesh = mesh;
+        BVHNode root = build(mesh.triangleBounds());
+        this.mesh = null;
+        return root;
+    }
+
+    /**
+     * @param bounds the primitive bounds in SoA order, like {@link TriangleMesh#triangleBounds()}.
+     */
+    private BVHNode build(float[] bounds) {
+        int n = bounds.length / 6;
+
+        // The centroids, and their bounds to normalize them with.
+        float[] centroids = new float[n * 3];
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = 0; i < n; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float centroid = (bounds[axis * n + i] + bounds[(3 + axis) * n + i]) * 0.5f;
+                centroids[i * 3 + axis] = centroid;
+                min[axis] = Math.min(min[axis], centroid);
+                max[axis] = Math.max(max[axis], centroid);
+            }
+        }
+
+        codes = new int[n];
+        refs = new int[n];
+        int cells = 1 << BITS_PER_AXIS;
+        for (int i = 0; i < n; i++) {
+            int code = 0;
+            for (int axis = 0; axis < 3; axis++) {
+                float extent = max[axis] - min[axis];
+                float normalized = extent > 0 ? (centroids[i * 3 + axis] - min[axis]) / extent : 0;
+                int cell = Math.min((int) (normalized * cells), cells - 1);
+                code |= expandBits(cell) << (2 - axis);
+            }
+            codes[i] = code;
+            refs[i] = i;
+        }
+
+        radixSort();
+        BVHNode root = ForkJoinPool.commonPool().invoke(new BuildTask(0, n));
+
+        // Drop the references to the build data. The leaves of a mesh keep the refs.
+        codes = refs = null;
+        return root;
+    }
+
+    /**
+     * Spread the lower 10 bits of the value, so there are 2 zero bits between every 2 bits.
+     */
+    private static int expandBits(int v) {
+        v = (v * 0x00010001) & 0xFF0000FF;
+        v = (v * 0x00000101) & 0x0F00F00F;
+        v = (v * 0x00000011) & 0xC30C30C3;
+        v = (v * 0x00000005) & 0x49249249;
+        return v;
+    }
+
+    /**
+     * Sort the codes and the refs by the codes with a least significant digit radix sort.
+     */
+    private void radixSort() {
+        int n = codes.length;
+        int buckets = 1 << RADIX_BITS;
+        int[] codesTemp = new int[n], refsTemp = new int[n];
+        int[] offsets = new int[buckets];
+
+        for (int shift = 0; shift < 3 * BITS_PER_AXIS; shift += RADIX_BITS) {
+            Arrays.fill(offsets, 0);
+            for (int code : codes)
+                offsets[(code >>> shift) & (buckets - 1)]++;
+
+            // Turn the counts into the first index of each bucket.
+            int sum = 0;
+            for (int i = 0; i < buckets; i++) {
+                int count = offsets[i];
+                offsets[i] = sum;
+                sum += count;
+            }
+
+            for (int i = 0; i < n; i++) {
+                int dest = offsets[(codes[i] >>> shift) & (buckets - 1)]++;
+                codesTemp[dest] = codes[i];
+                refsTemp[dest] = refs[i];
+            }
+
+            int[] swap = codes;
+            codes = codesTemp;
+            codesTemp = swap;
+            swap = refs;
+            refs = refsTemp;
+            refsTemp = swap;
+        }
+    }
+
+    private BVHNode build(int start, int end) {
+        if (end - start <= maxLeafSize)
+            return makeLeaf(start, end);
+
+        int mid = findSplit(start, end - 1) + 1;
+        return new BVHNode(build(start, mid), build(mid, end));
+    }
+
+    /**
+     * Find where the highest differing bit of the codes in [first, last] changes.
+     *
+     * @return The index of the last code of the left part.
+     */
+    private int findSplit(int first, int last) {
+        int firstCode = codes[first];
+        int lastCode = codes[last];
+
+        // The codes are all the same. Split in the middle.
+        if (firstCode == lastCode)
+            return (first + last) >>> 1;
+
+        // Binary search for the last code that shares more than the common prefix with the first one.
+        int commonPrefix = Integer.numberOfLeadingZeros(firstCode ^ lastCode);
+        int split = first;
+        int step = last - first;
+        do {
+            step = (step + 1) >>> 1;
+            int newSplit = split + step;
+            if (newSplit < last && Integer.numberOfLeadingZeros(firstCode ^ codes[newSplit]) > commonPrefix)
+                split = newSplit;
+        } while (step > 1);
+
+        return split;
+    }
+
+    private BVHNode makeLeaf(int start, int end) {
+        if (mesh != null)
+            return new BVHNode(mesh, refs, start, end - start);
+
+        RaytraceModel[] primitives = new RaytraceModel[end - start];
+        for (int i = start; i < end; i++)
+            primitives[i - start] = models.get(refs[i]);
+        return new BVHNode(primitives);
+    }
+
+    /**
+     * Builds the subtree of the sorted models in [start, end). The left child is forked until the nodes get smaller
+     * than {@link SAHBuilder#PARALLEL_THRESHOLD}.
+     */
+    private class BuildTask extends RecursiveTask<BVHNode> {
+        private final int start, end;
+
+        private BuildTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected BVHNode compute() {
+            if (end - start < SAHBuilder.PARALLEL_THRESHOLD)
+                return build(start, end);
+
+            int mid = findSplit(start, end - 1) + 1;
+            BuildTask leftTask = new BuildTask(start, mid);
+            leftTask.fork();
+            BVHNode right = new BuildTask(mid, end).compute();
+            return new BVHNode(leftTask.join(), right);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+import net.bowen.draw.models.raytrace.AABB;
+import net.bowen.draw.models.raytrace.BVHNode;
+import net.bowen.draw.models.raytrace.RaytraceModel;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * Builds a BVH with the binned surface area heuristic (SAH). For each node, the primitive centroids are put into bins
+ * along each axis, and the split plane between two bins with the lowest SAH cost is chosen. A node becomes a leaf when
+ * intersecting all of its primitives is cheaper than splitting them.
+ */
+public class SAHBuilder {
+    public static final int DEFAULT_BIN_COUNT = 16;
+    public static final int DEFAULT_MAX_LEAF_SIZE = 4;
+    /**
+     * The upper limit of the max leaf size. Larger leaves are rarely cheaper than splitting.
+     */
+    public static final int MAX_LEAF_SIZE = 64;
+    /**
+     * The cost of traversing an inner node, relative to {@link #INTERSECTION_COST}. The bounding boxes of both children
+     * are tested, and a box test costs about as much as intersecting a primitive.
+     */
+    public static final float TRAVERSAL_COST = 2;
+    /**
+     * The cost of intersecting a primitive.
+     */
+    public static final float INTERSECTION_COST = 1;
+
+    /**
+     * Nodes with fewer primitives than this are built on the current thread instead of being split into tasks.
+     */
+    public static final int PARALLEL_THRESHOLD = 4096;
+
+    private final int binCount;
+    private final int maxLeafSize;
+
+    /**
+     * The primitive bounds in SoA order, like {@link TriangleMesh#triangleBounds()}, and the centroids, indexed by
+     * primitive.
+     */
+    private float[] bounds;
+    private float[] centroids;
+    private int primitiveCount;
+    // The models or the mesh the primitives are from.
+    private List<? extends RaytraceModel> models;
+    private TriangleMesh mesh;
+    /**
+     * The primitive indices. The builder partitions it in place, so each node owns a contiguous range, and the tasks
+     * never touch the same elements.
+     */
+    private int[] refs;
+
+    public SAHBuilder() {
+        this(DEFAULT_BIN_COUNT, DEFAULT_MAX_LEAF_SIZE);
+    }
+
+    /**
+     * @param binCount    how many bins the centroids are put into along each axis.
+     * @param maxLeafSize the most primitives a leaf can hold.
+     */
+    public SAHBuilder(int binCount, int maxLeafSize) {
+        if (binCount < 2)
+            throw new IllegalArgumentException("At least 2 bins are needed.");
+        if (maxLeafSize < 1 || maxLeafSize > MAX_LEAF_SIZE)
+            throw new IllegalArgumentException("Leaf size should be in range [1, " + MAX_LEAF_SIZE + "].");
+
+        this.binCount = binCount;
+        this.maxLeafSize = maxLeafSize;
+    }
+
+    /**
+     * Build the tree over the models. The subtrees are built concurrently on the common fork/join pool, but the
+     * result doesn't depend on the scheduling: the same models always give the same tree. The nodes are not added
+     * to the node list of the scene; use {@link BVHNode#flatten(BVHNode, List, int)} for that.
+     *
+     * @return The root node.
+     */
+    public BVHNode build(List<? extends RaytraceModel> models) {
+        if (models.isEmpty())
+            throw new IllegalArgumentException("Cannot build a BVH without models.");
+
+        this.models = models;
+        BVHNode root = build(modelBounds(models));
+        this.models = null;
+        return root;
+    }
+
+    /**
+     * Build the tree over the triangles of the mesh, like {@link #build(List)}. The leaves hold ranges of one array of
+     * triangle indices.
+     *
+     * @return The root node.
+     */
+    public BVHNode build(TriangleMesh mesh) {
+        if (mesh.getTriangleCount() == 0)
+            throw new IllegalArgumentException("Cannot build a BVH without triangles.");
+
+        this.mesh = mesh;
+        BVHNode root = build(mesh.triangleBounds());
+        this.mesh = null;
+        return root;
+    }
+
+    /**
+     * @return The bounds of the models in SoA order, like {@link TriangleMesh#triangleBounds()}.
+     */
+    static float[] modelBounds(List<? extends RaytraceModel> models) {
+        int n = models.size();
+        float[] bounds = new float[n * 6];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            AABB box = models.get(i).boundingBox();
+            for (int axis = 0; axis < 3; axis++) {
+                bounds[axis * n + i] = box.axisInterval(axis).min;
+                bounds[(3 + axis) * n + i] = box.axisInterval(axis).max;
+            }
+        });
+        return bounds;
+    }
+
+    private BVHNode build(float[] primitiveBounds) {
+        int n = primitiveBounds.length / 6;
+        bounds = primitiveBounds;
+        primitiveCount = n;
+        centroids = new float[n * 3];
+        refs = new int[n];
+
+        IntStream.range(0, n).parallel().forEach(i -> {
+            for (int axis = 0; axis < 3; axis++)
+                centroids[i * 3 + axis] = (bounds[axis * n + i] + bounds[(3 + axis) * n + i]) * 0.5f;
+            refs[i] = i;
+        });
+
+        BVHNode root = ForkJoinPool.commonPool().invoke(new BuildTask(0, n));
+
+        // Drop the references to the build data. The leaves of a mesh keep the refs.
+        bounds = centroids = null;
+        refs = null;
+        return root;
+    }
+
+    private BVHNode build(int start, int end, Bins bins) {
+        int mid = split(start, end, bins);
+        if (mid == -1)
+            return makeLeaf(start, end);
+
+        return new BVHNode(build(start, mid, bins), build(mid, end, bins));
+    }
+
+    /**
+     * Find the cheapest split of the refs in [start, end) and partition them.
+     *
+     * @return The index of the first ref in the right child, or -1 if the node should be a leaf.
+     */
+    private int split(int start, int end, Bins bins) {
+        int count = end - start;
+        if (count == 1)
+            return -1;
+
+        // The bounds of the node and the bounds of the centroids.
+        float[] nodeBounds = emptyBounds();
+        float[] centroidBounds = emptyBounds();
+        for (int i = start; i < end; i++) {
+            int ref = refs[i];
+            for (int axis = 0; axis < 3; axis++) {
+                nodeBounds[axis] = Math.min(nodeBounds[axis], bounds[axis * primitiveCount + ref]);
+                nodeBounds[3 + axis] = Math.max(nodeBounds[3 + axis], bounds[(3 + axis) * primitiveCount + ref]);
+                centroidBounds[axis] = Math.min(centroidBounds[axis], centroids[ref * 3 + axis]);
+                centroidBounds[3 + axis] = Math.max(centroidBounds[3 + axis], centroids[ref * 3 + axis]);
+            }
+        }
+
+        // Find the cheapest split among all axes. The split is between bin (bestBin - 1) and bin bestBin. Small nodes
+        // don't need more bins than models.
+        int numBins = Math.min(binCount, count);
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestAxis = -1, bestBin = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = centroidBounds[3 + axis] - centroidBounds[axis];
+            if (extent <= 0) continue;
+
+            bins.fill(start, end, axis, numBins, centroidBounds[axis], numBins / extent);
+            for (int bin = 1; bin < numBins; bin++) {
+                float cost = bins.splitCost(bin);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = bin;
+                }
+            }
+        }
+
+        // The cost is relative to the area of this node.
+        float leafCost = count * INTERSECTION_COST;
+        float splitCost = TRAVERSAL_COST + bestCost / area(nodeBounds, 0);
+        if (count <= maxLeafSize && leafCost <= splitCost)
+            return -1;
+
+        if (bestAxis == -1) {
+            // All the centroids are at the same point. There's no better split than the middle.
+            return start + count / 2;
+        }
+
+        return partition(start, end, bestAxis, bestBin, numBins, centroidBounds[bestAxis],
+                numBins / (centroidBounds[3 + bestAxis] - centroidBounds[bestAxis]));
+    }
+
+    /**
+     * Partition the refs in [start, end) so that the ones in the bins before splitBin come first.
+     *
+     * @return The index of the first ref in the right part.
+     */
+    private int partition(int start, int end, int axis, int splitBin, int numBins, float min, float scale) {
+        int i = start, j = end - 1;
+        while (i <= j) {
+            if (binIndex(centroids[refs[i] * 3 + axis], numBins, min, scale) < splitBin) {
+                i++;
+            } else {
+                int tmp = refs[i];
+                refs[i] = refs[j];
+                refs[j--] = tmp;
+            }
+        }
+        return i;
+    }
+
+    private static int binIndex(float centroid, int numBins, float min, float scale) {
+        int bin = (int) ((centroid - min) * scale);
+        return Math.min(bin, numBins - 1);
+    }
+
+    private BVHNode makeLeaf(int start, int end) {
+        if (mesh != null)
+            return new BVHNode(mesh, refs, start, end - start);
+
+        RaytraceModel[] primitives = new RaytraceModel[end - start];
+        for (int i = start; i < end; i++)
+            primitives[i - start] = models.get(refs[i]);
+        return new BVHNode(primitives);
+    }
+
+    /**
+     * Builds the subtree of the refs in [start, end). The left child is forked and the right child is built on the
+     * current thread, until the nodes get smaller than {@link #PARALLEL_THRESHOLD}.
+     */
+    private class BuildTask extends RecursiveTask<BVHNode> {
+        private final int start, end;
+
+        private BuildTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected BVHNode compute() {
+            Bins bins = new Bins();
+            if (end - start < PARALLEL_THRESHOLD)
+                return build(start, end, bins);
+
+            int mid = split(start, end, bins);
+            if (mid == -1)
+                return makeLeaf(start, end);
+
+            BuildTask leftTask = new BuildTask(start, mid);
+            leftTask.fork();
+            BVHNode right = new BuildTask(mid, end).compute();
+            return new BVHNode(leftTask.join(), right);
+        }
+    }
+
+    /**
+     * The per-bin bounds, counts, and the sweep results. A thread reuses it for every node it splits.
+     */
+    private class Bins {
+        private final float[] binBounds = new float[binCount * 6];
+        private final int[] binCounts = new int[binCount];
+        private final float[] leftAreas = new float[binCount];
+        private final int[] leftCounts = new int[binCount];
+        private final float[] rightAreas = new float[binCount];
+        private final int[] rightCounts = new int[binCount];
+        private final float[] sweep = new float[6];
+
+        private void fill(int start, int end, int axis, int numBins, float min, float scale) {
+            for (int bin = 0; bin < numBins; bin++) {
+                binCounts[bin] = 0;
+                setEmptyBounds(binBounds, bin * 6);
+            }
+
+            for (int i = start; i < end; i++) {
+                int ref = refs[i];
+                int bin = binIndex(centroids[ref * 3 + axis], numBins, min, scale);
+                binCounts[bin]++;
+                for (int a = 0; a < 3; a++) {
+                    binBounds[bin * 6 + a] = Math.min(binBounds[bin * 6 + a], bounds[a * primitiveCount + ref]);
+                    binBounds[bin * 6 + 3 + a] = Math.max(binBounds[bin * 6 + 3 + a],
+                            bounds[(3 + a) * primitiveCount + ref]);
+                }
+            }
+
+            // Sweep from both sides. leftAreas[i] and leftCounts[i] are of the bins [0, i), and rightAreas[i] and
+            // rightCounts[i] are of the bins [i, numBins).
+            setEmptyBounds(sweep, 0);
+            int count = 0;
+            for (int bin = 1; bin < numBins; bin++) {
+                count += binCounts[bin - 1];
+                grow(sweep, binBounds, (bin - 1) * 6);
+                leftAreas[bin] = count == 0 ? 0 : area(sweep, 0);
+                leftCounts[bin] = count;
+            }
+
+            setEmptyBounds(sweep, 0);
+            count = 0;
+            for (int bin = numBins - 1; bin > 0; bin--) {
+                count += binCounts[bin];
+                grow(sweep, binBounds, bin * 6);
+                rightAreas[bin] = count == 0 ? 0 : area(sweep, 0);
+                rightCounts[bin] = count;
+            }
+        }
+
+        /**
+         * @return The SAH cost, without the traversal cost and not yet divided by the parent's area, of splitting
+         * before the bin. Must be called after {@link #fill}.
+         */
+        private float splitCost(int splitBin) {
+            int leftCount = leftCounts[splitBin];
+            int rightCount = rightCounts[splitBin];
+            if (leftCount == 0 || rightCount == 0)
+                return Float.POSITIVE_INFINITY;
+
+            return (leftAreas[splitBin] * leftCount + rightAreas[splitBin] * rightCount) * INTERSECTION_COST;
+        }
+    }
+
+    /**
+     * Calculate the SAH cost of a tree: the expected cost of tracing a ray that hits the root's box. Each inner node
+     * costs {@link #TRAVERSAL_COST} and each model in a leaf costs {@link #INTERSECTION_COST}, both weighted by the
+     * chance of the ray hitting the node, which is the node's surface area relative to the root's.
+     */
+    public static float cost(BVHNode root) {
+        return cost(root, root.boundingBox().surfaceArea());
+    }
+
+    private static float cost(BVHNode node, float rootArea) {
+        float probability = node.boundingBox().surfaceArea() / rootArea;
+        if (node.isLeaf())
+            return probability * node.primitiveCount() * INTERSECTION_COST;
+
+        return probability * TRAVERSAL_COST + cost(node.left, rootArea) + cost(node.right, rootArea);
+    }
+
+    private static float[] emptyBounds() {
+        float[] b = new float[6];
+        setEmptyBounds(b, 0);
+        return b;
+    }
+
+    private static void setEmptyBounds(float[] b, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            b[offset + axis] = Float.POSITIVE_INFINITY;
+            b[offset + 3 + axis] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void grow(float[] b, float[] other, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            b[axis] = Math.min(b[axis], other[offset + axis]);
+            b[3 + axis] = Math.max(b[3 + axis], other[offset + 3 + axis]);
+        }
+    }
+
+    private static float area(float[] b, int offset) {
+        float dx = b[offset + 3] - b[offset];
+        float dy = b[offset + 4] - b[offset + 1];
+        float dz = b[offset + 5] - b[offset + 2];
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+}
@@ -0,0 +1,632 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+import net.bowen.draw.models.raytrace.AABB;
+import net.bowen.draw.models.raytrace.BVHNode;
+import net.bowen.draw.models.raytrace.Box;
+import net.bowen.draw.models.raytrace.ConstantMedium;
+import net.bowen.draw.models.raytrace.Quad;
+import net.bowen.draw.models.raytrace.RaytraceModel;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+import net.bowen.math.Interval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.bowen.draw.models.raytrace.bvh.SAHBuilder.INTERSECTION_COST;
+import static net.bowen.draw.models.raytrace.bvh.SAHBuilder.TRAVERSAL_COST;
+
+/**
+ * Builds a spatial split BVH (SBVH). A node is split like in {@link SAHBuilder}, by binning the centroids of its
+ * models, or by a plane that cuts through the models, whichever the SAH says is cheaper. The models that straddle a
+ * spatial split are referred to by both children, each with the part of the bounds on its side. Large models, like
+ * walls and huge spheres, then don't make the boxes of the nodes overlap, so rays descend fewer subtrees.
+ * <p>
+ * Quads, boxes and the triangles of meshes are clipped exactly; the bounding boxes of other models are just cut at the
+ * plane. The duplicated references take space in the primitive buffer, so their count is capped by a budget relative to
+ * the model count. Constant mediums are never duplicated, since a ray sampling the same volume twice would scatter too
+ * often.
+ * <p>
+ * The build runs on a single thread, so the budget is spent in the same order every time.
+ */
+public class SBVHBuilder {
+    /**
+     * The default budget: up to 30% more references than models.
+     */
+    public static final float DEFAULT_DUPLICATE_BUDGET = 0.3f;
+    /**
+     * Spatial splits are only tried where the children of the best object split overlap by more than this, relative to
+     * the area of the root. Elsewhere they would rarely win, and trying them is the slow part of the build.
+     */
+    private static final float MIN_OVERLAP = 1e-5f;
+
+    private final int binCount;
+    private final int maxLeafSize;
+    private final float duplicateBudget;
+
+    // The models or the mesh the references are to.
+    private List<? extends RaytraceModel> models;
+    private TriangleMesh mesh;
+    /**
+     * The triangle indices of the leaves of a mesh, which each leaf refers to a range of, and how many are used. A
+     * triangle can be in more than one leaf, so it's as large as the reference budget.
+     */
+    private int[] leafTriangles;
+    private int leafTriangleCount;
+    private float rootArea;
+    private int referenceCount, maxReferenceCount;
+
+    // The scratch data of the split searches.
+    private final float[] binBounds;
+    private final int[] binCounts, binEntries, binExits;
+    private final float[] leftSweep, rightSweep;
+    private final int[] leftCounts, rightCounts;
+    private final float[] clipped = new float[6];
+    // The vertices of a quad or a triangle while it's clipped by 2 planes, which gives at most 6 vertices.
+    private final float[] polygon = new float[6 * 3], clippedPolygon = new float[6 * 3];
+
+    /**
+     * A model or a triangle in a node, with the part of its bounds in the node.
+     */
+    private static class Reference {
+        private final int model;
+        private final float[] bounds = new float[6];
+
+        private Reference(int model, float[] bounds) {
+            this.model = model;
+            System.arraycopy(bounds, 0, this.bounds, 0, 6);
+        }
+    }
+
+    /**
+     * The best split found for a node.
+     */
+    private static class Split {
+        private float cost = Float.POSITIVE_INFINITY;
+        private int axis = -1;
+        private boolean spatial;
+        // The bin to split before, and the binning of an object split.
+        private int bin, numBins;
+        private float min, scale;
+        // The plane of a spatial split.
+        private float position;
+        // The bounds and counts of the children, as estimated by the binning.
+        private final float[] leftBounds = new float[6], rightBounds = new float[6];
+        private int leftCount, rightCount;
+    }
+
+    public SBVHBuilder() {
+        this(SAHBuilder.DEFAULT_BIN_COUNT, SAHBuilder.DEFAULT_MAX_LEAF_SIZE, DEFAULT_DUPLICATE_BUDGET);
+    }
+
+    /**
+     * @param binCount        how many bins are used along each axis.
+     * @param maxLeafSize     the most references a leaf can hold.
+     * @param duplicateBudget how many more references than models the tree can have, relative to the model count. 0
+     *                        disables spatial splits.
+     */
+    public SBVHBuilder(int binCount, int maxLeafSize, float duplicateBudget) {
+        if (binCount < 2)
+            throw new IllegalArgumentException("At least 2 bins are needed.");
+        if (maxLeafSize < 1 || maxLeafSize > SAHBuilder.MAX_LEAF_SIZE)
+            throw new IllegalArgumentException("Leaf size should be in range [1, " + SAHBuilder.MAX_LEAF_SIZE + "].");
+        if (!(duplicateBudget >= 0))
+            throw new IllegalArgumentException("The duplicate budget should not be negative.");
+
+        this.binCount = binCount;
+        this.maxLeafSize = maxLeafSize;
+        this.duplicateBudget = duplicateBudget;
+
+        binBounds = new float[binCount * 6];
+        binCounts = new int[binCount];
+        binEntries = new int[binCount];
+        binExits = new int[binCount];
+        leftSweep = new float[binCount * 6];
+        rightSweep = new float[binCount * 6];
+        leftCounts = new int[binCount];
+        rightCounts = new int[binCount];
+    }
+
+    /**
+     * Build the tree over the models. The nodes are not added to the node list of the scene; use
+     * {@link BVHNode#flatten(BVHNode, List, int)} for that. A model can be in more than one leaf.
+     *
+     * @return The root node.
+     */
+    public BVHNode build(List<? extends RaytraceModel> models) {
+        if (models.isEmpty())
+            throw new IllegalArgumentException("Cannot build a BVH without models.");
+
+        this.models = models;
+        BVHNode root = build(SAHBuilder.modelBounds(models));
+        this.models = null;
+        return root;
+    }
+
+    /**
+     * Build the tree over the triangles of the mesh, like {@link SAHBuilder#build(TriangleMesh)}. A triangle can be in
+     * more than one leaf.
+     *
+     * @return The root node.
+     */
+    public BVHNode build(TriangleMesh mesh) {
+        if (mesh.getTriangleCount() == 0)
+            throw new IllegalArgumentException("Cannot build a BVH without triangles.");
+
+        this.mesh = mesh;
+        BVHNode root = build(mesh.triangleBounds());
+        this.mesh = null;
+        leafTriangles = null;
+        return root;
+    }
+
+    /**
+     * @param bounds the primitive bounds in SoA order, like {@link TriangleMesh#triangleBounds()}.
+     */
+    private BVHNode build(float[] bounds) {
+        int n = bounds.length / 6;
+        List<Reference> refs = new ArrayList<>(n);
+        float[] rootBounds = emptyBounds();
+        float[] modelBounds = new float[6];
+        for (int i = 0; i < n; i++) {
+            for (int axis = 0; axis < 6; axis++)
+                modelBounds[axis] = bounds[axis * n + i];
+            refs.add(new Reference(i, modelBounds));
+            grow(rootBounds, modelBounds, 0);
+        }
+
+        rootArea = area(rootBounds, 0);
+        referenceCount = n;
+        maxReferenceCount = (int) Math.min(Integer.MAX_VALUE, (long) (n * (1.0 + duplicateBudget)));
+        if (mesh != null) {
+            leafTriangles = new int[maxReferenceCount];
+            leafTriangleCount = 0;
+        }
+
+        return build(refs, rootBounds);
+    }
+
+    private BVHNode build(List<Reference> refs, float[] nodeBounds) {
+        int count = refs.size();
+        if (count == 1)
+            return makeLeaf(refs, nodeBounds);
+
+        Split split = new Split();
+        findObjectSplit(refs, split);
+
+        // Try a spatial split if the object split leaves the children overlapping, and there's budget left.
+        if (referenceCount < maxReferenceCount && (split.axis == -1 || overlapArea(split) / rootArea > MIN_OVERLAP))
+            findSpatialSplit(refs, nodeBounds, split);
+
+        // The cost is relative to the area of this node.
+        float leafCost = count * INTERSECTION_COST;
+        float splitCost = TRAVERSAL_COST + split.cost / area(nodeBounds, 0);
+        if (count <= maxLeafSize && leafCost <= splitCost)
+            return makeLeaf(refs, nodeBounds);
+
+        List<Reference> left = new ArrayList<>(), right = new ArrayList<>();
+        if (split.spatial) {
+            partitionSpatial(refs, split, left, right);
+
+            // All the references may have gone to one side. Nothing is duplicated then, so just use the object split.
+            if (left.isEmpty() || right.isEmpty()) {
+                left.clear();
+                right.clear();
+                findObjectSplit(refs, split);
+            }
+        }
+
+        if (!split.spatial) {
+            if (split.axis != -1) {
+                partitionObjects(refs, split, left, right);
+            } else {
+                // All the centroids are at the same point. There's no better split than the middle.
+                left.addAll(refs.subList(0, count / 2));
+                right.addAll(refs.subList(count / 2, count));
+            }
+        }
+
+        return new BVHNode(build(left, boundsOf(left)), build(right, boundsOf(right)));
+    }
+
+    /**
+     * Find the cheapest split of the reference centroids, like {@link SAHBuilder} does. The split is left with
+     * {@code axis == -1} if all the centroids are at the same point.
+     */
+    private void findObjectSplit(List<Reference> refs, Split split) {
+        split.cost = Float.POSITIVE_INFINITY;
+        split.axis = -1;
+        split.spatial = false;
+
+        float[] centroidBounds = emptyBounds();
+        for (Reference ref : refs) {
+            for (int axis = 0; axis < 3; axis++) {
+                float centroid = centroid(ref, axis);
+                centroidBounds[axis] = Math.min(centroidBounds[axis], centroid);
+                centroidBounds[3 + axis] = Math.max(centroidBounds[3 + axis], centroid);
+            }
+        }
+
+        int numBins = Math.min(binCount, refs.size());
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = centroidBounds[3 + axis] - centroidBounds[axis];
+            if (extent <= 0) continue;
+
+            float min = centroidBounds[axis];
+            float scale = numBins / extent;
+            for (int bin = 0; bin < numBins; bin++) {
+                binCounts[bin] = 0;
+                setEmptyBounds(binBounds, bin * 6);
+            }
+            for (Reference ref : refs) {
+                int bin = binIndex(centroid(ref, axis), numBins, min, scale);
+                binCounts[bin]++;
+                grow(binBounds, bin * 6, ref.bounds, 0);
+            }
+
+            sweep(numBins, binCounts, binCounts);
+            for (int bin = 1; bin < numBins; bin++) {
+                float cost = sweepCost(bin);
+                if (cost < split.cost) {
+                    split.cost = cost;
+                    split.axis = axis;
+                    split.bin = bin;
+                    split.numBins = numBins;
+                    split.min = min;
+                    split.scale = scale;
+                    keepSweep(bin, split);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the cheapest spatial split. The node is cut into bins of equal size along each axis, and each reference is
+     * clipped to every bin it overlaps. The split replaces the given one if it's cheaper.
+     */
+    private void findSpatialSplit(List<Reference> refs, float[] nodeBounds, Split split) {
+        for (int axis = 0; axis < 3; axis++) {
+            float nodeMin = nodeBounds[axis], nodeMax = nodeBounds[3 + axis];
+            float binSize = (nodeMax - nodeMin) / binCount;
+            if (!(binSize > 0)) continue;
+
+            for (int bin = 0; bin < binCount; bin++) {
+                binEntries[bin] = binExits[bin] = 0;
+                setEmptyBounds(binBounds, bin * 6);
+            }
+
+            for (Reference ref : refs) {
+                int first = spatialBinIndex(ref.bounds[axis], nodeMin, binSize);
+                int last = spatialBinIndex(ref.bounds[3 + axis], nodeMin, binSize);
+                for (int bin = first; bin <= last; bin++) {
+                    float binMin = bin == first ? ref.bounds[axis] : nodeMin + bin * binSize;
+                    float binMax = bin == last ? ref.bounds[3 + axis] : nodeMin + (bin + 1) * binSize;
+                    clip(ref, axis, binMin, binMax, clipped);
+                    grow(binBounds, bin * 6, clipped, 0);
+                }
+                binEntries[first]++;
+                binExits[last]++;
+            }
+
+            // A reference is on the left of a plane if it enters before it, and on the right if it exits after it.
+            sweep(binCount, binEntries, binExits);
+            for (int bin = 1; bin < binCount; bin++) {
+                float cost = sweepCost(bin);
+                if (cost < split.cost) {
+                    split.cost = cost;
+                    split.axis = axis;
+                    split.spatial = true;
+                    split.position = nodeMin + bin * binSize;
+                    keepSweep(bin, split);
+                }
+            }
+        }
+    }
+
+    private void partitionObjects(List<Reference> refs, Split split, List<Reference> left, List<Reference> right) {
+        for (Reference ref : refs) {
+            if (binIndex(centroid(ref, split.axis), split.numBins, split.min, split.scale) < split.bin)
+                left.add(ref);
+            else
+                right.add(ref);
+        }
+    }
+
+    /**
+     * Put the references on the sides of the plane. A straddling reference is duplicated, unless it's cheaper to put
+     * it on one side whole, or it's a constant medium, or the budget has run out.
+     */
+    private void partitionSpatial(List<Reference> refs, Split split, List<Reference> left, List<Reference> right) {
+        int axis = split.axis;
+        float plane = split.position;
+        float leftArea = area(split.leftBounds, 0), rightArea = area(split.rightBounds, 0);
+        int leftCount = split.leftCount, rightCount = split.rightCount;
+        float[] grown = new float[6];
+
+        for (Reference ref : refs) {
+            if (ref.bounds[3 + axis] <= plane) {
+                left.add(ref);
+                continue;
+            }
+            if (ref.bounds[axis] >= plane) {
+                right.add(ref);
+                continue;
+            }
+
+            // The costs of putting the reference whole on the left or on the right, instead of splitting it.
+            System.arraycopy(split.leftBounds, 0, grown, 0, 6);
+            grow(grown, ref.bounds, 0);
+            float leftOnlyCost = area(grown, 0) * leftCount + rightArea * (rightCount - 1);
+            System.arraycopy(split.rightBounds, 0, grown, 0, 6);
+            grow(grown, ref.bounds, 0);
+            float rightOnlyCost = leftArea * (leftCount - 1) + area(grown, 0) * rightCount;
+            float splitCost = leftArea * leftCount + rightArea * rightCount;
+
+            boolean canDuplicate = referenceCount < maxReferenceCount &&
+                    (mesh != null || !(models.get(ref.model) instanceof ConstantMedium));
+            if (!canDuplicate || Math.min(leftOnlyCost, rightOnlyCost) <= splitCost) {
+                if (leftOnlyCost <= rightOnlyCost)
+                    left.add(ref);
+                else
+                    right.add(ref);
+                continue;
+            }
+
+            // Clip the reference to both sides. The model may not reach into one of them after all, if its bounding
+            // box does but the model itself doesn't.
+            Reference leftPart = clipReference(ref, axis, ref.bounds[axis], plane);
+            Reference rightPart = clipReference(ref, axis, plane, ref.bounds[3 + axis]);
+            if (leftPart != null) left.add(leftPart);
+            if (rightPart != null) right.add(rightPart);
+            if (leftPart != null && rightPart != null) referenceCount++;
+        }
+    }
+
+    /**
+     * @return The part of the reference in the slab, or null if the model doesn't reach into it.
+     */
+    private Reference clipReference(Reference ref, int axis, float min, float max) {
+        clip(ref, axis, min, max, clipped);
+        for (int a = 0; a < 3; a++) {
+            if (clipped[a] > clipped[3 + a])
+                return null;
+        }
+        return new Reference(ref.model, clipped);
+    }
+
+    /**
+     * Clip the reference to the slab [min, max] along the axis. The result is empty if the model doesn't reach into
+     * the slab.
+     */
+    private void clip(Reference ref, int axis, float min, float max, float[] dest) {
+        RaytraceModel model = mesh == null ? models.get(ref.model) : null;
+        if (mesh != null) {
+            setEmptyBounds(dest, 0);
+            clipTriangle(ref.model, axis, min, max, dest);
+        } else if (model instanceof Quad quad) {
+            setEmptyBounds(dest, 0);
+            clipQuad(quad, axis, min, max, dest);
+        } else if (model instanceof Box box) {
+            // The sides of a box bound the box, so the clipped sides bound the clipped box.
+            setEmptyBounds(dest, 0);
+            for (Quad side : box.getSides())
+                clipQuad(side, axis, min, max, dest);
+        } else {
+            System.arraycopy(ref.bounds, 0, dest, 0, 6);
+        }
+
+        // Never grow past the bounds that the reference already has in the node.
+        for (int a = 0; a < 3; a++) {
+            dest[a] = Math.max(dest[a], ref.bounds[a]);
+            dest[3 + a] = Math.min(dest[3 + a], ref.bounds[3 + a]);
+        }
+        dest[axis] = Math.max(dest[axis], min);
+        dest[3 + axis] = Math.min(dest[3 + axis], max);
+    }
+
+    /**
+     * Grow the bounds by the part of the quad in the slab [min, max] along the axis.
+     */
+    private void clipQuad(Quad quad, int axis, float min, float max, float[] dest) {
+        // The corners, in order around the quad.
+        setVertex(polygon, 0, quad.q.x, quad.q.y, quad.q.z);
+        setVertex(polygon, 1, quad.q.x + quad.u.x, quad.q.y + quad.u.y, quad.q.z + quad.u.z);
+        setVertex(polygon, 2, quad.q.x + quad.u.x + quad.v.x, quad.q.y + quad.u.y + quad.v.y,
+                quad.q.z + quad.u.z + quad.v.z);
+        setVertex(polygon, 3, quad.q.x + quad.v.x, quad.q.y + quad.v.y, quad.q.z + quad.v.z);
+
+        clipToSlab(4, axis, min, max, dest);
+    }
+
+    /**
+     * Grow the bounds by the part of the triangle in the slab [min, max] along the axis.
+     */
+    private void clipTriangle(int triangle, int axis, float min, float max, float[] dest) {
+        for (int corner = 0; corner < 3; corner++) {
+            int vertex = mesh.getVertexIndex(triangle, corner);
+            setVertex(polygon, corner, mesh.getVertexComponent(vertex, 0), mesh.getVertexComponent(vertex, 1),
+                    mesh.getVertexComponent(vertex, 2));
+        }
+
+        clipToSlab(3, axis, min, max, dest);
+    }
+
+    /**
+     * Clip the polygon in {@link #polygon} to the slab [min, max] along the axis, and grow the bounds by the result.
+     */
+    private void clipToSlab(int count, int axis, float min, float max, float[] dest) {
+        count = clipPolygon(polygon, count, axis, min, false, clippedPolygon);
+        count = clipPolygon(clippedPolygon, count, axis, max, true, polygon);
+        for (int i = 0; i < count; i++) {
+            for (int a = 0; a < 3; a++) {
+                dest[a] = Math.min(dest[a], polygon[i * 3 + a]);
+                dest[3 + a] = Math.max(dest[3 + a], polygon[i * 3 + a]);
+            }
+        }
+    }
+
+    /**
+     * Clip a convex polygon by a plane perpendicular to the axis (Sutherland-Hodgman).
+     *
+     * @param below if the part below the plane is kept, otherwise the part above it.
+     * @return The vertex count of the clipped polygon.
+     */
+    private static int clipPolygon(float[] src, int count, int axis, float plane, boolean below, float[] dest) {
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            float a = src[i * 3 + axis] - plane;
+            float b = src[j * 3 + axis] - plane;
+            if (below) {
+                a = -a;
+                b = -b;
+            }
+
+            if (a >= 0) {
+                System.arraycopy(src, i * 3, dest, result * 3, 3);
+                result++;
+            }
+            if ((a >= 0) != (b >= 0)) {
+                // The edge crosses the plane.
+                float t = a / (a - b);
+                for (int k = 0; k < 3; k++)
+                    dest[result * 3 + k] = src[i * 3 + k] + (src[j * 3 + k] - src[i * 3 + k]) * t;
+                dest[result * 3 + axis] = plane;
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static void setVertex(float[] polygon, int i, float x, float y, float z) {
+        polygon[i * 3] = x;
+        polygon[i * 3 + 1] = y;
+        polygon[i * 3 + 2] = z;
+    }
+
+    /**
+     * Sweep the bins from both sides. After that, leftSweep and leftCounts at i are of the bins [0, i), and rightSweep
+     * and rightCounts at i are of the bins [i, numBins).
+     *
+     * @param leftAdds  how many references a bin adds to the left side.
+     * @param rightAdds how many references a bin adds to the right side.
+     */
+    private void sweep(int numBins, int[] leftAdds, int[] rightAdds) {
+        float[] bounds = emptyBounds();
+        int count = 0;
+        for (int bin = 1; bin < numBins; bin++) {
+            count += leftAdds[bin - 1];
+            grow(bounds, binBounds, (bin - 1) * 6);
+            System.arraycopy(bounds, 0, leftSweep, bin * 6, 6);
+            leftCounts[bin] = count;
+        }
+
+        setEmptyBounds(bounds, 0);
+        count = 0;
+        for (int bin = numBins - 1; bin > 0; bin--) {
+            count += rightAdds[bin];
+            grow(bounds, binBounds, bin * 6);
+            System.arraycopy(bounds, 0, rightSweep, bin * 6, 6);
+            rightCounts[bin] = count;
+        }
+    }
+
+    /**
+     * @return The SAH cost, without the traversal cost and not yet divided by the parent's area, of splitting before
+     * the bin. Must be called after {@link #sweep}.
+     */
+    private float sweepCost(int bin) {
+        if (leftCounts[bin] == 0 || rightCounts[bin] == 0)
+            return Float.POSITIVE_INFINITY;
+
+        float leftArea = area(leftSweep, bin * 6), rightArea = area(rightSweep, bin * 6);
+        return (leftArea * leftCounts[bin] + rightArea * rightCounts[bin]) * INTERSECTION_COST;
+    }
+
+    private void keepSweep(int bin, Split split) {
+        System.arraycopy(leftSweep, bin * 6, split.leftBounds, 0, 6);
+        System.arraycopy(rightSweep, bin * 6, split.rightBounds, 0, 6);
+        split.leftCount = leftCounts[bin];
+        split.rightCount = rightCounts[bin];
+    }
+
+    private BVHNode makeLeaf(List<Reference> refs, float[] nodeBounds) {
+        // The box of the clipped references is smaller than the box of the models.
+        AABB box = new AABB(new Interval().set(nodeBounds[0], nodeBounds[3]),
+                new Interval().set(nodeBounds[1], nodeBounds[4]), new Interval().set(nodeBounds[2], nodeBounds[5]));
+
+        if (mesh != null) {
+            int first = leafTriangleCount;
+            for (Reference ref : refs)
+                leafTriangles[leafTriangleCount++] = ref.model;
+            return new BVHNode(mesh, leafTriangles, first, refs.size(), box);
+        }
+
+        RaytraceModel[] primitives = new RaytraceModel[refs.size()];
+        for (int i = 0; i < refs.size(); i++)
+            primitives[i] = models.get(refs.get(i).model);
+        return new BVHNode(primitives, box);
+    }
+
+    private static float overlapArea(Split split) {
+        float[] overlap = new float[6];
+        for (int axis = 0; axis < 3; axis++) {
+            overlap[axis] = Math.max(split.leftBounds[axis], split.rightBounds[axis]);
+            overlap[3 + axis] = Math.min(split.leftBounds[3 + axis], split.rightBounds[3 + axis]);
+            if (overlap[axis] > overlap[3 + axis])
+                return 0;
+        }
+        return area(overlap, 0);
+    }
+
+    private static float[] boundsOf(List<Reference> refs) {
+        float[] bounds = emptyBounds();
+        for (Reference ref : refs)
+            grow(bounds, ref.bounds, 0);
+        return bounds;
+    }
+
+    private static float centroid(Reference ref, int axis) {
+        return (ref.bounds[axis] + ref.bounds[3 + axis]) * 0.5f;
+    }
+
+    private static int binIndex(float centroid, int numBins, float min, float scale) {
+        int bin = (int) ((centroid - min) * scale);
+        return Math.min(bin, numBins - 1);
+    }
+
+    private int spatialBinIndex(float position, float nodeMin, float binSize) {
+        int bin = (int) ((position - nodeMin) / binSize);
+        return Math.min(Math.max(bin, 0), binCount - 1);
+    }
+
+    private static float[] emptyBounds() {
+        float[] b = new float[6];
+        setEmptyBounds(b, 0);
+        return b;
+    }
+
+    private static void setEmptyBounds(float[] b, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            b[offset + axis] = Float.POSITIVE_INFINITY;
+            b[offset + 3 + axis] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void grow(float[] b, float[] other, int offset) {
+        grow(b, 0, other, offset);
+    }
+
+    private static void grow(float[] b, int offset, float[] other, int otherOffset) {
+        for (int axis = 0; axis < 3; axis++) {
+            b[offset + axis] = Math.min(b[offset + axis], other[otherOffset + axis]);
+            b[offset + 3 + axis] = Math.max(b[offset + 3 + axis], other[otherOffset + 3 + axis]);
+        }
+    }
+
+    private static float area(float[] b, int offset) {
+        float dx = b[offset + 3] - b[offset];
+        float dy = b[offset + 4] - b[offset + 1];
+        float dz = b[offset + 5] - b[offset + 2];
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+}
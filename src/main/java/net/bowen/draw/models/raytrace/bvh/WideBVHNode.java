@@ -0,0 +1,270 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+import net.bowen.draw.models.raytrace.AABB;
+import net.bowen.draw.models.raytrace.BVHNode;
+import net.bowen.draw.models.raytrace.RaytraceModel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A node of a BVH with up to 4 or 8 children. It's made by collapsing a binary tree, so a traversal visits fewer
+ * nodes and the stack doesn't grow as deep. The leaves are the leaves of the binary tree.
+ * <p>
+ * The child bounds are stored in SoA order: the x minimums of all children, then the x maximums, then y and z. This
+ * is also the layout in the shader, so a node is a single read of contiguous memory.
+ * <p>
+ * The bounds can be {@link #quantize() quantized} to 8 bits per value, which takes less than half of the memory.
+ */
+public class WideBVHNode {
+    public final int width;
+    /**
+     * The bounds of the children in SoA order. Use {@link #boundsIndex(int, boolean, int)} to index it.
+     */
+    public final float[] bounds;
+    /**
+     * The inner children. An element is null if the child is a leaf or doesn't exist.
+     */
+    public final WideBVHNode[] innerChildren;
+    /**
+     * The leaf children. An element is null if the child is an inner node or doesn't exist.
+     */
+    public final BVHNode[] leafChildren;
+    /**
+     * How many children the node has. The children take the first slots.
+     */
+    public final int childCount;
+
+    public int indexInList;
+
+    // The binary nodes the children were made from. The bounds are read from them again when the node is refitted.
+    private final BVHNode[] sources;
+
+    // The quantized bounds. They're null unless the node has been quantized.
+    private float[] origin;
+    private int[] exponents;
+    private byte[] quantizedBounds;
+
+    private WideBVHNode(int width, List<BVHNode> children) {
+        this.width = width;
+        bounds = new float[6 * width];
+        innerChildren = new WideBVHNode[width];
+        leafChildren = new BVHNode[width];
+        childCount = children.size();
+        sources = children.toArray(new BVHNode[0]);
+        setBounds();
+
+        for (int i = 0; i < childCount; i++) {
+            BVHNode child = children.get(i);
+            if (child.isLeaf())
+                leafChildren[i] = child;
+            else
+                innerChildren[i] = collapse(child, width);
+        }
+    }
+
+    private void setBounds() {
+        for (int i = 0; i < width; i++) {
+            if (i < childCount) {
+                AABB box = sources[i].boundingBox();
+                for (int axis = 0; axis < 3; axis++) {
+                    bounds[boundsIndex(axis, false, i)] = box.axisInterval(axis).min;
+                    bounds[boundsIndex(axis, true, i)] = box.axisInterval(axis).max;
+                }
+            } else {
+                // An empty box that no ray can hit.
+                for (int axis = 0; axis < 3; axis++) {
+                    bounds[boundsIndex(axis, false, i)] = Float.POSITIVE_INFINITY;
+                    bounds[boundsIndex(axis, true, i)] = Float.NEGATIVE_INFINITY;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The index in {@link #bounds} of the minimum or maximum on the axis of the child.
+     */
+    public int boundsIndex(int axis, boolean max, int child) {
+        return (axis * 2 + (max ? 1 : 0)) * width + child;
+    }
+
+    /**
+     * Collapse the binary tree into a tree of the width. Each node pulls up the grandchildren of its largest inner
+     * child until it has enough children, so the large nodes, which are the most likely to be hit, are opened first.
+     *
+     * @return The root of the wide tree.
+     */
+    public static WideBVHNode collapse(BVHNode root, int width) {
+        List<BVHNode> children = new ArrayList<>(width);
+        if (root.isLeaf()) {
+            children.add(root);
+            return new WideBVHNode(width, children);
+        }
+
+        children.add(root.left);
+        children.add(root.right);
+        while (children.size() < width) {
+            int largest = -1;
+            float largestArea = -1;
+            for (int i = 0; i < children.size(); i++) {
+                BVHNode child = children.get(i);
+                float area = child.boundingBox().surfaceArea();
+                if (!child.isLeaf() && area > largestArea) {
+                    largest = i;
+                    largestArea = area;
+                }
+            }
+
+            // All the children are leaves.
+            if (largest == -1) break;
+
+            BVHNode opened = children.get(largest);
+            children.set(largest, opened.left);
+            children.add(largest + 1, opened.right);
+        }
+
+        return new WideBVHNode(width, children);
+    }
+
+    /**
+     * Add the nodes of the tree to the list in depth-first order, and set their indices in the list. The root is at
+     * the first index.
+     */
+    public static void flatten(WideBVHNode root, List<WideBVHNode> dest) {
+        Deque<WideBVHNode> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            WideBVHNode node = stack.pop();
+            dest.add(node);
+            node.indexInList = dest.size() - 1;
+
+            for (int i = node.childCount - 1; i >= 0; i--) {
+                if (node.innerChildren[i] != null)
+                    stack.push(node.innerChildren[i]);
+            }
+        }
+    }
+
+    /**
+     * Quantize the child bounds to 8 bits per value. The node's own bounds become a frame of an origin and a
+     * power-of-2 scale per axis, and a child bound is stored as the count of scales from the origin. The minimums are
+     * rounded down and the maximums up, so a quantized box always contains the real one.
+     * <p>
+     * {@link #bounds} is replaced by the dequantized bounds, so the CPU traversal tests the same boxes as the shader.
+     */
+    public void quantize() {
+        origin = new float[3];
+        exponents = new int[3];
+        quantizedBounds = new byte[6 * width];
+
+        for (int axis = 0; axis < 3; axis++) {
+            float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < childCount; i++) {
+                min = Math.min(min, bounds[boundsIndex(axis, false, i)]);
+                max = Math.max(max, bounds[boundsIndex(axis, true, i)]);
+            }
+
+            // The smallest power of 2 scale that covers the extent with 255 steps. The exponent is stored biased
+            // like in a float, so the shader can build the scale from the bits.
+            int exponent = max > min ? Math.getExponent((max - min) / 255f) : Float.MIN_EXPONENT;
+            exponent = Math.max(exponent, Float.MIN_EXPONENT);
+            while (min + 255 * Math.scalb(1f, exponent) < max)
+                exponent++;
+            float scale = Math.scalb(1f, exponent);
+
+            origin[axis] = min;
+            exponents[axis] = exponent + 127;
+
+            for (int i = 0; i < width; i++) {
+                int qMin = 0, qMax = 0;
+                if (i < childCount) {
+                    float childMin = bounds[boundsIndex(axis, false, i)];
+                    float childMax = bounds[boundsIndex(axis, true, i)];
+                    qMin = clampToByte((int) Math.floor((childMin - min) / scale));
+                    qMax = clampToByte((int) Math.ceil((childMax - min) / scale));
+
+                    // Step outwards if the float rounding made a decoded bound fall inside the real one.
+                    while (qMin > 0 && min + qMin * scale > childMin) qMin--;
+                    while (qMax < 255 && min + qMax * scale < childMax) qMax++;
+
+                    bounds[boundsIndex(axis, false, i)] = min + qMin * scale;
+                    bounds[boundsIndex(axis, true, i)] = min + qMax * scale;
+                }
+                quantizedBounds[boundsIndex(axis, false, i)] = (byte) qMin;
+                quantizedBounds[boundsIndex(axis, true, i)] = (byte) qMax;
+            }
+        }
+    }
+
+    /**
+     * Read the child bounds from the binary nodes again after they have been refitted, and quantize them again if the
+     * node was quantized.
+     *
+     * @return If the bounds have changed.
+     */
+    public boolean refit() {
+        float[] oldBounds = bounds.clone();
+        setBounds();
+        if (quantizedBounds != null)
+            quantize();
+        return !Arrays.equals(oldBounds, bounds);
+    }
+
+    private static int clampToByte(int value) {
+        return Math.min(Math.max(value, 0), 255);
+    }
+
+    /**
+     * @return The size of a node of the width in the BVH buffer.
+     */
+    public static int bytes(int width, boolean quantized) {
+        if (quantized) {
+            // - 3 floats for the origin.
+            // - 1 int for the 3 biased scale exponents, 1 byte each.
+            // - 6 bytes for the quantized bounds of each child.
+            // - 1 int for the packed reference of each child.
+            // - 1 byte for the primitive count of each child.
+            return 4 * Float.BYTES + 6 * width + width * Integer.BYTES + width;
+        }
+
+        // - 6 floats for the bounds of each child.
+        // - 1 int for the packed reference of each child.
+        // - 1 int for the primitive count of each child.
+        return 8 * width * Float.BYTES;
+    }
+
+    public void putToBuffer(ByteBuffer buffer) {
+        if (quantizedBounds != null) {
+            buffer.putFloat(origin[0]).putFloat(origin[1]).putFloat(origin[2]);
+            buffer.put((byte) exponents[0]).put((byte) exponents[1]).put((byte) exponents[2]).put((byte) 0);
+            buffer.put(quantizedBounds);
+        } else {
+            for (float bound : bounds)
+                buffer.putFloat(bound);
+        }
+
+        // Inner children are referred to by their node index, and leaves by their first primitive. An empty slot is -1.
+        int bits = RaytraceModel.REFERENCE_INDEX_BITS;
+        for (int i = 0; i < width; i++) {
+            if (innerChildren[i] != null)
+                buffer.putInt(RaytraceModel.BVH_NODE_ID << bits | innerChildren[i].indexInList);
+            else if (leafChildren[i] != null)
+                buffer.putInt(RaytraceModel.BVH_LEAF_ID << bits | leafChildren[i].getFirstPrimitive());
+            else
+                buffer.putInt(-1);
+        }
+
+        for (int i = 0; i < width; i++) {
+            int leafSize = leafChildren[i] != null ? leafChildren[i].primitiveCount() : 0;
+            if (quantizedBounds != null)
+                buffer.put((byte) leafSize);
+            else
+                buffer.putInt(leafSize);
+        }
+    }
+}
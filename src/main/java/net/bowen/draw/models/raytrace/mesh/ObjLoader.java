@@ -0,0 +1,276 @@
+package net.bowen.draw.models.raytrace.mesh;
+
+import net.bowen.draw.materials.Material;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Loads Wavefront OBJ files into {@link TriangleMesh}es. The file is streamed through a fixed buffer and parsed byte by
+ * byte, straight into the position and index arrays, so nothing is allocated per line and the heap only grows with the
+ * mesh itself.
+ * <p>
+ * Only the vertex positions ({@code v}) and the faces ({@code f}) are read. Faces with more than 3 vertices are split
+ * into triangle fans. Texture coordinates, normals, groups and material libraries are skipped.
+ */
+public final class ObjLoader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final InputStream in;
+    private final Path path;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position, limit;
+    private int line = 1;
+
+    private float[] positions = new float[3 * 1024];
+    private int vertexCount;
+    private int[] indices = new int[3 * 1024];
+    private int triangleCount;
+
+    private ObjLoader(InputStream in, Path path) {
+        this.in = in;
+        this.path = path;
+    }
+
+    /**
+     * @throws RuntimeException if the file can't be read or isn't a valid OBJ file.
+     */
+    public static TriangleMesh load(Path path, Material material) {
+        long startTime = System.nanoTime();
+
+        ObjLoader loader;
+        try (InputStream in = Files.newInputStream(path)) {
+            loader = new ObjLoader(in, path);
+            loader.parse();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the OBJ file: " + path, e);
+        }
+
+        TriangleMesh mesh = new TriangleMesh(FloatBuffer.wrap(loader.positions, 0, loader.vertexCount * 3),
+                loader.indices, loader.triangleCount, material);
+
+        float loadTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("Loaded %s in %.2f ms: %d vertices, %d triangles.%n",
+                path.getFileName(), loadTime, loader.vertexCount, loader.triangleCount);
+        return mesh;
+    }
+
+    private void parse() throws IOException {
+        int c;
+        while ((c = next()) != -1) {
+            if (c == ' ' || c == '\t' || c == '\r') continue;
+            if (c == '\n') {
+                line++;
+                continue;
+            }
+
+            // The keyword should be followed by a blank, or it's another one, like vt or vn.
+            int following = peek();
+            boolean blank = following == ' ' || following == '\t';
+            if (c == 'v' && blank)
+                parseVertex();
+            else if (c == 'f' && blank)
+                parseFace();
+            skipLine();
+        }
+    }
+
+    private void parseVertex() throws IOException {
+        if (vertexCount * 3 + 3 > positions.length)
+            positions = Arrays.copyOf(positions, grow(positions.length));
+
+        // A fourth coordinate (w) is left to skipLine().
+        int i = vertexCount * 3;
+        positions[i] = parseFloat();
+        positions[i + 1] = parseFloat();
+        positions[i + 2] = parseFloat();
+        vertexCount++;
+    }
+
+    private void parseFace() throws IOException {
+        int first = -1, previous = -1, count = 0;
+        while (true) {
+            skipBlanks();
+            int c = peek();
+            if (c == -1 || c == '\n' || c == '\r' || c == '#') break;
+
+            int vertex = resolveIndex(parseInt());
+            // Skip the texture coordinate and normal indices, e.g. "/2/3".
+            while ((c = peek()) != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                position++;
+
+            if (count == 0) {
+                first = vertex;
+            } else if (count >= 2) {
+                if (triangleCount * 3 + 3 > indices.length)
+                    indices = Arrays.copyOf(indices, grow(indices.length));
+
+                int i = triangleCount * 3;
+                indices[i] = first;
+                indices[i + 1] = previous;
+                indices[i + 2] = vertex;
+                triangleCount++;
+            }
+            previous = vertex;
+            count++;
+        }
+
+        if (count < 3)
+            throw error("A face should have at least 3 vertices.");
+    }
+
+    /**
+     * Turn an OBJ index, which starts at 1 or counts back from the last vertex if it's negative, into an array index.
+     */
+    private int resolveIndex(int index) {
+        if (index > 0) return index - 1;
+        if (index < 0 && vertexCount + index >= 0) return vertexCount + index;
+        throw error("Invalid vertex index " + index + ".");
+    }
+
+    private int parseInt() throws IOException {
+        boolean negative = false;
+        int c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            position++;
+        }
+
+        if (!isDigit(peek()))
+            throw error("Expected an integer.");
+
+        long value = 0;
+        while (isDigit(c = peek())) {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE)
+                throw error("The integer is too large.");
+            position++;
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Parse a decimal number like {@code -1.25e-3}. The first 18 significant digits are collected in a long and scaled
+     * by a power of ten in double precision, which is exact enough for a float.
+     */
+    private float parseFloat() throws IOException {
+        skipBlanks();
+
+        boolean negative = false;
+        int c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            position++;
+        }
+
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean hasDigits = false;
+        while (isDigit(c = peek())) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            hasDigits = true;
+            position++;
+        }
+        if (c == '.') {
+            position++;
+            while (isDigit(c = peek())) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                hasDigits = true;
+                position++;
+            }
+        }
+        if (!hasDigits)
+            throw error("Expected a number.");
+
+        if (c == 'e' || c == 'E') {
+            position++;
+            exponent += parseInt();
+        }
+
+        double value = mantissa;
+        if (exponent != 0) {
+            int absExponent = Math.abs(exponent);
+            double scale = absExponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[absExponent] : Math.pow(10, absExponent);
+            value = exponent > 0 ? value * scale : value / scale;
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void skipBlanks() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\t')
+            position++;
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = next()) != -1) {
+            if (c == '\n') {
+                line++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The next byte without consuming it, or -1 at the end of the file.
+     */
+    private int peek() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position] & 0xFF;
+    }
+
+    /**
+     * @return The next byte, or -1 at the end of the file.
+     */
+    private int next() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer);
+        if (read <= 0) return false;
+
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private static int grow(int length) {
+        // Grow by half, so the unused tail of an array is at most a third of it.
+        long newLength = length + (length >> 1);
+        if (newLength > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("The mesh is too large to load.");
+        return (int) newLength;
+    }
+
+    private RuntimeException error(String message) {
+        return new RuntimeException("Failed to parse the OBJ file " + path + " at line " + line + ": " + message);
+    }
+}
@@ -0,0 +1,385 @@
+package net.bowen.draw.models.raytrace.mesh;
+
+import net.bowen.draw.materials.Material;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads binary little-endian PLY files into {@link TriangleMesh}es. The elements are memory-mapped and read with
+ * absolute gets, so nothing is allocated per vertex or face, and the file is never read through a stream.
+ * <p>
+ * If the vertices are just the floats x, y and z, the positions of the mesh are a view of the mapped file, so they
+ * aren't copied on the heap and are uploaded to the GPU straight from the mapping. Otherwise, they're converted to a
+ * float array. Faces with more than 3 vertices are split into triangle fans. Other properties and elements are skipped.
+ */
+public final class PlyLoader {
+    /**
+     * The longest header line that is accepted.
+     */
+    private static final int MAX_HEADER_LINE = 4096;
+
+    private enum Type {
+        INT8(1), UINT8(1), INT16(2), UINT16(2), INT32(4), UINT32(4), FLOAT32(4), FLOAT64(8);
+
+        final int bytes;
+
+        Type(int bytes) {
+            this.bytes = bytes;
+        }
+
+        static Type of(String name) {
+            return switch (name) {
+                case "char", "int8" -> INT8;
+                case "uchar", "uint8" -> UINT8;
+                case "short", "int16" -> INT16;
+                case "ushort", "uint16" -> UINT16;
+                case "int", "int32" -> INT32;
+                case "uint", "uint32" -> UINT32;
+                case "float", "float32" -> FLOAT32;
+                case "double", "float64" -> FLOAT64;
+                default -> null;
+            };
+        }
+
+        double readDouble(ByteBuffer buffer, int index) {
+            return switch (this) {
+                case FLOAT32 -> buffer.getFloat(index);
+                case FLOAT64 -> buffer.getDouble(index);
+                default -> readLong(buffer, index);
+            };
+        }
+
+        long readLong(ByteBuffer buffer, int index) {
+            return switch (this) {
+                case INT8 -> buffer.get(index);
+                case UINT8 -> buffer.get(index) & 0xFF;
+                case INT16 -> buffer.getShort(index);
+                case UINT16 -> buffer.getShort(index) & 0xFFFF;
+                case INT32 -> buffer.getInt(index);
+                case UINT32 -> buffer.getInt(index) & 0xFFFFFFFFL;
+                case FLOAT32 -> (long) buffer.getFloat(index);
+                case FLOAT64 -> (long) buffer.getDouble(index);
+            };
+        }
+    }
+
+    /**
+     * @param countType the type of the item count of a list property. It's null if the property isn't a list.
+     */
+    private record Property(String name, Type type, Type countType) {
+    }
+
+    private record Element(String name, long count, List<Property> properties) {
+        /**
+         * @return The size of an element in bytes, or -1 if it has a list, in which case the size varies.
+         */
+        int stride() {
+            int stride = 0;
+            for (Property property : properties) {
+                if (property.countType != null) return -1;
+                stride += property.type.bytes;
+            }
+            return stride;
+        }
+
+        int indexOf(String propertyName) {
+            for (int i = 0; i < properties.size(); i++) {
+                if (properties.get(i).name.equals(propertyName)) return i;
+            }
+            return -1;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+
+    private FloatBuffer positions;
+    private int vertexCount;
+    private int[] indices;
+    private int triangleCount;
+
+    private PlyLoader(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * @throws RuntimeException if the file can't be read or isn't a valid binary little-endian PLY file.
+     */
+    public static TriangleMesh load(Path path, Material material) {
+        long startTime = System.nanoTime();
+
+        PlyLoader loader;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mappings stay valid after the channel is closed.
+            loader = new PlyLoader(path, channel);
+            loader.read();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the PLY file: " + path, e);
+        }
+
+        TriangleMesh mesh = new TriangleMesh(loader.positions, loader.indices, loader.triangleCount, material);
+
+        float loadTime = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("Loaded %s in %.2f ms: %d vertices, %d triangles%s.%n", path.getFileName(), loadTime,
+                loader.vertexCount, loader.triangleCount, loader.positions.isDirect() ? ", positions mapped" : "");
+        return mesh;
+    }
+
+    private void read() throws IOException {
+        List<Element> elements = new ArrayList<>();
+        long position = readHeader(elements);
+
+        for (Element element : elements) {
+            // An element is mapped on its own, so the file can be larger than a mapping can be.
+            long length = Math.min(channel.size() - position, Integer.MAX_VALUE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            int elementBytes = switch (element.name) {
+                case "vertex" -> readVertices(element, map);
+                case "face" -> readFaces(element, map);
+                default -> skip(element, map);
+            };
+            position += elementBytes;
+        }
+
+        if (positions == null)
+            throw error("There's no vertex element.");
+        if (indices == null)
+            throw error("There's no face element.");
+    }
+
+    /**
+     * Read the header lines up to {@code end_header}.
+     *
+     * @return The position of the first element in the file.
+     */
+    private long readHeader(List<Element> elements) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_LINE);
+        long position = 0;
+        boolean first = true, hasFormat = false;
+        while (true) {
+            // Read a line. A header is small, so it's read a line at a time without a mapping.
+            buffer.clear().limit((int) Math.min(MAX_HEADER_LINE, channel.size() - position));
+            channel.read(buffer, position);
+            int end = -1;
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end == -1)
+                throw error("The header is not terminated by end_header.");
+
+            String line = new String(buffer.array(), 0, end, StandardCharsets.US_ASCII).strip();
+            position += end + 1;
+
+            if (first) {
+                if (!line.equals("ply")) throw error("It's not a PLY file.");
+                first = false;
+                continue;
+            }
+
+            String[] tokens = line.split("\\s+");
+            switch (tokens[0]) {
+                case "format" -> {
+                    if (tokens.length < 2 || !tokens[1].equals("binary_little_endian"))
+                        throw error("Only binary little-endian PLY files are supported, but the format is " +
+                                (tokens.length < 2 ? "missing" : tokens[1]) + ".");
+                    hasFormat = true;
+                }
+                case "element" -> {
+                    if (tokens.length < 3) throw error("Invalid element line: " + line);
+                    elements.add(new Element(tokens[1], parseCount(tokens[2]), new ArrayList<>()));
+                }
+                case "property" -> {
+                    if (elements.isEmpty()) throw error("A property is declared before any element.");
+                    elements.get(elements.size() - 1).properties.add(parseProperty(tokens, line));
+                }
+                case "end_header" -> {
+                    if (!hasFormat) throw error("The format is missing.");
+                    return position;
+                }
+                // Comments, obj_info and empty lines.
+                default -> {
+                }
+            }
+        }
+    }
+
+    private long parseCount(String token) {
+        try {
+            long count = Long.parseLong(token);
+            if (count < 0) throw error("Negative element count: " + count);
+            return count;
+        } catch (NumberFormatException e) {
+            throw error("Invalid element count: " + token);
+        }
+    }
+
+    private Property parseProperty(String[] tokens, String line) {
+        if (tokens.length >= 5 && tokens[1].equals("list")) {
+            Type countType = Type.of(tokens[2]), type = Type.of(tokens[3]);
+            if (countType == null || type == null) throw error("Invalid property: " + line);
+            return new Property(tokens[4], type, countType);
+        }
+        if (tokens.length < 3) throw error("Invalid property: " + line);
+        Type type = Type.of(tokens[1]);
+        if (type == null) throw error("Invalid property: " + line);
+        return new Property(tokens[2], type, null);
+    }
+
+    /**
+     * @return The size of the vertex element in bytes.
+     */
+    private int readVertices(Element element, ByteBuffer map) {
+        int stride = element.stride();
+        if (stride == -1)
+            throw error("List properties of vertices are not supported.");
+        if (element.count * 3 > Integer.MAX_VALUE - 8)
+            throw error("Too many vertices: " + element.count);
+        long bytes = element.count * stride;
+        if (bytes > map.capacity())
+            throw error("The vertex element is truncated or too large to be mapped.");
+
+        int x = element.indexOf("x"), y = element.indexOf("y"), z = element.indexOf("z");
+        if (x == -1 || y == -1 || z == -1)
+            throw error("The vertices have no x, y or z.");
+
+        vertexCount = (int) element.count;
+        List<Property> properties = element.properties;
+        if (x == 0 && y == 1 && z == 2 && properties.size() == 3 && properties.get(0).type == Type.FLOAT32 &&
+                properties.get(1).type == Type.FLOAT32 && properties.get(2).type == Type.FLOAT32) {
+            // The layout is what the vertex SSBO takes, so the mapping is used as the positions.
+            positions = map.slice(0, (int) bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            return (int) bytes;
+        }
+
+        int[] offsets = new int[properties.size()];
+        for (int i = 1; i < offsets.length; i++)
+            offsets[i] = offsets[i - 1] + properties.get(i - 1).type.bytes;
+        Type xType = properties.get(x).type, yType = properties.get(y).type, zType = properties.get(z).type;
+
+        float[] array = new float[vertexCount * 3];
+        for (int i = 0, base = 0; i < vertexCount; i++, base += stride) {
+            array[i * 3] = (float) xType.readDouble(map, base + offsets[x]);
+            array[i * 3 + 1] = (float) yType.readDouble(map, base + offsets[y]);
+            array[i * 3 + 2] = (float) zType.readDouble(map, base + offsets[z]);
+        }
+        positions = FloatBuffer.wrap(array);
+        return (int) bytes;
+    }
+
+    /**
+     * @return The size of the face element in bytes.
+     */
+    private int readFaces(Element element, ByteBuffer map) {
+        int listIndex = element.indexOf("vertex_indices");
+        if (listIndex == -1) listIndex = element.indexOf("vertex_index");
+        if (listIndex == -1 || element.properties.get(listIndex).countType == null)
+            throw error("The faces have no vertex_indices list.");
+        if (element.count * 3 > Integer.MAX_VALUE - 8)
+            throw error("Too many faces: " + element.count);
+
+        // Most meshes are made of triangles, so the indices usually fit without growing.
+        indices = new int[(int) element.count * 3];
+        List<Property> properties = element.properties;
+        int position = 0;
+        for (long face = 0; face < element.count; face++) {
+            for (int p = 0; p < properties.size(); p++) {
+                Property property = properties.get(p);
+                if (property.countType == null) {
+                    position += property.type.bytes;
+                    continue;
+                }
+
+                if (position + property.countType.bytes > map.capacity())
+                    throw error("Face " + face + " is truncated.");
+                long count = property.countType.readLong(map, position);
+                position += property.countType.bytes;
+                long bytes = count * property.type.bytes;
+                if (count < 0 || position + bytes > map.capacity())
+                    throw error("Face " + face + " is truncated or invalid.");
+
+                if (p == listIndex) {
+                    if (count < 3)
+                        throw error("Face " + face + " has less than 3 vertices.");
+                    addFace(property.type, map, position, (int) count);
+                }
+                position += (int) bytes;
+            }
+            if (position > map.capacity())
+                throw error("Face " + face + " is truncated.");
+        }
+        return position;
+    }
+
+    private void addFace(Type type, ByteBuffer map, int position, int count) {
+        int first = (int) type.readLong(map, position);
+        int previous = (int) type.readLong(map, position + type.bytes);
+        for (int i = 2; i < count; i++) {
+            int vertex = (int) type.readLong(map, position + i * type.bytes);
+            if (triangleCount * 3 + 3 > indices.length) {
+                long newLength = indices.length + (indices.length >> 1) + 3;
+                if (newLength > Integer.MAX_VALUE - 8)
+                    throw error("The mesh is too large to load.");
+                indices = Arrays.copyOf(indices, (int) newLength);
+            }
+
+            int index = triangleCount * 3;
+            indices[index] = first;
+            indices[index + 1] = previous;
+            indices[index + 2] = vertex;
+            triangleCount++;
+            previous = vertex;
+        }
+    }
+
+    /**
+     * @return The size of the element in bytes.
+     */
+    private int skip(Element element, ByteBuffer map) {
+        int stride = element.stride();
+        if (stride != -1) {
+            long bytes = element.count * stride;
+            if (bytes > map.capacity())
+                throw error("The " + element.name + " element is truncated or too large to be mapped.");
+            return (int) bytes;
+        }
+
+        long position = 0;
+        for (long i = 0; i < element.count; i++) {
+            for (Property property : element.properties) {
+                if (property.countType == null) {
+                    position += property.type.bytes;
+                } else {
+                    if (position + property.countType.bytes > map.capacity())
+                        throw error("The " + element.name + " element is truncated.");
+                    long count = property.countType.readLong(map, (int) position);
+                    position += property.countType.bytes + count * property.type.bytes;
+                }
+                if (position > map.capacity())
+                    throw error("The " + element.name + " element is truncated.");
+            }
+        }
+        return (int) position;
+    }
+
+    private RuntimeException error(String message) {
+        return new RuntimeException("Failed to load the PLY file " + path + ": " + message);
+    }
+}
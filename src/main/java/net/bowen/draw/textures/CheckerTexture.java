@@ -1,6 +1,8 @@
 package net.bowen.draw.textures;
 
-import org.lwjgl.system.MemoryUtil;
+import net.bowen.system.RenderBackend;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
 
 import java.awt.*;
 import java.nio.ByteBuffer;
@@ -9,48 +11,49 @@ import java.util.List;
 
 import static org.lwjgl.opengl.GL43.*;
 
+/**
+ * The checkerboards of a scene, 3 texels each. A scene has one if any of its materials is a checkerboard. See
+ * {@link net.bowen.draw.models.raytrace.SceneBuilder#getCheckerTexture()}.
+ */
 public class CheckerTexture extends Texture {
-    private static final List<Color> COLOR1 = new ArrayList<>();
-    private static final List<Color> COLOR2 = new ArrayList<>();
-    private static final List<Float> SCALES = new ArrayList<>();
-    private static CheckerTexture texture;
-    private static int textureIndex;
+    private final List<Color> color1 = new ArrayList<>();
+    private final List<Color> color2 = new ArrayList<>();
+    private final List<Float> scales = new ArrayList<>();
 
-    private CheckerTexture() {
+    public CheckerTexture() {
         super(GL_RGB8, GL_RGB, GL_UNSIGNED_BYTE);
     }
 
-    public static void init() {
-        texture = new CheckerTexture();
-        texturesInComputeAdd(texture);
-        textureIndex = TEXTURES_IN_COMPUTE.indexOf(texture);
-    }
-
     /**
      * Register a checkerboard data set into the checkerboards' public texture. Note that the scale value will only be
      * 1 byte in precision.
      */
-    public static int registerColor(float r1, float g1, float b1, float r2, float g2, float b2, float scale) {
+    public int registerColor(float r1, float g1, float b1, float r2, float g2, float b2, float scale) {
         return registerColor(new Color(r1, g1, b1), new Color(r2, g2, b2), scale);
     }
 
-    public static int registerColor(Color color1, Color color2, float scale) {
-        COLOR1.add(color1);
-        COLOR2.add(color2);
-        SCALES.add(scale);
+    public int registerColor(Color color1, Color color2, float scale) {
+        this.color1.add(color1);
+        this.color2.add(color2);
+        scales.add(scale);
 
-        int detail = COLOR1.size() - 1; // detail is the index in the texture
-        return getValue(CHECKER, textureIndex, detail);
+        int detail = this.color1.size() - 1; // detail is the index in the texture
+        return getValue(detail);
     }
 
-    public static void putDataToTexture() {
-        if (texture == null) throw new IllegalStateException("CheckerTexture not initialized.");
+    /**
+     * Set the registered checkerboards as the data of the texture. It's uploaded by {@link #upload()}, so it can be called
+     * off the GL thread.
+     */
+    public void putDataToTexture() {
+        // The CPU backend reads the registered colors directly.
+        if (!RenderBackend.usesGL()) return;
 
-        ByteBuffer buffer = MemoryUtil.memAlloc(COLOR1.size() * 12);
-        for (int i = 0; i < COLOR1.size(); i++) {
-            Color color1 = COLOR1.get(i);
-            Color color2 = COLOR2.get(i);
-            float scale = SCALES.get(i);
+        ByteBuffer buffer = BufferUtils.createByteBuffer(color1.size() * 12);
+        for (int i = 0; i < color1.size(); i++) {
+            Color color1 = this.color1.get(i);
+            Color color2 = this.color2.get(i);
+            float scale = scales.get(i);
 
             buffer.put((byte) (color1.getRed()));
             buffer.put((byte) (color1.getGreen()));
@@ -66,12 +69,27 @@ public class CheckerTexture extends Texture {
         }
 
         buffer.flip();
-        texture.putData(COLOR1.size() * 3, 1, buffer);
-        MemoryUtil.memFree(buffer);
+        setData(color1.size() * 3, 1, buffer);
     }
 
     @Override
     protected int getTextureTypeId() {
         return CHECKER;
     }
+
+    @Override
+    public void sample(Vector3f p, float u, float v, int detail, Vector3f dest) {
+        // The detail is the index of the checkerboard data set. The scale is only 1 byte in precision, just like what
+        // the shader reads from the texture.
+        float scale = ((int) (scales.get(detail) * 255) & 0xFF) / 255f;
+        float invScale = 1f / scale;
+
+        int ix = (int) (p.x * invScale);
+        int iy = (int) (p.y * invScale);
+        int iz = (int) (p.z * invScale);
+        boolean isEven = (ix + iy + iz) % 2 == 0;
+
+        Color color = isEven ? color1.get(detail) : color2.get(detail);
+        dest.set(color.getRed(), color.getGreen(), color.getBlue()).div(255f);
+    }
 }
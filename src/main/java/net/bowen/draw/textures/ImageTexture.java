@@ -1,5 +1,6 @@
 package net.bowen.draw.textures;
 
+import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 
 import javax.imageio.ImageIO;
@@ -11,8 +12,16 @@ import java.nio.ByteBuffer;
 import static org.lwjgl.opengl.GL43.*;
 
 public class ImageTexture extends Texture {
+    /**
+     * The unsigned byte pixel data. It's kept for sampling on the CPU.
+     */
+    private final ByteBuffer data;
+    private final int channels;
+
     public ImageTexture(int width, int height, int internalFormat, int format, int type, ByteBuffer data) {
         super(width, height, internalFormat, format, type, data);
+        this.data = data;
+        this.channels = format == GL_RGBA ? 4 : 3;
     }
 
     public static ImageTexture create(String resourcePath) {
@@ -82,10 +91,7 @@ public class ImageTexture extends Texture {
             }
 
             // Return a new Texture object with the image's data
-            ImageTexture instance = new ImageTexture(imgWidth, imgHeight, format, format, GL_UNSIGNED_BYTE, shiftedBuffer);
-            texturesInComputeAdd(instance);
-
-            return instance;
+            return new ImageTexture(imgWidth, imgHeight, format, format, GL_UNSIGNED_BYTE, shiftedBuffer);
         } catch (IOException e) {
             throw new RuntimeException("Failed to load image: " + resourcePath, e);
         }
@@ -95,4 +101,33 @@ public class ImageTexture extends Texture {
     protected int getTextureTypeId() {
         return IMAGE;
     }
+
+    @Override
+    public void sample(Vector3f p, float u, float v, int detail, Vector3f dest) {
+        // Bilinear filtering with clamp to edge, which is what the GL texture is set to.
+        int width = getWidth();
+        int height = getHeight();
+        float x = u * width - 0.5f;
+        float y = v * height - 0.5f;
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        float fx = x - x0;
+        float fy = y - y0;
+
+        float r = 0, g = 0, b = 0;
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 2; i++) {
+                int px = Math.min(Math.max(x0 + i, 0), width - 1);
+                int py = Math.min(Math.max(y0 + j, 0), height - 1);
+                float weight = (i == 0 ? 1 - fx : fx) * (j == 0 ? 1 - fy : fy);
+
+                int index = (py * width + px) * channels;
+                r += weight * (data.get(index) & 0xFF);
+                g += weight * (data.get(index + 1) & 0xFF);
+                b += weight * (data.get(index + 2) & 0xFF);
+            }
+        }
+
+        dest.set(r, g, b).div(255f);
+    }
 }
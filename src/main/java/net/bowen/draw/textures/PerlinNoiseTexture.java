@@ -1,7 +1,8 @@
 package net.bowen.draw.textures;
 
+import net.bowen.system.RenderBackend;
 import org.joml.Vector3f;
-import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.BufferUtils;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -37,10 +38,12 @@ public class PerlinNoiseTexture extends Texture {
     private static final int POINT_COUNT = 256;
 
     private final float scale;
+    private final Noise noise;
 
-    private PerlinNoiseTexture(ByteBuffer data, float scale) {
+    private PerlinNoiseTexture(ByteBuffer data, float scale, Noise noise) {
         super(6, POINT_COUNT, GL_R32F, GL_RED, GL_FLOAT, data);
         this.scale = scale;
+        this.noise = noise;
     }
 
     @Override
@@ -57,24 +60,34 @@ public class PerlinNoiseTexture extends Texture {
     }
 
     public static PerlinNoiseTexture create(float scale) {
-        ByteBuffer data = MemoryUtil.memAlloc(6 * POINT_COUNT * Float.BYTES);
-
         Noise noise = new Noise();
-        for (int i = 0; i < POINT_COUNT; i++) {
-            data.putFloat(noise.randomVectors[i].x);
-            data.putFloat(noise.randomVectors[i].y);
-            data.putFloat(noise.randomVectors[i].z);
-
-            data.putFloat(noise.permX.get(i));
-            data.putFloat(noise.permY.get(i));
-            data.putFloat(noise.permZ.get(i));
+
+        // The CPU backend samples the noise object directly, so only GL needs the texture data.
+        ByteBuffer data = null;
+        if (RenderBackend.usesGL()) {
+            // It's kept by the texture until it's uploaded, so it's freed by the GC.
+            data = BufferUtils.createByteBuffer(6 * POINT_COUNT * Float.BYTES);
+            for (int i = 0; i < POINT_COUNT; i++) {
+                data.putFloat(noise.randomVectors[i].x);
+                data.putFloat(noise.randomVectors[i].y);
+                data.putFloat(noise.randomVectors[i].z);
+
+                data.putFloat(noise.permX.get(i));
+                data.putFloat(noise.permY.get(i));
+                data.putFloat(noise.permZ.get(i));
+            }
+            data.flip();
         }
-        data.flip();
 
-        PerlinNoiseTexture instance = new PerlinNoiseTexture(data, scale);
-        MemoryUtil.memFree(data);
-        texturesInComputeAdd(instance);
-        return instance;
+        return new PerlinNoiseTexture(data, scale, noise);
+    }
+
+    @Override
+    public void sample(Vector3f p, float u, float v, int detail, Vector3f dest) {
+        // Same as perlin_noise_color() in texture.glsl. The scale is read from the detail bits just like the shader does.
+        float scale = detail / 4095f * 100f;
+        float color = (float) (0.5 * (1 + Math.sin(scale * p.z + 10 * noise.turb(p, 7))));
+        dest.set(color);
     }
 
     private static class Noise {
@@ -104,5 +117,57 @@ public class PerlinNoiseTexture extends Texture {
 
             Collections.shuffle(p, random);
         }
+
+        private float turb(Vector3f p, int depth) {
+            float accum = 0;
+            float weight = 1;
+            float x = p.x, y = p.y, z = p.z;
+
+            for (int i = 0; i < depth; i++) {
+                accum += weight * noise(x, y, z);
+                weight *= 0.5f;
+                x *= 2;
+                y *= 2;
+                z *= 2;
+            }
+
+            return Math.abs(accum);
+        }
+
+        private float noise(float x, float y, float z) {
+            // Same as noise() in texture.glsl, including the hermite smoothing that is applied before the interpolation.
+            float u = (float) (x - Math.floor(x));
+            float v = (float) (y - Math.floor(y));
+            float w = (float) (z - Math.floor(z));
+            u = u * u * (3 - 2 * u);
+            v = v * v * (3 - 2 * v);
+            w = w * w * (3 - 2 * w);
+
+            int i = (int) Math.floor(x);
+            int j = (int) Math.floor(y);
+            int k = (int) Math.floor(z);
+
+            float uu = u * u * (3 - 2 * u);
+            float vv = v * v * (3 - 2 * v);
+            float ww = w * w * (3 - 2 * w);
+            float accum = 0;
+
+            for (int di = 0; di < 2; di++) {
+                for (int dj = 0; dj < 2; dj++) {
+                    for (int dk = 0; dk < 2; dk++) {
+                        int randVecIdx = permX.get((i + di) & 255) ^ permY.get((j + dj) & 255) ^ permZ.get((k + dk) & 255);
+                        Vector3f c = randomVectors[randVecIdx];
+
+                        float dot = c.x * (u - di) + c.y * (v - dj) + c.z * (w - dk);
+                        accum += (di * uu + (1 - di) * (1 - uu))
+                                * (dj * vv + (1 - dj) * (1 - vv))
+                                * (dk * ww + (1 - dk) * (1 - ww))
+                                * dot;
+                    }
+                }
+            }
+
+            return accum;
+        }
     }
 }
@@ -1,6 +1,8 @@
 package net.bowen.draw.textures;
 
-import org.lwjgl.system.MemoryUtil;
+import net.bowen.system.RenderBackend;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
 
 import java.awt.*;
 import java.nio.ByteBuffer;
@@ -9,13 +11,22 @@ import java.util.List;
 
 import static org.lwjgl.opengl.GL11.*;
 
+/**
+ * The solid colors of a scene, one texel each. Each scene has one, which it puts first in its textures. See
+ * {@link net.bowen.draw.models.raytrace.SceneBuilder#getSolidTexture()}.
+ */
 public class SolidTexture extends Texture {
-    private static final List<Color> COLORS = new ArrayList<>();
-    private static SolidTexture texture;
-    private static int textureIndex;
+    /**
+     * The packed value of white. Every solid texture has it as its first color, and it's the first texture of every
+     * scene, so it's the same in all scenes.
+     */
+    public static final int WHITE = getValue(SOLID, 0, 0);
 
-    private SolidTexture() {
+    private final List<Color> colors = new ArrayList<>();
+
+    public SolidTexture() {
         super(GL_RGB8, GL_RGB, GL_UNSIGNED_BYTE);
+        colors.add(Color.WHITE);
     }
 
     @Override
@@ -23,39 +34,43 @@ public class SolidTexture extends Texture {
         return SOLID;
     }
 
-    public static void init() {
-        texture = new SolidTexture();
-        texturesInComputeAdd(texture);
-
-        textureIndex = TEXTURES_IN_COMPUTE.indexOf(texture);
-    }
-
-    public static int registerColor(float r, float g, float b) {
+    public int registerColor(float r, float g, float b) {
         return registerColor(new Color(r, g, b));
     }
 
-    public static int registerColor(net.bowen.draw.Color color) {
+    public int registerColor(net.bowen.draw.Color color) {
         return registerColor(color.getAWTColor());
     }
 
-    public static int registerColor(Color color) {
-        COLORS.add(color);
-        int detail = COLORS.size() - 1; // detail is the index in the texture
-        return getValue(SOLID, textureIndex, detail);
+    public int registerColor(Color color) {
+        colors.add(color);
+        int detail = colors.size() - 1; // detail is the index in the texture
+        return getValue(detail);
     }
 
-    public static void putDataToTexture() {
-        if (texture == null) throw new IllegalStateException("SolidTexture not initialized.");
+    /**
+     * Set the registered colors as the data of the texture. It's uploaded by {@link #upload()}, so it can be called
+     * off the GL thread.
+     */
+    public void putDataToTexture() {
+        // The CPU backend reads the registered colors directly.
+        if (!RenderBackend.usesGL()) return;
 
-        ByteBuffer buffer = MemoryUtil.memAlloc(COLORS.size() * 3);
-        for (Color color : COLORS) {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(colors.size() * 3);
+        for (Color color : colors) {
             buffer.put((byte) color.getRed());
             buffer.put((byte) color.getGreen());
             buffer.put((byte) color.getBlue());
         }
 
         buffer.flip();
-        texture.putData(COLORS.size(), 1, buffer);
-        MemoryUtil.memFree(buffer);
+        setData(colors.size(), 1, buffer);
+    }
+
+    @Override
+    public void sample(Vector3f p, float u, float v, int detail, Vector3f dest) {
+        // The detail is the index of the color.
+        Color color = colors.get(detail);
+        dest.set(color.getRed(), color.getGreen(), color.getBlue()).div(255f);
     }
 }
@@ -1,7 +1,9 @@
 package net.bowen.draw.textures;
 
+import net.bowen.draw.models.raytrace.SceneBuilder;
 import net.bowen.system.Deleteable;
-import net.bowen.system.ShaderProgram;
+import net.bowen.system.RenderBackend;
+import org.joml.Vector3f;
 import org.lwjgl.opengl.GL43;
 import org.lwjgl.system.MemoryUtil;
 
@@ -10,8 +12,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.ArrayList;
 import java.util.List;
 
 import static org.lwjgl.opengl.GL43.*;
@@ -24,18 +24,33 @@ public class Texture extends Deleteable {
     public static final int SOLID = 4;
 
     /**
-     * The list of textures used in the raytrace compute shader.
+     * The index in the textures of the scene, which is the index in the texture array of the compute shader. It's set
+     * when a material of the texture is added to a scene, and -1 before that.
      */
-    public static final List<Texture> TEXTURES_IN_COMPUTE = new ArrayList<>();
+    public int indexInList = -1;
+    /**
+     * The scene the texture has been added to, or null. The index is only valid in that scene, so a texture can't be
+     * added to another one.
+     */
+    public SceneBuilder owner;
 
-    private final int textureID;
+    /**
+     * The GL texture. It's 0 until the texture is first uploaded, so a texture can be created off the GL thread.
+     */
+    private int textureID;
+    /**
+     * The data to upload when the texture is next uploaded. It can be null, which only allocates the storage.
+     */
+    private ByteBuffer pendingData;
+    private boolean hasPendingData;
     private final int internalFormat;
     private final int format;
     private final int type;
     private int width = -1, height = -1;
 
     /**
-     * Create a texture with initial data.
+     * Create a texture with initial data. The data is kept until the texture is first uploaded, which is when it's
+     * first bound, unless {@link #upload()} is called earlier.
      *
      * @param width          the width of the texture
      * @param height         the height of the texture
@@ -47,10 +62,7 @@ public class Texture extends Deleteable {
      */
     public Texture(int width, int height, int internalFormat, int format, int type, ByteBuffer data) {
         this(internalFormat, format, type);
-        this.width = width;
-        this.height = height;
-
-        putData(data);
+        setData(width, height, data);
     }
 
     /**
@@ -65,10 +77,13 @@ public class Texture extends Deleteable {
         this.internalFormat = internalFormat;
         this.format = format;
         this.type = type;
+    }
+
+    private void create() {
         textureID = glGenTextures();
 
         // Bind the texture to set its parameters
-        bind();
+        glBindTexture(GL_TEXTURE_2D, textureID);
 
         // Set texture parameters
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
@@ -82,6 +97,8 @@ public class Texture extends Deleteable {
 
     @Override
     public void delete() {
+        if (textureID == 0) return;
+
         glDeleteTextures(textureID);
         System.out.println("Texture(" + textureID + ") deleted.");
     }
@@ -123,11 +140,8 @@ public class Texture extends Deleteable {
         if (width == -1 || height == -1)
             throw new IllegalStateException("Texture size not set.");
 
-        bind();
-        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, data);
-    }
+        if (!RenderBackend.usesGL()) return;
 
-    public void putData(int width, int height, ByteBuffer data) {
         bind();
         glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, data);
     }
@@ -139,8 +153,34 @@ public class Texture extends Deleteable {
         this.height = height;
     }
 
-    // Binds this texture to the active texture unit
+    /**
+     * Set the data to upload, and the size of the texture. Unlike {@link #putData(ByteBuffer)}, nothing is uploaded
+     * until {@link #upload()} is called, so it can be called off the GL thread. The buffer should be kept until then.
+     */
+    protected void setData(int width, int height, ByteBuffer data) {
+        this.width = width;
+        this.height = height;
+        pendingData = data;
+        hasPendingData = true;
+    }
+
+    /**
+     * Create the GL texture if it hasn't been, and upload the data set since the last upload. It should be called on
+     * the GL thread.
+     */
+    public void upload() {
+        if (textureID == 0) create();
+        if (!hasPendingData) return;
+
+        glBindTexture(GL_TEXTURE_2D, textureID);
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, pendingData);
+        pendingData = null;
+        hasPendingData = false;
+    }
+
+    // Binds this texture to the active texture unit. The pending data is uploaded first.
     public void bind() {
+        upload();
         glBindTexture(GL_TEXTURE_2D, textureID);
     }
 
@@ -151,6 +191,7 @@ public class Texture extends Deleteable {
 
     // Binds this texture as an image texture for compute shaders
     public void bindAsImage(int unit, int access, int internalFormat) {
+        upload();
         glBindImageTexture(unit, textureID, 0, false, 0, access, internalFormat);
     }
 
@@ -168,24 +209,31 @@ public class Texture extends Deleteable {
      * - The upper 4 bits store the texture type.
      * </p>
      * <p>
-     * - The middle 16 bits store the index in {@link #TEXTURES_IN_COMPUTE}. It will then be the index to the texture array uniform in the compute shader.
+     * - The middle 16 bits store the index in the textures of the scene. It will then be the index to the texture array uniform in the compute shader.
      * </p>
      * <p>
      * - The lower 16 bits store some detail float value. Some of the texture types use it.
      * </p>
      *
-     * @return the id of the texture in {@link #TEXTURES_IN_COMPUTE} list.
+     * @return the packed value of the texture.
+     * @throws IllegalStateException if the texture hasn't been added to a scene.
      */
     public int getValue() {
-        // Get the real values.
-        int index = TEXTURES_IN_COMPUTE.indexOf(this);
-        if (index == -1)
-            throw new IllegalStateException("Texture not found in TEXTURES list.");
+        return getValue(getTextureTypeId(), getIndexInScene(), getDetail());
+    }
 
-        int textureType = getTextureTypeId();
-        float detail = getDetail();
+    /**
+     * @return The packed value of the texture with the detail in the lower 12 bits as it is, like the index of a color.
+     * @throws IllegalStateException if the texture hasn't been added to a scene.
+     */
+    protected int getValue(int detail) {
+        return getValue(getTextureTypeId(), getIndexInScene(), detail);
+    }
 
-        return getValue(textureType, index, detail);
+    private int getIndexInScene() {
+        if (indexInList == -1)
+            throw new IllegalStateException("Texture has not been added to a scene.");
+        return indexInList;
     }
 
     protected int getTextureTypeId() {
@@ -196,6 +244,33 @@ public class Texture extends Deleteable {
         return 0;
     }
 
+    /**
+     * Sample the color of this texture on the CPU. This is what texture_color() in texture.glsl does for each texture
+     * type.
+     *
+     * @param p      the hit point.
+     * @param u      the u texture coordinate.
+     * @param v      the v texture coordinate.
+     * @param detail the lower 12 bits of the packed value. See {@link #getValue()}.
+     * @param dest   will hold the sampled color.
+     */
+    public void sample(Vector3f p, float u, float v, int detail, Vector3f dest) {
+        dest.set(0);
+    }
+
+    /**
+     * Sample the color of the texture described by a packed value on the CPU.
+     *
+     * @param textures the textures of the scene.
+     * @see #getValue()
+     * @see #sample(Vector3f, float, float, int, Vector3f)
+     */
+    public static void sample(List<Texture> textures, int packedValue, Vector3f p, float u, float v, Vector3f dest) {
+        int detail = packedValue & 0xFFF;
+        int index = (packedValue >> 12) & 0xFFFF;
+        textures.get(index).sample(p, u, v, detail, dest);
+    }
+
     public static void active(int unit) {
         glActiveTexture(GL_TEXTURE0 + unit);
     }
@@ -227,29 +302,4 @@ public class Texture extends Deleteable {
         // - Leave detail in the lower 12 bits (0th to 11th bits)
         return (textureType << 28) | (index << 12) | (detail & 0xFFF);
     }
-
-    /**
-     * Add texture to {@link #TEXTURES_IN_COMPUTE}, the list which stores the textures used in the compute shader.
-     */
-    public static void texturesInComputeAdd(Texture texture) {
-        TEXTURES_IN_COMPUTE.add(texture);
-    }
-
-    public static void putTextureIndices(ShaderProgram program) {
-        IntBuffer buffer = MemoryUtil.memAllocInt(TEXTURES_IN_COMPUTE.size());
-        for (int i = 0; i < TEXTURES_IN_COMPUTE.size(); i++)
-            buffer.put(i);
-
-        buffer.flip();
-
-        program.setUniform1iv("textures", buffer);
-        MemoryUtil.memFree(buffer);
-    }
-
-    public static void bindTexturesInCompute() {
-        for (Texture texture : TEXTURES_IN_COMPUTE) {
-            active(TEXTURES_IN_COMPUTE.indexOf(texture));
-            texture.bind();
-        }
-    }
 }
@@ -63,7 +63,7 @@ public class GuiRenderer implements GuiLayer {
 
     public void maxDepthUpdate() {
         // Send the count to the shader.
-        window.computeProgram.setUniform1iv("max_depth", maxDepth);
+        raytraceExecutor.setMaxDepth(maxDepth[0]);
         raytraceExecutor.resetCompleteState();
     }
 
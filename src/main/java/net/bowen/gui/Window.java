@@ -6,11 +6,13 @@ import imgui.gl3.ImGuiImplGl3;
 import imgui.glfw.ImGuiImplGlfw;
 import net.bowen.draw.Scene;
 import net.bowen.draw.models.rasterization.Quad;
+import net.bowen.draw.models.raytrace.SceneSettings;
 import net.bowen.draw.textures.Texture;
 import net.bowen.system.Deleteable;
 import net.bowen.system.RaytraceExecutor;
 import net.bowen.system.Shader;
 import net.bowen.system.ShaderProgram;
+import net.bowen.system.StartupPhases;
 import org.lwjgl.Version;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
@@ -21,6 +23,8 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
@@ -29,7 +33,6 @@ import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER_SRGB;
 import static org.lwjgl.opengl.GL30.GL_RGBA32F;
-import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 
@@ -37,6 +40,7 @@ public class Window {
     private final String title;
     private String outputFile;
     private final int sceneId;
+    private final SceneSettings sceneSettings;
     private final ImGuiImplGlfw imGuiGlfw = new ImGuiImplGlfw();
     private final ImGuiImplGl3 imGuiGl3 = new ImGuiImplGl3();
 
@@ -48,13 +52,15 @@ public class Window {
     private RaytraceExecutor raytraceExecutor;
     private Scene scene;
 
-    ShaderProgram screenQuadProgram, computeProgram;
+    ShaderProgram screenQuadProgram;
 
-    public Window(String title, int sceneId, int width, int height, int samplePerPixel, int maxDepth, String outputFile) {
+    public Window(String title, int sceneId, int width, int height, int samplePerPixel, int maxDepth, String outputFile,
+                  SceneSettings sceneSettings) {
         this.title = title;
         this.width = width;
         this.height = height;
         this.sceneId = sceneId;
+        this.sceneSettings = sceneSettings;
         this.outputFile = outputFile;
 
         System.out.println("LWJGL version: " + Version.getVersion());
@@ -73,12 +79,20 @@ public class Window {
 
         System.out.println("Working directory: " + System.getProperty("user.dir"));
 
-        initGLFW();
-        initShaderPrograms();
+        // Only the uploads of the scene need the context, so the rest is done while the context, the shaders and ImGui
+        // are created. The models decide the shader variant, so the shaders are compiled once they're added, while the
+        // BVH is built.
+        CompletableFuture<Scene> createdScene = Scene.createAsync(sceneId, width, height, sceneSettings);
+        CompletableFuture<Scene> preparedScene = Scene.prepareAsync(createdScene);
+
+        StartupPhases.run("GLFW and context", this::initGLFW);
+        Map<String, String> computeDefines = StartupPhases.get("Waiting for the scene models",
+                createdScene::join).builder.getShaderDefines();
+        StartupPhases.run("Shader compilation", () -> initShaderPrograms(computeDefines));
         initScreenQuad();
-        initModels();
         initRaytraceExecutor();
-        initImGui();
+        StartupPhases.run("ImGui", this::initImGui);
+        initModels(preparedScene);
 
         float initTime = (System.currentTimeMillis() - startTime) / 1000f;
         System.out.println("Initialization completed in " + initTime + " sec.");
@@ -181,19 +195,20 @@ public class Window {
         guiRenderer = new GuiRenderer(this);
     }
 
-    private void initShaderPrograms() {
+    private void initShaderPrograms(Map<String, String> computeDefines) {
         screenQuadProgram = new ShaderProgram();
         screenQuadProgram.attachShader(new Shader("shaders/plainTextureShaders/vert.glsl", GL_VERTEX_SHADER));
         screenQuadProgram.attachShader(new Shader("shaders/plainTextureShaders/frag.glsl", GL_FRAGMENT_SHADER));
         screenQuadProgram.link();
 
-        computeProgram = new ShaderProgram();
-        computeProgram.attachShader(new Shader("shaders/raytrace/compute.glsl", GL_COMPUTE_SHADER));
-        computeProgram.link();
+        // The variant of the scene is compiled while the BVH is built. The scene takes it from the cache on upload.
+        Scene.getComputeProgram(computeDefines);
     }
 
-    private void initModels() {
-        scene = new Scene(sceneId, width, height, computeProgram);
+    private void initModels(CompletableFuture<Scene> preparedScene) {
+        scene = StartupPhases.get("Waiting for the scene", preparedScene::join);
+        StartupPhases.run("Scene upload", scene::upload);
+        raytraceExecutor.setScene(scene);
     }
 
     private void initScreenQuad() {
@@ -211,7 +226,7 @@ public class Window {
     }
 
     private void initRaytraceExecutor() {
-        raytraceExecutor = new RaytraceExecutor(screenQuadTexture, computeProgram);
+        raytraceExecutor = new RaytraceExecutor(screenQuadTexture);
         raytraceExecutor.addCompleteListener(
                 () -> System.out.println("All samples have completed in " + raytraceExecutor.getFinishTimeString() + ".")
         );
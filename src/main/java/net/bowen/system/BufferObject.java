@@ -46,6 +46,21 @@ public class BufferObject extends Deleteable {
         glBufferData(bufferType, data, usage);
     }
 
+    // Allocate the data store without any data, so it can be filled by uploadSubData().
+    public void allocate(long size, int usage) {
+        glBufferData(bufferType, size, usage);
+    }
+
+    // Replace a range of the data that has been uploaded, starting at the offset in bytes. The buffer must be bound.
+    public void uploadSubData(long offset, ByteBuffer data) {
+        glBufferSubData(bufferType, offset, data);
+    }
+
+    // Replace a range of the data that has been uploaded, starting at the offset in bytes. The buffer must be bound.
+    public void uploadSubData(long offset, FloatBuffer data) {
+        glBufferSubData(bufferType, offset, data);
+    }
+
     // Define vertex attributes
     public void setVertexAttributePointer(int index, int size, int type, boolean normalized, int stride, int pointer) {
         glVertexAttribPointer(index, size, type, normalized, stride, pointer);
@@ -1,10 +1,14 @@
 package net.bowen.system;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 public abstract class Deleteable {
-    private final static Set<Deleteable> INSTANCES = new HashSet<>();
+    /**
+     * Synchronized, since textures can be created off the GL thread while the scene is prepared.
+     */
+    private final static Set<Deleteable> INSTANCES = Collections.synchronizedSet(new HashSet<>());
 
     public Deleteable(boolean shouldCollectAndDeleteAtOnce) {
         if (shouldCollectAndDeleteAtOnce)
@@ -12,8 +16,10 @@ public abstract class Deleteable {
     }
 
     public static void deleteCreatedInstances() {
-        for (Deleteable instance : INSTANCES) {
-            instance.delete();
+        synchronized (INSTANCES) {
+            for (Deleteable instance : INSTANCES) {
+                instance.delete();
+            }
         }
     }
 
@@ -0,0 +1,154 @@
+package net.bowen.system;
+
+import net.bowen.cpu.CpuRaytraceExecutor;
+import net.bowen.draw.Scene;
+import net.bowen.draw.models.raytrace.SceneSettings;
+import net.bowen.draw.textures.Texture;
+import org.lwjgl.glfw.GLFWErrorCallback;
+import org.lwjgl.opengl.GL;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.GL_READ_WRITE;
+import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Renders a scene to the requested sample count and saves it, without a visible window, ImGui or v-sync. This is for
+ * batch jobs, so the timings are reported on stdout.
+ */
+public class HeadlessRenderer {
+    private final int sceneId;
+    private final int width, height;
+    private final int samplePerPixel;
+    private final int maxDepth;
+    private final String outputFile;
+    private final SceneSettings settings;
+
+    public HeadlessRenderer(int sceneId, int width, int height, int samplePerPixel, int maxDepth, String outputFile,
+                            SceneSettings settings) {
+        this.sceneId = sceneId;
+        this.width = width;
+        this.height = height;
+        this.samplePerPixel = samplePerPixel;
+        this.maxDepth = maxDepth;
+        this.outputFile = outputFile;
+        this.settings = settings;
+    }
+
+    /**
+     * Render with the current {@link RenderBackend} and save the result to the output file. Any failure is thrown.
+     */
+    public void render() {
+        long startTime = System.nanoTime();
+
+        if (RenderBackend.usesGL())
+            renderOnGL(startTime);
+        else
+            renderOnCpu(startTime);
+
+        float wallTime = (System.nanoTime() - startTime) / 1e9f;
+        System.out.println("A PNG file has been saved to: " + new File(outputFile).getAbsolutePath());
+        System.out.printf("Total wall time: %.3f sec.%n", wallTime);
+    }
+
+    private void renderOnCpu(long startTime) {
+        Scene scene = new Scene(sceneId, width, height, settings).prepare();
+
+        CpuRaytraceExecutor executor = new CpuRaytraceExecutor(scene, width, height);
+        executor.setSamplePerPixel(samplePerPixel);
+        executor.setMaxDepth(maxDepth);
+
+        try {
+            long renderStartTime = System.nanoTime();
+            printInitTime(renderStartTime - startTime);
+
+            executor.raytrace(samplePerPixel);
+            printRenderStats(System.nanoTime() - renderStartTime);
+            System.out.printf("BVH traversal: %.2f node visits per ray (%d rays).%n",
+                    executor.getNodeVisitsPerRay(), executor.getRayCount());
+
+            executor.saveAsPNG(outputFile);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void renderOnGL(long startTime) {
+        // The scene is created while the context is, and prepared while its shader is compiled. See Window#init().
+        CompletableFuture<Scene> createdScene = Scene.createAsync(sceneId, width, height, settings);
+        CompletableFuture<Scene> preparedScene = Scene.prepareAsync(createdScene);
+
+        // Setup an error callback. The default implementation will print the error message in System.err.
+        GLFWErrorCallback.createPrint(System.err).set();
+
+        if (!glfwInit())
+            throw new IllegalStateException("Unable to initialize GLFW");
+
+        // A hidden window is still needed to get an OpenGL context.
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 4);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
+        glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
+
+        long windowHandle = glfwCreateWindow(width, height, "Raytracing", NULL, NULL);
+        if (windowHandle == NULL) {
+            glfwTerminate();
+            throw new RuntimeException("Failed to create the GLFW window");
+        }
+
+        try {
+            glfwMakeContextCurrent(windowHandle);
+            GL.createCapabilities();
+
+            Map<String, String> defines = StartupPhases.get("Waiting for the scene models",
+                    createdScene::join).builder.getShaderDefines();
+            StartupPhases.run("Shader compilation", () -> Scene.getComputeProgram(defines));
+
+            // The image the compute shader accumulates to.
+            Texture imageTexture = new Texture(width, height, GL_RGBA32F, GL_RGBA, GL_FLOAT, null);
+            imageTexture.bindAsImage(0, GL_READ_WRITE, GL_RGBA32F);
+
+            Scene scene = StartupPhases.get("Waiting for the scene", preparedScene::join);
+            StartupPhases.run("Scene upload", scene::upload);
+
+            RaytraceExecutor executor = new RaytraceExecutor(imageTexture);
+            executor.setSamplePerPixel(samplePerPixel);
+            executor.setMaxDepth(maxDepth);
+            executor.setScene(scene);
+
+            long renderStartTime = System.nanoTime();
+            printInitTime(renderStartTime - startTime);
+
+            // Dispatch back to back. There's no frame to present in between.
+            while (!executor.sampleComplete())
+                executor.raytrace();
+            glFinish();
+            printRenderStats(System.nanoTime() - renderStartTime);
+
+            imageTexture.saveAsPNG(outputFile);
+        } finally {
+            Deleteable.deleteCreatedInstances();
+            glfwDestroyWindow(windowHandle);
+            glfwTerminate();
+            //noinspection DataFlowIssue
+            glfwSetErrorCallback(null).free();
+        }
+    }
+
+    private static void printInitTime(long nanos) {
+        System.out.printf("Initialization completed in %.3f sec.%n", nanos / 1e9f);
+    }
+
+    private void printRenderStats(long nanos) {
+        double seconds = nanos / 1e9;
+        double samplesPerSec = samplePerPixel / seconds;
+        double pixelSamplesPerSec = samplesPerSec * width * height;
+
+        System.out.printf("Rendered %d samples per pixel (%dx%d) in %.3f sec.%n", samplePerPixel, width, height, seconds);
+        System.out.printf("Samples/sec: %.2f per pixel, %.2fM in total.%n", samplesPerSec, pixelSamplesPerSec / 1e6);
+    }
+}
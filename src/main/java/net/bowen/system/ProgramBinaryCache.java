@@ -0,0 +1,166 @@
+package net.bowen.system;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.lwjgl.opengl.GL41.*;
+
+/**
+ * Files of linked program binaries, named by the hash of the preprocessed source and the driver. A program loaded from
+ * its file doesn't need its shader to be compiled. The driver decides if it accepts a binary, e.g. it may not after it
+ * has been updated, and then the program is compiled from the source and its file is replaced.
+ * <p>
+ * A file is made of a header and the binary:
+ * <ul>
+ *     <li>1 int for the magic number and 1 int for the version.</li>
+ *     <li>The hash of the source and the driver.</li>
+ *     <li>1 int for the binary format, which is driver-specific.</li>
+ *     <li>The binary, to the end of the file.</li>
+ * </ul>
+ * The header is little-endian.
+ */
+final class ProgramBinaryCache {
+    private static final int MAGIC = 0x42505452; // "RTPB" in little-endian.
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final int HEADER_BYTES = 3 * Integer.BYTES + HASH_BYTES;
+
+    /**
+     * Where the binaries are cached. It's null if the cache is disabled.
+     */
+    private static Path directory;
+
+    private ProgramBinaryCache() {
+    }
+
+    static void setDirectory(Path directory) {
+        ProgramBinaryCache.directory = directory;
+    }
+
+    /**
+     * @return If the cache is enabled, and the driver supports any binary format.
+     */
+    static boolean isEnabled() {
+        return directory != null && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    /**
+     * @return The hash of the source and the driver, since a binary is only valid for the driver that linked it. It
+     * should be called on the GL thread.
+     */
+    static byte[] hash(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not supported.", e);
+        }
+
+        String driver = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+        digest.update(driver.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(source.getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * Load the binary of the hash into the program.
+     *
+     * @return If the file was found and the driver accepted the binary, in which case the program is linked.
+     */
+    static boolean load(int programId, byte[] hash) {
+        Path file = fileOf(hash);
+        if (!Files.isRegularFile(file)) return false;
+
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() <= HEADER_BYTES || channel.size() > Integer.MAX_VALUE) return invalid(file);
+            // The mapping stays valid after the channel is closed.
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            System.out.println("Failed to read the program binary " + file + ": " + e.getMessage());
+            return false;
+        }
+
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        if (map.getInt() != MAGIC || map.getInt() != VERSION) return invalid(file);
+        byte[] fileHash = new byte[HASH_BYTES];
+        map.get(fileHash);
+        if (!Arrays.equals(fileHash, hash)) return invalid(file);
+        int format = map.getInt();
+
+        glProgramBinary(programId, format, map.slice());
+        if (glGetProgrami(programId, GL_LINK_STATUS) == GL_FALSE) {
+            System.out.println("The driver rejected the program binary " + file + ". Compiling instead.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the binary of the linked program to the file of the hash. The file is written beside and moved in place at
+     * the end, so a file is never read half-written. A failure is printed but not thrown, since the program has been
+     * linked anyway.
+     */
+    static void save(int programId, byte[] hash) {
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            System.out.println("The driver has no binary of program(" + programId + ") to cache.");
+            return;
+        }
+
+        Path file = fileOf(hash);
+        Path temporaryFile = null;
+        ByteBuffer buffer = MemoryUtil.memAlloc(HEADER_BYTES + length).order(ByteOrder.LITTLE_ENDIAN);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer binaryLength = stack.mallocInt(1);
+            IntBuffer format = stack.mallocInt(1);
+            ByteBuffer binary = buffer.slice(HEADER_BYTES, length);
+            glGetProgramBinary(programId, binaryLength, format, binary);
+            buffer.putInt(MAGIC).putInt(VERSION).put(hash).putInt(format.get(0));
+            buffer.limit(HEADER_BYTES + binaryLength.get(0)).rewind();
+
+            Files.createDirectories(directory);
+            temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Program binary saved to: " + file.toAbsolutePath());
+        } catch (IOException e) {
+            System.out.println("Failed to save the program binary " + file + ": " + e.getMessage());
+            try {
+                if (temporaryFile != null) Files.deleteIfExists(temporaryFile);
+            } catch (IOException ignored) {
+            }
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private static Path fileOf(byte[] hash) {
+        return directory.resolve(HexFormat.of().formatHex(hash) + ".bin");
+    }
+
+    private static boolean invalid(Path file) {
+        System.out.println("Ignoring the invalid program binary: " + file);
+        return false;
+    }
+}
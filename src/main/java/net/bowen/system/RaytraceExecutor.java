@@ -1,5 +1,6 @@
 package net.bowen.system;
 
+import net.bowen.draw.Scene;
 import net.bowen.draw.textures.Texture;
 import org.lwjgl.BufferUtils;
 
@@ -15,10 +16,18 @@ import static org.lwjgl.opengl.GL43.glDispatchCompute;
 
 public class RaytraceExecutor {
     private final Texture quadTexture;
-    private final ShaderProgram program;
     private final FloatBuffer randomFactor = BufferUtils.createFloatBuffer(1);
     private final List<Runnable> completeListeners = new ArrayList<>();
     private final List<QueryTimer> timers = new ArrayList<>();
+    /**
+     * The scene that's rendered. It's bound before each dispatch, so another scene is swapped in by
+     * {@link #setScene(Scene)}.
+     */
+    private Scene scene;
+    /**
+     * The compute program variant of the scene. It's null until the first scene is set.
+     */
+    private ShaderProgram program;
 
     /**
      * How many samples have been taken. It's added 1 per dispatch call.
@@ -41,20 +50,52 @@ public class RaytraceExecutor {
      */
     private boolean isSampleComplete;
     private int samplePerPixel;
+    private int maxDepth;
 
-    public RaytraceExecutor(Texture quadTexture, ShaderProgram program) {
+    public RaytraceExecutor(Texture quadTexture) {
         this.quadTexture = quadTexture;
-        this.program = program;
     }
 
     public void setSamplePerPixel(int samplePerPixel) {
         this.samplePerPixel = samplePerPixel;
+        if (program != null)
+            putSamplePerPixel();
+    }
 
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        if (program != null)
+            program.setUniform1i("max_depth", maxDepth);
+    }
+
+    private void putSamplePerPixel() {
         float sqrtSpp = (float) Math.sqrt(samplePerPixel);
         program.setUniform1f("sqrt_spp", sqrtSpp);
         program.setUniform1f("recip_sqrt_spp", 1f / sqrtSpp);
     }
 
+    /**
+     * Render the uploaded scene with its compute program variant from the next dispatch on. The samples start over.
+     * The sample count and the max depth are put to the variant if it's another program, and the camera of the scene
+     * is bound.
+     *
+     * @throws IllegalStateException if the scene hasn't been uploaded.
+     */
+    public void setScene(Scene scene) {
+        ShaderProgram variant = scene.getComputeProgram();
+        if (variant == null)
+            throw new IllegalStateException("The scene hasn't been uploaded.");
+
+        if (variant != program) {
+            program = variant;
+            putSamplePerPixel();
+            program.setUniform1i("max_depth", maxDepth);
+        }
+        scene.bindCamera();
+        this.scene = scene;
+        resetCompleteState();
+    }
+
     public void resetCompleteState() {
         isSampleComplete = false;
         numSamples = 0;
@@ -74,10 +115,17 @@ public class RaytraceExecutor {
     }
 
     public String getFinishTimeString() {
-        long hours = TimeUnit.MILLISECONDS.toHours(finishTime);
-        long minutes = TimeUnit.MILLISECONDS.toMinutes(finishTime) % 60;
-        long seconds = TimeUnit.MILLISECONDS.toSeconds(finishTime) % 60;
-        int millis = finishTime % 1000;
+        return formatMillis(finishTime);
+    }
+
+    /**
+     * Format the milliseconds in the form of "[hours][minutes]seconds.millis".
+     */
+    public static String formatMillis(int time) {
+        long hours = TimeUnit.MILLISECONDS.toHours(time);
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(time) % 60;
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(time) % 60;
+        int millis = time % 1000;
 
         StringBuilder sb = new StringBuilder();
 
@@ -98,7 +146,10 @@ public class RaytraceExecutor {
     }
 
     public void raytrace() {
-        Texture.bindTexturesInCompute();
+        if (scene == null)
+            throw new IllegalStateException("No scene to raytrace. Call setScene() first.");
+        scene.builder.bind(program);
+
         // Set the start time if it's the very first raytrace.
         if (numSamples == 0)
             startTime = (int) System.currentTimeMillis();
@@ -0,0 +1,26 @@
+package net.bowen.system;
+
+/**
+ * The engines that can execute the ray tracing. {@link #GL} dispatches compute.glsl on the GPU, and {@link #CPU} runs
+ * the same algorithm on all CPU cores without any OpenGL context.
+ */
+public enum RenderBackend {
+    GL, CPU;
+
+    private static RenderBackend current = GL;
+
+    public static RenderBackend get() {
+        return current;
+    }
+
+    public static void set(RenderBackend backend) {
+        current = backend;
+    }
+
+    /**
+     * @return If the current backend needs OpenGL objects (textures, SSBOs, UBOs) to be created and uploaded.
+     */
+    public static boolean usesGL() {
+        return current == GL;
+    }
+}
@@ -8,6 +8,8 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,16 +22,28 @@ public class Shader extends Deleteable {
 
     private static final Pattern INCLUDE_PATTERN = Pattern.compile("#include\\s+<(.+?)>");
 
-    private final List<ShaderSource> sources = new ArrayList<>();
+    private final Source source;
     private final int shaderId;
 
     // Constructor for vertex, fragment, or compute shaders
     public Shader(String resourcePath, int type) {
+        this(resourcePath, type, Map.of());
+    }
+
+    /**
+     * @param defines the macros to define before the source, right after the #version line. They're how the variants
+     *                of a shader are selected.
+     */
+    public Shader(String resourcePath, int type, Map<String, String> defines) {
+        this(new Source(resourcePath, defines), type);
+    }
+
+    public Shader(Source source, int type) {
         super(false);
-        String source = readSources(resourcePath);
+        this.source = source;
 
         shaderId = glCreateShader(type);
-        glShaderSource(shaderId, source);
+        glShaderSource(shaderId, source.getText());
         glCompileShader(shaderId);
 
         // Check for compilation errors
@@ -88,7 +102,7 @@ public class Shader extends Deleteable {
             int lineCount = 0;
             int numLinesBefore = 0;
             int numMainSourceLinesBefore = 0;
-            for (ShaderSource shaderSource : sources) {
+            for (ShaderSource shaderSource : source.parts) {
                 int numLinesThisSource = (int) shaderSource.source.chars().filter(c -> c == '\n').count();
                 lineCount += numLinesThisSource;
 
@@ -114,14 +128,50 @@ public class Shader extends Deleteable {
         return result.toString();
     }
 
-    private String readSources(String resourcePath) {
+    /**
+     * The source of a shader as it's compiled: the includes are expanded and the defines are inserted. The parts it's
+     * made of are kept, so the compile log can point at the files the errors are in.
+     */
+    public static final class Source {
+        private final List<ShaderSource> parts = new ArrayList<>();
+        private final String text;
+
+        /**
+         * Read the shader from the resource and preprocess it. Nothing is compiled, so it doesn't need the GL context.
+         *
+         * @param defines the macros to define before the source, right after the #version line.
+         */
+        public Source(String resourcePath, Map<String, String> defines) {
+            text = readSources(parts, resourcePath, defines);
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static String readSources(List<ShaderSource> sources, String resourcePath, Map<String, String> defines) {
         // Read the raw source:
         String rawSource = readRaw(resourcePath);
 
+        int lastMatchEnd = 0;
+
+        // Put the defines after the #version line, which must come first.
+        if (!defines.isEmpty()) {
+            lastMatchEnd = rawSource.indexOf('\n') + 1;
+            sources.add(new ShaderSource(true, resourcePath, rawSource.substring(0, lastMatchEnd)));
+
+            // They're sorted, so the same defines always make the same source, which the binary cache is keyed by.
+            StringBuilder defineSource = new StringBuilder();
+            new TreeMap<>(defines).forEach((name, value) ->
+                    defineSource.append("#define ").append(name).append(' ').append(value).append('\n'));
+            sources.add(new ShaderSource(false, "defines", defineSource.toString()));
+        }
+
         // Process source:
         Matcher includeMatcher = INCLUDE_PATTERN.matcher(rawSource);
+        includeMatcher.region(lastMatchEnd, rawSource.length());
 
-        int lastMatchEnd = 0;
         // Iterate over all matches of `#include` directives
         while (includeMatcher.find()) {
             // Add the part of main source
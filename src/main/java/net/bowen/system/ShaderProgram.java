@@ -2,14 +2,19 @@ package net.bowen.system;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
 
 public class ShaderProgram extends Deleteable{
+    /**
+     * The programs linked by {@link #getVariant(String, Map, int)}, by the shader and its defines.
+     */
+    private static final Map<Map.Entry<String, Map<String, String>>, ShaderProgram> variants = new HashMap<>();
 
     private final int programId;
     private final Set<Shader> attachedShaders = new HashSet<>();
@@ -23,10 +28,63 @@ public class ShaderProgram extends Deleteable{
 
     @Override
     public void delete() {
+        variants.values().remove(this);
         glDeleteProgram(programId);
         System.out.println("Shader program(" + programId + ") deleted.");
     }
 
+    /**
+     * Cache the binaries of the programs linked by {@link #linkFromSource(Shader.Source, int)} in the directory, so a
+     * shader is only compiled at the first launch with a driver. Null disables the cache, which is the default.
+     */
+    public static void setBinaryCacheDirectory(Path directory) {
+        ProgramBinaryCache.setDirectory(directory);
+    }
+
+    /**
+     * Compile a shader from the source, attach it and link the program. If the binary cache is enabled, the binary of
+     * the program linked from the same source by the same driver is loaded instead, and nothing is compiled. When
+     * there's none, or the driver rejects it, the program is compiled and its binary is cached.
+     */
+    public void linkFromSource(Shader.Source source, int type) {
+        byte[] hash = null;
+        if (ProgramBinaryCache.isEnabled()) {
+            long startTime = System.nanoTime();
+            hash = ProgramBinaryCache.hash(source.getText());
+            if (ProgramBinaryCache.load(programId, hash)) {
+                float loadTime = (System.nanoTime() - startTime) / 1e6f;
+                System.out.printf("Shader program(%d) loaded from the binary cache in %.2f ms.%n", programId, loadTime);
+                return;
+            }
+            glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+
+        attachShader(new Shader(source, type));
+        link();
+        if (hash != null)
+            ProgramBinaryCache.save(programId, hash);
+    }
+
+    /**
+     * Get the program of the shader compiled with the defines, like a kernel specialized for the features of a scene.
+     * Each variant is only linked the first time it's asked for, so scenes with the same features share it, and the
+     * binary cache keeps it across launches. See {@link #setBinaryCacheDirectory(Path)}.
+     *
+     * @param defines the macros to define before the source. See {@link Shader.Source}.
+     */
+    public static ShaderProgram getVariant(String resourcePath, Map<String, String> defines, int type) {
+        Map.Entry<String, Map<String, String>> key = Map.entry(resourcePath, Map.copyOf(defines));
+        ShaderProgram program = variants.get(key);
+        if (program == null) {
+            program = new ShaderProgram();
+            program.linkFromSource(new Shader.Source(resourcePath, defines), type);
+            variants.put(key, program);
+        } else {
+            System.out.println("Shader program(" + program.programId + ") reused for " + resourcePath + ".");
+        }
+        return program;
+    }
+
     public void attachShader(Shader shader) {
         glAttachShader(programId, shader.getId());
         attachedShaders.add(shader);
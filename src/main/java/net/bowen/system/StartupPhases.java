@@ -0,0 +1,28 @@
+package net.bowen.system;
+
+import java.util.function.Supplier;
+
+/**
+ * Runs the phases of the startup and prints how long each of them took. The scene is prepared on a worker thread
+ * while the context and the shaders are created, so its phase overlaps the others. How long the GL thread then waits
+ * for it is what's left of it on the way to the first sample.
+ */
+public final class StartupPhases {
+    private StartupPhases() {
+    }
+
+    public static void run(String phase, Runnable action) {
+        get(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public static <T> T get(String phase, Supplier<T> action) {
+        long startTime = System.nanoTime();
+        T result = action.get();
+        float time = (System.nanoTime() - startTime) / 1e6f;
+        System.out.printf("[%s] %s: %.2f ms.%n", Thread.currentThread().getName(), phase, time);
+        return result;
+    }
+}
@@ -4,6 +4,76 @@ layout (rgba32f, binding = 0) uniform image2D img_output;
 
 layout (local_size_x = 16, local_size_y = 16) in;
 
+// The child count of the BVH nodes. 2 is the binary tree, and 4 or 8 is the collapsed tree of WideBVHNodes. The program
+// defines it according to the BVH layout.
+#ifndef BVH_WIDTH
+#define BVH_WIDTH 2
+#endif
+
+// If the child bounds of the wide nodes are quantized to 8 bits.
+#ifndef BVH_QUANTIZED
+#define BVH_QUANTIZED 0
+#endif
+
+// If the binary nodes have skip links and are traversed without a stack.
+#ifndef BVH_STACKLESS
+#define BVH_STACKLESS 0
+#endif
+
+// The features of the scene. The program defines them to 0 for the model types, the material types and the texture
+// types the scene doesn't have, so their branches are left out of the kernel. A kernel without them handles any scene.
+#ifndef HAS_SPHERES
+#define HAS_SPHERES 1
+#endif
+#ifndef HAS_QUADS
+#define HAS_QUADS 1
+#endif
+#ifndef HAS_CONSTANT_MEDIUMS
+#define HAS_CONSTANT_MEDIUMS 1
+#endif
+#ifndef HAS_BOXES
+#define HAS_BOXES 1
+#endif
+#ifndef HAS_INSTANCES
+#define HAS_INSTANCES 1
+#endif
+#ifndef HAS_TRIANGLES
+#define HAS_TRIANGLES 1
+#endif
+#ifndef HAS_LAMBERTIAN
+#define HAS_LAMBERTIAN 1
+#endif
+#ifndef HAS_METAL
+#define HAS_METAL 1
+#endif
+#ifndef HAS_DIELECTRIC
+#define HAS_DIELECTRIC 1
+#endif
+#ifndef HAS_DIFFUSE_LIGHT
+#define HAS_DIFFUSE_LIGHT 1
+#endif
+#ifndef HAS_ISOTROPIC
+#define HAS_ISOTROPIC 1
+#endif
+#ifndef HAS_IMAGE_TEXTURE
+#define HAS_IMAGE_TEXTURE 1
+#endif
+#ifndef HAS_CHECKER_TEXTURE
+#define HAS_CHECKER_TEXTURE 1
+#endif
+#ifndef HAS_PERLIN_TEXTURE
+#define HAS_PERLIN_TEXTURE 1
+#endif
+#ifndef HAS_SOLID_TEXTURE
+#define HAS_SOLID_TEXTURE 1
+#endif
+
+// The number of lights of the scene, or -1 if it's read from the lights buffer. With no lights, the rays only sample
+// the materials.
+#ifndef LIGHT_COUNT
+#define LIGHT_COUNT -1
+#endif
+
 const float INFINITY = 3.402823E+38;
 const int MATERIAL_LAMBERTIAN = 0;
 const int MATERIAL_METAL = 1;
@@ -15,10 +85,9 @@ const int MODEL_SPHERE = 1;
 const int MODEL_QUAD = 2;
 const int MODEL_CONSTANT_MEDIUM = 3;
 const int MODEL_BOX = 4;
-
-// Values for extracting the IOR/eta from  material_val.
-const float MIN_IOR = 1.0;
-const float MAX_IOR = 2.5;
+const int MODEL_INSTANCE = 5;
+const int MODEL_TRIANGLE = 6;
+const int MODEL_BVH_LEAF = 15;
 
 uniform sampler2D textures[8];
 uniform int max_depth;        // Maximum number of ray bounces into scene.
@@ -47,7 +116,7 @@ float rand_factor = u_rand_factor;
 float time; // a factor that is in range [0, 1).
 vec3 attenuation;
 vec3 color_from_emission;
-int material;
+int material; // the index of the material in materials.
 
 struct Ray {
     vec3 o;     // origin
@@ -62,45 +131,65 @@ struct HitRecord {
     vec2 uv; // the uv coordinate for texture mapping.
 };
 
-struct Sphere {
-    vec3 center1;
+struct Material {
+    int type; // MATERIAL_LAMBERTIAN, MATERIAL_METAL...
 
     // The texture information. The upper 16 bits stores the index in the texture uniform array. The lower 16 bits
     // stores whatever detail values.
     int texture_id;
-    vec3 center_vec;
-    float radius;
+
+    // The fuzz of a metal, or the index of refraction of a dielectric.
+    float parameter;
 
     vec3 emission;
+};
 
-    // The material value is a packed value. The upper 16 bits stores the model id, and the lower 16 bits stores the
-    // data for varying information according to the material type. For example, metal material has its fuzz value in
-    // the lower 16 bits.
-    int material;
+struct Sphere {
+    vec3 center1;
+    int material; // the index of the material in materials.
+    vec3 center_vec;
+    float radius;
 };
 
 struct Quad {
     vec3 normal; // the normal of the plane.
     float d; // the d in equation ax+by+cz = d.
     vec3 q; // the origin for u and v.
-    int material; // the packed material value.
+    int material; // the index of the material in materials.
     vec3 u; // a component vector that structs the quad.
-    int texture_id; // texture information
-    vec3 v; // a component vector that structs the quad.
     float area;
-    vec3 emission;
+    vec3 v; // a component vector that structs the quad.
 };
 
-struct Box{
-    Quad quads[6];
+struct Box {
+    vec3 min; // the min corner in the object space.
+    int material; // the index of the material in materials.
+    vec3 max; // the max corner in the object space.
+    vec4 orientation; // the rotation from the object space to the world space, a unit quaternion (x, y, z, w).
+    vec3 translation; // the translation from the object space to the world space, applied after the rotation.
 };
 
 struct ConstantMedium {
     int boundary_model_idx;
     int boundary_model_type;
     float neg_inv_density;
-    int phase_function; // a material packed value.
-    int texture_id;
+    int phase_function; // the index of the material in materials.
+};
+
+struct Instance {
+    // The transformation from the world space to the object space of the BLAS. Its transpose transforms the normals
+    // back to the world space.
+    mat4 world_to_object;
+    // The root of the BLAS in bvh_nodes.
+    int blas_root;
+};
+
+struct Triangle {
+    // The indices of the vertices in vertices.
+    int v0;
+    int v1;
+    int v2;
+    int material; // the index of the material in materials.
 };
 
 struct Interval {
@@ -117,19 +206,68 @@ struct AABB {
 struct BVHNode {
     AABB bbox;
 
-    // Left and right ids are packed values. The upper 16 bits stores the model index in its SSBO, and the lower 16 bits
-    // stores the model id(0 for BVH node; 1 for spheres).
-    // Note that value A and B only range [0, 65535].
+    // Left and right ids are packed model references. See get_model_type and get_model_index.
+    // For a leaf, left_id is a MODEL_BVH_LEAF reference to its first primitive in bvh_primitives, and right_id is the
+    // primitive count.
+    int left_id;
+    int right_id;
+};
+
+struct ThreadedBVHNode {
+    AABB bbox;
+
+    // The same as BVHNode. The left child of an inner node is always the next node.
     int left_id;
     int right_id;
+
+    // The node after the subtree of this node in depth-first order, where the traversal goes on a miss or after a
+    // leaf. It's -1 at the end of the tree.
+    int skip;
+};
+
+#if BVH_QUANTIZED
+struct WideBVHNode {
+    // The frame of the quantized bounds: the min corner of the node, and the 3 biased exponents of the power-of-2
+    // scales in the lower 3 bytes.
+    float origin[3];
+    uint exponents;
+
+    // The quantized child bounds, 1 byte each, in the same SoA order as the unquantized bounds. A bound is
+    // origin + q * scale.
+    uint bounds[6 * BVH_WIDTH / 4];
+
+    // The same as the unquantized children.
+    int children[BVH_WIDTH];
+
+    // The primitive counts of the leaf children, 1 byte each.
+    uint leaf_sizes[BVH_WIDTH / 4];
 };
+#else
+struct WideBVHNode {
+    // The child bounds in SoA order: the x minimums of all children, then the x maximums, then y and z.
+    float bounds[6 * BVH_WIDTH];
+
+    // The packed model references of the children. An inner child is a node reference, and a leaf is a MODEL_BVH_LEAF
+    // reference to its first primitive in bvh_primitives. An empty slot is -1, and the children take the first slots.
+    int children[BVH_WIDTH];
+
+    // The primitive counts of the leaf children.
+    int leaf_sizes[BVH_WIDTH];
+};
+#endif
 
 layout(std430, binding = 0) buffer SphereBuffer {
     Sphere spheres[];
 };
 
 layout(std430, binding = 1) buffer BVHBuffer {
+#if BVH_WIDTH > 2
+    WideBVHNode bvh_nodes[];
+#elif BVH_STACKLESS
+    ThreadedBVHNode bvh_nodes[];
+#else
     BVHNode bvh_nodes[];
+#endif
 };
 
 layout(std430, binding = 2) buffer QuadBuffer {
@@ -144,14 +282,45 @@ layout(std430, binding = 4) buffer BoxBuffer {
     Box boxes[];
 };
 
+layout(std430, binding = 6) buffer BVHPrimitiveBuffer {
+    // The packed model references of the models in the leaves.
+    int bvh_primitives[];
+};
+
+layout(std430, binding = 7) buffer InstanceBuffer {
+    Instance instances[];
+};
+
+layout(std430, binding = 8) buffer MaterialBuffer {
+    Material materials[];
+};
+
+layout(std430, binding = 9) buffer VertexBuffer {
+    // The x, y and z of the vertices of all triangle meshes. They're floats, so a vertex takes 12 bytes, not 16.
+    float vertices[];
+};
+
+layout(std430, binding = 10) buffer TriangleBuffer {
+    Triangle triangles[];
+};
+
 layout(std430, binding = 5) buffer LightsBuffer {
     int lights_count;
 
-    // The packed values. The upper 16 bits store the model type, and
-    // the lower 16 bits store the model index in their buffers.
+    // The packed model references. See get_model_type and get_model_index.
     int lights[];
 };
 
+// A model reference packs the model type (0 for BVH node; 1 for spheres...) in the upper 4 bits, and the model index
+// in its SSBO in the lower 28 bits.
+int get_model_type(int reference) {
+    return (reference >> 28) & 0xF;
+}
+
+int get_model_index(int reference) {
+    return reference & 0x0FFFFFFF;
+}
+
 // The includes. Must be after the global variables and ssbos because some of the includes use those.
 #include <utils/math.glsl>
 #include <utils/interval.glsl>
@@ -174,96 +343,419 @@ vec3 rand_vec_in_unit_sphere();
 vec3 rand_unit_vec();
 vec3 rand_on_hemisphere(vec3 normal);
 bool hit_sphere(Ray ray, Interval ray_t, vec3 center1, vec3 center_vec, float radius, inout HitRecord hit_record);
-bool hit_aabb(Ray ray, Interval ray_t,  AABB aabb);
+float aabb_entry(Ray ray, Interval ray_t, AABB aabb);
 vec3 pixel_sample_square();
 vec3 lambertian_scatter(vec3 normal);
 void metal_scatter(inout vec3 ray_dir, vec3 normal, float fuzz);
 void refract_scatter(inout vec3 ray_dir, vec3 normal, float eta);
 void isotropic_scatter(inout Ray ray, vec3 p);
-bool scatter(inout Ray ray, vec3 hit_point, vec3 normal, bool is_front_face, int material_val, out bool scatter_pdf);
+bool scatter(inout Ray ray, vec3 hit_point, vec3 normal, bool is_front_face, int material_idx, out bool scatter_pdf);
 vec3 checkerboard(vec3 p);
 vec3 texture_color(vec3 p, int id, vec2 uv);
 bool hit_model(Ray ray, Interval ray_t, int model_idx, int model_type, inout HitRecord hit_record);
-float scattering_pdf(vec3 normal, vec3 scatter_dir, int material);
+float scattering_pdf(vec3 normal, vec3 scatter_dir, int material_idx);
 float quad_pdf_value(vec3 origin, vec3 direction, Quad quad);
 vec3 quad_random(vec3 origin, Quad quad);
-float material_pdf_value(vec3 direction, int material, vec3 normal);
-
-int get_node_type(int id) {
-    id &= 0xFFFF; // extract value
-    return id;
-}
+float material_pdf_value(vec3 direction, int material_idx, vec3 normal);
+int light_count();
 
 void set_material_properties(int model_idx, int model_type, vec3 p, vec2 uv, bool is_front_face) {
+    // Only the material index is read from the model, not the whole struct.
     switch(model_type) {
+#if HAS_SPHERES
         case 1: // sphere
-            Sphere sphere = spheres[model_idx];
-            material = sphere.material;
-            attenuation = texture_color(p, sphere.texture_id, uv);
-            color_from_emission = is_front_face ? sphere.emission : vec3(0.0);
-            return;
+            material = spheres[model_idx].material;
+            break;
+#endif
+#if HAS_QUADS
         case 2: // quad
-            Quad quad = quads[model_idx];
-            material = quad.material;
-            attenuation = texture_color(p, quad.texture_id, uv);
-            color_from_emission = is_front_face ? quad.emission : vec3(0.0);
-            return;
+            material = quads[model_idx].material;
+            break;
+#endif
+#if HAS_CONSTANT_MEDIUMS
         case 3: // constant medium
-            ConstantMedium medium = constant_mediums[model_idx];
-            material = medium.phase_function;
-            attenuation = texture_color(p, medium.texture_id, uv);
-            color_from_emission = vec3(0.0);
-            return;
+            material = constant_mediums[model_idx].phase_function;
+            is_front_face = false;
+            break;
+#endif
+#if HAS_BOXES
         case 4: // box
-            Box box = boxes[model_idx];
-            material = box.quads[0].material;
-            attenuation = texture_color(p, box.quads[0].texture_id, uv);
-            color_from_emission = is_front_face ? box.quads[0].emission : vec3(0.0);
+            material = boxes[model_idx].material;
+            break;
+#endif
+#if HAS_TRIANGLES
+        case 6: // triangle
+            material = triangles[model_idx].material;
+            break;
+#endif
+        default:
             return;
     }
+
+    attenuation = texture_color(p, materials[material].texture_id, uv);
+#if HAS_DIFFUSE_LIGHT
+    color_from_emission = is_front_face ? materials[material].emission : vec3(0.0);
+#else
+    // Only the diffuse lights emit.
+    color_from_emission = vec3(0.0);
+#endif
+}
+
+// The stack entry that marks the end of a BLAS traversal. The ray goes back to the world space when it's popped.
+const int INSTANCE_EXIT = -1;
+
+// The direction is not normalized, so the distances are the same in the object space.
+Ray to_object_space(Ray ray, int instance_idx) {
+    mat4 world_to_object = instances[instance_idx].world_to_object;
+    return Ray((world_to_object * vec4(ray.o, 1.0)).xyz, mat3(world_to_object) * ray.dir);
+}
+
+// Transform a hit in the object space of the instance back to the world space.
+void hit_to_world_space(Ray world_ray, int instance_idx, inout HitRecord hit_record) {
+    hit_record.p = world_ray.o + hit_record.t * world_ray.dir;
+    hit_record.normal = normalize(transpose(mat3(instances[instance_idx].world_to_object)) * hit_record.normal);
+}
+
+#if BVH_WIDTH > 2
+#if BVH_QUANTIZED
+// Get the byte at the index of a byte array packed in uints.
+#define UNPACK_BYTE(array, i) ((array[(i) >> 2] >> (((i) & 3) * 8)) & 0xFFu)
+
+// Get the bound at the index of the SoA bounds of a node.
+float wide_node_bound(int node_idx, int axis, int i) {
+    float scale = uintBitsToFloat(((bvh_nodes[node_idx].exponents >> (axis * 8)) & 0xFFu) << 23);
+    return bvh_nodes[node_idx].origin[axis] + float(UNPACK_BYTE(bvh_nodes[node_idx].bounds, i)) * scale;
+}
+
+int wide_node_leaf_size(int node_idx, int child) {
+    return int(UNPACK_BYTE(bvh_nodes[node_idx].leaf_sizes, child));
+}
+#else
+// Get the bound at the index of the SoA bounds of a node.
+float wide_node_bound(int node_idx, int axis, int i) {
+    return bvh_nodes[node_idx].bounds[i];
+}
+
+int wide_node_leaf_size(int node_idx, int child) {
+    return bvh_nodes[node_idx].leaf_sizes[child];
+}
+#endif
+
+// The same as aabb_entry, but for a child box of a wide node.
+float wide_child_entry(Ray ray, Interval ray_t, int node_idx, int child) {
+    AABB aabb;
+    aabb.x = Interval(wide_node_bound(node_idx, 0, child), wide_node_bound(node_idx, 0, BVH_WIDTH + child));
+    aabb.y = Interval(wide_node_bound(node_idx, 1, 2 * BVH_WIDTH + child), wide_node_bound(node_idx, 1, 3 * BVH_WIDTH + child));
+    aabb.z = Interval(wide_node_bound(node_idx, 2, 4 * BVH_WIDTH + child), wide_node_bound(node_idx, 2, 5 * BVH_WIDTH + child));
+    return aabb_entry(ray, ray_t, aabb);
+}
+
+bool trace_through_bvh(Ray ray, Interval ray_t, out HitRecord hit_record) {
+    int model_idx;
+    // The packed references, the leaf sizes, and the distances the ray enters them at.
+    int stack[64];
+    int stack_leaf_size[64];
+    float stack_t[64];
+    int stack_ptr = 0;
+
+    // The root is always visited. The boxes of its children are tested then.
+    stack[stack_ptr] = 0;
+    stack_leaf_size[stack_ptr] = 0;
+    stack_t[stack_ptr++] = ray_t.min;
+
+    bool has_hit = false;
+    // The ray in the world space, and the instance whose BLAS is traversed, or -1 in the top-level BVH.
+    Ray world_ray = ray;
+    int instance_idx = -1;
+    // Where the top-level leaf goes on after a BLAS: the primitive after the instance, the end of the leaf and its
+    // distance. A BLAS has no instances, so only one leaf waits at a time.
+    int resume_primitive = 0;
+    int resume_end = 0;
+    float resume_t = 0.0;
+
+    while (stack_ptr > 0) {
+        stack_ptr--;
+        // Skip the entry if a closer hit has been found since it was pushed.
+        if (stack_t[stack_ptr] > ray_t.max)
+            continue;
+
+        int reference = stack[stack_ptr];
+        // The primitives to test, if the entry is a leaf or the rest of one.
+        int first = 0;
+        int end = 0;
+        float leaf_t = stack_t[stack_ptr];
+#if HAS_INSTANCES
+        if (reference == INSTANCE_EXIT) {
+            // The end of a BLAS. Go back to the world space and to the rest of the leaf of the instance.
+            ray = world_ray;
+            instance_idx = -1;
+            first = resume_primitive;
+            end = resume_end;
+            leaf_t = resume_t;
+        } else if (get_model_type(reference) == MODEL_INSTANCE) {
+            // Traverse the BLAS in the object space. Its root is always visited.
+            instance_idx = get_model_index(reference);
+            ray = to_object_space(world_ray, instance_idx);
+            stack[stack_ptr] = instances[instance_idx].blas_root;
+            stack_leaf_size[stack_ptr] = 0;
+            stack_ptr++; // The entry keeps the distance of the instance.
+            continue;
+        } else
+#endif
+        if (get_model_type(reference) == MODEL_BVH_LEAF) {
+            first = get_model_index(reference);
+            end = first + stack_leaf_size[stack_ptr];
+        } else {
+            // Push the hit children sorted from far to near, so the nearest one is popped first.
+            int node_idx = get_model_index(reference);
+            int base = stack_ptr;
+            for (int i = 0; i < BVH_WIDTH; i++) {
+                int child = bvh_nodes[node_idx].children[i];
+                if (child == -1) break;
+
+                float t = wide_child_entry(ray, ray_t, node_idx, i);
+                if (t == INFINITY) continue;
+
+                int j = stack_ptr++;
+                while (j > base && stack_t[j - 1] < t) {
+                    stack[j] = stack[j - 1];
+                    stack_leaf_size[j] = stack_leaf_size[j - 1];
+                    stack_t[j] = stack_t[j - 1];
+                    j--;
+                }
+                stack[j] = child;
+                stack_leaf_size[j] = wide_node_leaf_size(node_idx, i);
+                stack_t[j] = t;
+            }
+            continue;
+        }
+
+        // Test the models of the leaf.
+        for (int i = first; i < end; i++) {
+            model_idx = get_model_index(bvh_primitives[i]);
+            int model_type = get_model_type(bvh_primitives[i]);
+#if HAS_INSTANCES
+            if (model_type == MODEL_INSTANCE) {
+                // Traverse the BLAS, then the exit entry under it takes the ray back to the world space and to the rest
+                // of the leaf. The instances are traversed one at a time, so a leaf takes 2 entries however many
+                // instances it has.
+                resume_primitive = i + 1;
+                resume_end = end;
+                resume_t = leaf_t;
+                stack[stack_ptr] = INSTANCE_EXIT;
+                stack_leaf_size[stack_ptr] = 0;
+                stack_t[stack_ptr++] = -INFINITY;
+                stack[stack_ptr] = bvh_primitives[i];
+                stack_leaf_size[stack_ptr] = 0;
+                stack_t[stack_ptr++] = leaf_t;
+                break;
+            } else
+#endif
+            if (hit_model(ray, ray_t, model_idx, model_type, hit_record)) {
+                has_hit = true;
+                ray_t.max = hit_record.t;
+
+                if (instance_idx != -1)
+                    hit_to_world_space(world_ray, instance_idx, hit_record);
+                set_material_properties(model_idx, model_type, hit_record.p, hit_record.uv, hit_record.is_front_face);
+            }
+        }
+    }
+
+    return has_hit;
 }
+#elif BVH_STACKLESS
+bool trace_through_bvh(Ray ray, Interval ray_t, out HitRecord hit_record) {
+    bool has_hit = false;
+    // The ray in the world space, and the instance whose BLAS is traversed, or -1 in the top-level BVH.
+    Ray world_ray = ray;
+    int instance_idx = -1;
+    // Where the top-level traversal goes on after a BLAS: the leaf of the instance, and the primitive after it.
+    int resume_node = -1;
+    int resume_primitive = -1;
+
+    int node_idx = 0;
+    // The primitive to go on from in the leaf, or -1 if the node is visited from the start.
+    int first_primitive = -1;
+    while (true) {
+        if (node_idx == -1) {
+            if (instance_idx == -1)
+                break;
+
+            // The end of a BLAS. Go back to the world space and to the rest of the leaf.
+            ray = world_ray;
+            instance_idx = -1;
+            node_idx = resume_node;
+            first_primitive = resume_primitive;
+            continue;
+        }
+
+        ThreadedBVHNode node = bvh_nodes[node_idx];
+        // A resumed leaf has been hit already.
+        if (first_primitive == -1 && aabb_entry(ray, ray_t, node.bbox) == INFINITY) {
+            node_idx = node.skip;
+            continue;
+        }
+
+        if (get_model_type(node.left_id) != MODEL_BVH_LEAF) {
+            node_idx++;
+            continue;
+        }
 
+        // Test the models of the leaf.
+        int first = get_model_index(node.left_id);
+        int i = first_primitive == -1 ? first : first_primitive;
+        int leaf_idx = node_idx;
+        first_primitive = -1;
+        node_idx = node.skip;
+        for (; i < first + node.right_id; i++) {
+            int model_idx = get_model_index(bvh_primitives[i]);
+            int model_type = get_model_type(bvh_primitives[i]);
+#if HAS_INSTANCES
+            if (model_type == MODEL_INSTANCE) {
+                // Traverse the BLAS in the object space, then come back for the rest of the leaf.
+                resume_node = leaf_idx;
+                resume_primitive = i + 1;
+                instance_idx = model_idx;
+                ray = to_object_space(world_ray, instance_idx);
+                node_idx = instances[instance_idx].blas_root;
+                break;
+            } else
+#endif
+            if (hit_model(ray, ray_t, model_idx, model_type, hit_record)) {
+                has_hit = true;
+                ray_t.max = hit_record.t;
+
+                if (instance_idx != -1)
+                    hit_to_world_space(world_ray, instance_idx, hit_record);
+                set_material_properties(model_idx, model_type, hit_record.p, hit_record.uv, hit_record.is_front_face);
+            }
+        }
+    }
+
+    return has_hit;
+}
+#else
 bool trace_through_bvh(Ray ray, Interval ray_t, out HitRecord hit_record) {
-    int node_idx;
     int model_idx;
+    // The node indices (or the instance entries) and the distances the ray enters them at.
     int stack[64];
+    float stack_t[64];
     int stack_ptr = 0;
-    stack[stack_ptr++] = 0;
+
+    float root_t = aabb_entry(ray, ray_t, bvh_nodes[0].bbox);
+    if (root_t == INFINITY)
+        return false;
+    stack[stack_ptr] = 0;
+    stack_t[stack_ptr++] = root_t;
 
     BVHNode node;
     bool has_hit = false;
+    // The ray in the world space, and the instance whose BLAS is traversed, or -1 in the top-level BVH.
+    Ray world_ray = ray;
+    int instance_idx = -1;
+    // Where the top-level leaf goes on after a BLAS: the primitive after the instance, the end of the leaf and its
+    // distance. A BLAS has no instances, so only one leaf waits at a time.
+    int resume_primitive = 0;
+    int resume_end = 0;
+    float resume_t = 0.0;
 
     while (stack_ptr > 0) {
-        node_idx = stack[--stack_ptr];
-        node = bvh_nodes[node_idx];
-
-        if (hit_aabb(ray, ray_t, node.bbox)) {
-            int node_type = get_node_type(node.left_id);
-            if (node_type != 0) { // if left is leaf, right should also be leaf.
-                // Test left and right models.
-
-                // Extract the sphere index from the upper 16 bits.
-                model_idx = (node.left_id >> 16) & 0xFFFF;
-                for (int i = 0; i < 2; i++) {
-                    if (hit_model(ray, ray_t, model_idx, node_type, hit_record)) {
-                        has_hit = true;
-                        ray_t.max = hit_record.t;
-
-                        set_material_properties(model_idx, node_type, hit_record.p, hit_record.uv, hit_record.is_front_face);
-                    }
-                    model_idx = (node.right_id >> 16) & 0xFFFF;
-                    node_type = get_node_type(node.right_id);
+        stack_ptr--;
+        // Skip the node if a closer hit has been found since it was pushed.
+        if (stack_t[stack_ptr] > ray_t.max)
+            continue;
+
+        int entry = stack[stack_ptr];
+        // The primitives to test, if the entry is a leaf or the rest of one.
+        int first = 0;
+        int end = 0;
+        float leaf_t = stack_t[stack_ptr];
+#if HAS_INSTANCES
+        if (entry == INSTANCE_EXIT) {
+            // The end of a BLAS. Go back to the world space and to the rest of the leaf of the instance.
+            ray = world_ray;
+            instance_idx = -1;
+            first = resume_primitive;
+            end = resume_end;
+            leaf_t = resume_t;
+        } else if (get_model_type(entry) == MODEL_INSTANCE) {
+            // Traverse the BLAS in the object space.
+            instance_idx = get_model_index(entry);
+            ray = to_object_space(world_ray, instance_idx);
+            int blas_root = instances[instance_idx].blas_root;
+            float blas_t = aabb_entry(ray, ray_t, bvh_nodes[blas_root].bbox);
+            if (blas_t != INFINITY) {
+                stack[stack_ptr] = blas_root;
+                stack_t[stack_ptr++] = blas_t;
+            }
+            continue;
+        } else
+#endif
+        {
+            node = bvh_nodes[entry];
+            if (get_model_type(node.left_id) != MODEL_BVH_LEAF) {
+                int near_idx = get_model_index(node.left_id);
+                int far_idx = get_model_index(node.right_id);
+                float near_t = aabb_entry(ray, ray_t, bvh_nodes[near_idx].bbox);
+                float far_t = aabb_entry(ray, ray_t, bvh_nodes[far_idx].bbox);
+                if (far_t < near_t) {
+                    int tmp_idx = near_idx;
+                    near_idx = far_idx;
+                    far_idx = tmp_idx;
+                    float tmp_t = near_t;
+                    near_t = far_t;
+                    far_t = tmp_t;
                 }
-            } else {
-                // Extract the sphere indices from the upper 16 bits.
-                stack[stack_ptr++] = (node.left_id >> 16) & 0xFFFF;
-                stack[stack_ptr++] = (node.right_id >> 16) & 0xFFFF;
+
+                // Push the far child first, so the near child is popped first.
+                if (far_t != INFINITY) {
+                    stack[stack_ptr] = far_idx;
+                    stack_t[stack_ptr++] = far_t;
+                }
+                if (near_t != INFINITY) {
+                    stack[stack_ptr] = near_idx;
+                    stack_t[stack_ptr++] = near_t;
+                }
+                continue;
+            }
+            first = get_model_index(node.left_id);
+            end = first + node.right_id;
+        }
+
+        // Test the models of the leaf.
+        for (int i = first; i < end; i++) {
+            model_idx = get_model_index(bvh_primitives[i]);
+            int model_type = get_model_type(bvh_primitives[i]);
+#if HAS_INSTANCES
+            if (model_type == MODEL_INSTANCE) {
+                // Traverse the BLAS, then the exit entry under it takes the ray back to the world space and to the rest
+                // of the leaf. The instances are traversed one at a time, so a leaf takes 2 entries however many
+                // instances it has.
+                resume_primitive = i + 1;
+                resume_end = end;
+                resume_t = leaf_t;
+                stack[stack_ptr] = INSTANCE_EXIT;
+                stack_t[stack_ptr++] = -INFINITY;
+                stack[stack_ptr] = bvh_primitives[i];
+                stack_t[stack_ptr++] = leaf_t;
+                break;
+            } else
+#endif
+            if (hit_model(ray, ray_t, model_idx, model_type, hit_record)) {
+                has_hit = true;
+                ray_t.max = hit_record.t;
+
+                if (instance_idx != -1)
+                    hit_to_world_space(world_ray, instance_idx, hit_record);
+                set_material_properties(model_idx, model_type, hit_record.p, hit_record.uv, hit_record.is_front_face);
             }
         }
     }
 
     return has_hit;
 }
+#endif
 
 vec3 get_norm_coord() {
     float aspect_ratio = image_size.x / image_size.y;
@@ -323,10 +815,16 @@ vec3 ray_color(Ray ray) {
         }
 
         // The book uses a class to handle mixture of pdfs. But since we're writing in a non-object-oriented language,
-        // I'll just write the code the way below to do the same thing. Hopefully it's also clear enough.
-        if (rand() < 0.5) ray.dir = lights_random(ray.o);
-        float lights_pdf_value = lights_pdf_value(ray.o, ray.dir);
-        float pdf_value = 0.5 * lights_pdf_value + 0.5 * material_pdf_value(ray.dir, material, hit_record.normal);
+        // I'll just write the code the way below to do the same thing. Hopefully it's also clear enough. Without lights,
+        // only the material PDF is left, like in the CPU backend.
+        float pdf_value;
+        if (light_count() == 0) {
+            pdf_value = material_pdf_value(ray.dir, material, hit_record.normal);
+        } else {
+            if (rand() < 0.5) ray.dir = lights_random(ray.o);
+            float lights_pdf_value = lights_pdf_value(ray.o, ray.dir);
+            pdf_value = 0.5 * lights_pdf_value + 0.5 * material_pdf_value(ray.dir, material, hit_record.normal);
+        }
 
         // If the PDF value is zero, the direction is invalid.
         if(pdf_value == 0.0) {
@@ -52,7 +52,8 @@ Interval axis_interval(int n, AABB aabb) {
     return aabb.x;
 }
 
-bool hit_aabb(Ray ray, Interval ray_t,  AABB aabb) {
+// Return the distance the ray enters the box at, or INFINITY if it misses the box.
+float aabb_entry(Ray ray, Interval ray_t, AABB aabb) {
     for (int axis = 0; axis < 3; axis++) {
         Interval ax = axis_interval(axis, aabb);
         float adinv = 1.0 / ray.dir[axis];
@@ -69,10 +70,10 @@ bool hit_aabb(Ray ray, Interval ray_t,  AABB aabb) {
         }
 
         if (ray_t.max <= ray_t.min)
-            return false;
+            return INFINITY;
     }
 
-    return true;
+    return ray_t.min;
 }
 
 bool is_interior(float a, float b, out vec2 uv) {
@@ -132,28 +133,122 @@ bool hit_quad(Ray ray, Interval ray_t, Quad quad, inout HitRecord hit_record) {
     return true;
 }
 
-bool hit_box(Ray ray, Interval ray_t, Box box, inout HitRecord hit_record){
-    bool has_hit = false;
-    // Check through a box's 6 sides.
-    for (int i = 0; i < 6; i++) {
-        if (hit_quad(ray, ray_t, box.quads[i], hit_record)) {
-            ray_t.max = hit_record.t;
-            has_hit = true;
-        }
+// Rotate the vector by the unit quaternion.
+vec3 quat_rotate(vec4 q, vec3 v) {
+    return v + 2.0 * cross(q.xyz, cross(q.xyz, v) + q.w * v);
+}
+
+bool hit_box(Ray ray, Interval ray_t, Box box, inout HitRecord hit_record) {
+    // Intersect the slabs in the object space, where the box is axis aligned. A rotation keeps the lengths, so the
+    // distances are the same in both spaces.
+    vec4 inverse_orientation = vec4(-box.orientation.xyz, box.orientation.w);
+    vec3 o = quat_rotate(inverse_orientation, ray.o - box.translation);
+    vec3 dir = quat_rotate(inverse_orientation, ray.dir);
+    vec3 inv_dir = 1.0 / dir;
+    vec3 t0 = (box.min - o) * inv_dir;
+    vec3 t1 = (box.max - o) * inv_dir;
+    vec3 t_near = min(t0, t1);
+    vec3 t_far = max(t0, t1);
+    float t_enter = max(max(t_near.x, t_near.y), t_near.z);
+    float t_exit = min(min(t_far.x, t_far.y), t_far.z);
+    if (t_enter > t_exit)
+        return false;
+
+    // The ray hits the face it enters through, or the face it leaves through if it starts inside the box.
+    float t = t_enter;
+    bool entering = true;
+    if (!interval_contains(ray_t, t)) {
+        t = t_exit;
+        entering = false;
+        if (!interval_contains(ray_t, t))
+            return false;
     }
 
-    return has_hit;
+    vec3 face_t = entering ? t_near : t_far;
+    int axis = face_t.x == t ? 0 : (face_t.y == t ? 1 : 2);
+    bool max_face = entering ? dir[axis] < 0.0 : dir[axis] > 0.0;
+    vec3 outward_normal = vec3(0.0);
+    outward_normal[axis] = max_face ? 1.0 : -1.0;
+
+    // The same uv as the sides had when a box was made of 6 quads.
+    vec3 local = (o + dir * t - box.min) / (box.max - box.min);
+    if (axis == 0)
+        hit_record.uv = vec2(max_face ? 1.0 - local.z : local.z, local.y);
+    else if (axis == 1)
+        hit_record.uv = vec2(local.x, max_face ? 1.0 - local.z : local.z);
+    else
+        hit_record.uv = vec2(max_face ? local.x : 1.0 - local.x, local.y);
+
+    hit_record.t = t;
+    hit_record.p = ray.o + ray.dir * t;
+    outward_normal = quat_rotate(box.orientation, outward_normal);
+    hit_record.is_front_face = is_front_face(ray.dir, outward_normal);
+    hit_record.normal = get_face_normal(outward_normal, hit_record.is_front_face);
+
+    return true;
+}
+
+vec3 vertex_position(int vertex) {
+    int i = vertex * 3;
+    return vec3(vertices[i], vertices[i + 1], vertices[i + 2]);
+}
+
+// The Moller-Trumbore intersection. The uv is the barycentric coordinate of the hit.
+bool hit_triangle(Ray ray, Interval ray_t, Triangle triangle, inout HitRecord hit_record) {
+    vec3 p0 = vertex_position(triangle.v0);
+    vec3 edge1 = vertex_position(triangle.v1) - p0;
+    vec3 edge2 = vertex_position(triangle.v2) - p0;
+
+    // No hit if the ray is parallel to the plane. The determinant is tiny for tiny triangles, so only 0 is rejected.
+    vec3 p_vec = cross(ray.dir, edge2);
+    float det = dot(edge1, p_vec);
+    if (det == 0.0)
+        return false;
+
+    float inv_det = 1.0 / det;
+    vec3 t_vec = ray.o - p0;
+    float u = dot(t_vec, p_vec) * inv_det;
+    if (u < 0.0 || u > 1.0)
+        return false;
+
+    vec3 q_vec = cross(t_vec, edge1);
+    float v = dot(ray.dir, q_vec) * inv_det;
+    if (v < 0.0 || u + v > 1.0)
+        return false;
+
+    float t = dot(edge2, q_vec) * inv_det;
+    if (!interval_contains(ray_t, t))
+        return false;
+
+    hit_record.t = t;
+    hit_record.p = ray.o + ray.dir * t;
+    vec3 outward_normal = normalize(cross(edge1, edge2));
+    hit_record.is_front_face = is_front_face(ray.dir, outward_normal);
+    hit_record.normal = get_face_normal(outward_normal, hit_record.is_front_face);
+    hit_record.uv = vec2(u, v);
+
+    return true;
 }
 
 bool hit_boundary(Ray ray, Interval ray_t, int model_idx, int model_type, inout HitRecord hit_record) {
     switch(model_type) {
+#if HAS_SPHERES
         case MODEL_SPHERE:
             return hit_sphere(ray, ray_t, spheres[model_idx], hit_record);
+#endif
+#if HAS_QUADS
         case MODEL_QUAD:
             return hit_quad(ray, ray_t, quads[model_idx], hit_record);
+#endif
+#if HAS_BOXES
         case MODEL_BOX:
             Box box = boxes[model_idx];
             return hit_box(ray, ray_t, box, hit_record);
+#endif
+#if HAS_TRIANGLES
+        case MODEL_TRIANGLE:
+            return hit_triangle(ray, ray_t, triangles[model_idx], hit_record);
+#endif
         default:
             return false;
     }
@@ -198,9 +293,11 @@ bool hit_model(Ray ray, Interval ray_t, int model_idx, int model_type, inout Hit
         return true;
 
     // If it's a more complex model like constant mediums, check using its special function.
+#if HAS_CONSTANT_MEDIUMS
     if(model_type == MODEL_CONSTANT_MEDIUM) {
         return hit_constant_medium(ray, ray_t, constant_mediums[model_idx], hit_record);
     }
+#endif
 
     return false;
 }
\ No newline at end of file
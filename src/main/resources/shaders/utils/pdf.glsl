@@ -55,23 +55,38 @@ vec3 quad_random(vec3 origin, Quad quad) {
     return p - origin;
 }
 
+// The light count is a constant in a kernel compiled for the scene, so the loops over the lights can be unrolled.
+int light_count() {
+#if LIGHT_COUNT >= 0
+    return LIGHT_COUNT;
+#else
+    return lights_count;
+#endif
+}
+
 float lights_pdf_value(vec3 origin, vec3 direction) {
-    float weight = 1.0 / lights_count;
+    float weight = 1.0 / light_count();
     float sum = 0.0;
 
-    for (int i = 0; i < lights_count; i++) {
+    for (int i = 0; i < light_count(); i++) {
         // Get hittable_type and hittable_idx from the hittable packed value.
-        int hittable_type = (lights[i] >> 16) & 0xFFFF;
-        int hittable_idx = lights[i] & 0xFFFF;
+        int hittable_type = get_model_type(lights[i]);
+        int hittable_idx = get_model_index(lights[i]);
 
         float pdf_value;
         switch(hittable_type) {
+#if HAS_SPHERES
             case MODEL_SPHERE:
                 pdf_value = sphere_model_pdf(origin, direction, spheres[hittable_idx]);
                 break;
+#endif
+#if HAS_QUADS
             case MODEL_QUAD:
                 pdf_value = quad_pdf_value(origin, direction, quads[hittable_idx]);
                 break;
+#endif
+            default:
+                pdf_value = 0.0;
         }
 
         sum += weight * pdf_value;
@@ -81,43 +96,55 @@ float lights_pdf_value(vec3 origin, vec3 direction) {
 }
 
 vec3 lights_random(vec3 origin) {
-    int hittable = lights[rand_int(0, lights_count - 1)];
+    int hittable = lights[rand_int(0, light_count() - 1)];
 
     // Get hittable_type and hittable_idx from the hittable packed value.
-    int hittable_type = (hittable >> 16) & 0xFFFF;
-    int hittable_idx = hittable & 0xFFFF;
+    int hittable_type = get_model_type(hittable);
+    int hittable_idx = get_model_index(hittable);
 
     switch(hittable_type) {
+#if HAS_SPHERES
         case MODEL_SPHERE:
             return sphere_model_random(origin, spheres[hittable_idx].center1, spheres[hittable_idx].radius);
+#endif
+#if HAS_QUADS
         case MODEL_QUAD:
             return quad_random(origin, quads[hittable_idx]);
+#endif
+        default:
+            return vec3(0.0);
     }
 }
 
-float material_pdf_value(vec3 direction, int material_val, vec3 normal) {
-    int material_id = (material_val >> 16) & 0xFFFF;
-
-    switch (material_id) {
+float material_pdf_value(vec3 direction, int material_idx, vec3 normal) {
+    switch (materials[material_idx].type) {
+#if HAS_LAMBERTIAN
         case MATERIAL_LAMBERTIAN:
             return cosine_pdf_value(direction, normal);
+#endif
+#if HAS_ISOTROPIC
         case MATERIAL_ISOTROPIC:
             return sphere_pdf_value();
+#endif
         default:
             return 0.0;
     }
 }
 
-float scattering_pdf(vec3 normal, vec3 scatter_dir, int material_val) {
-    int material_id = (material_val >> 16) & 0xFFFF;
-
-    switch (material_id) {
+float scattering_pdf(vec3 normal, vec3 scatter_dir, int material_idx) {
+    switch (materials[material_idx].type) {
+#if HAS_LAMBERTIAN
         case MATERIAL_LAMBERTIAN:{
             float cos_theta = dot(normal, normalize(scatter_dir));
             return max(0.0, cos_theta / PI);
         }
+#endif
+#if HAS_ISOTROPIC
         case MATERIAL_ISOTROPIC:
             return 1.0 / (4.0 * PI);
+#endif
+        default:
+            break;
     }
 
     return 0.0;
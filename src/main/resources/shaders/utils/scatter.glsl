@@ -40,54 +40,51 @@ void isotropic_scatter(inout Ray ray, vec3 p) {
     ray = Ray(p, sphere_generate_direction());
 }
 
-bool scatter(inout Ray ray, vec3 hit_point, vec3 normal, bool is_front_face, int material_val, out bool skip_pdf) {
-    // Extract material ID from the upper 16 bits
-    int material_id = (material_val >> 16) & 0xFFFF;
+bool scatter(inout Ray ray, vec3 hit_point, vec3 normal, bool is_front_face, int material_idx, out bool skip_pdf) {
     bool should_scatter;
 
-    switch (material_id) {
+    switch (materials[material_idx].type) {
+#if HAS_LAMBERTIAN
         case MATERIAL_LAMBERTIAN: {
             ray.dir = lambertian_scatter(normal);
             should_scatter = true;
             skip_pdf = false;
             break;
         }
+#endif
+#if HAS_METAL
         case MATERIAL_METAL: {
-            // Extract fuzz from the lower 16 bits
-            int fuzz_quantized = material_val & 0xFFFF;
-
-            // Convert fuzz back to float (undo the quantization)
-            float fuzz = float(fuzz_quantized) / 65535.0;
-
+            float fuzz = materials[material_idx].parameter;
             metal_scatter(ray.dir, normal, fuzz);
             should_scatter = dot(ray.dir, normal) > 0.0; // check if the ray is absorbed by the metal
             skip_pdf = true;
             break;
         }
+#endif
+#if HAS_DIELECTRIC
         case MATERIAL_DIELECTRIC: {
-            // Extract quantized IOR from the lower 16 bits
-            int iorQuantized = material_val & 0xFFFF;
-
-            // Convert quantized IOR back to normalized float [0, 1]
-            float normalizedIOR = float(iorQuantized) / 65535.0;
-
-            // Scale back to the original IOR range [1.0, 2.5]
-            float eta = mix(MIN_IOR, MAX_IOR, normalizedIOR);
-
+            float eta = materials[material_idx].parameter;
             if (is_front_face) eta = 1.0 / eta;
             refract_scatter(ray.dir, normal, eta);
             should_scatter = true;
             skip_pdf = true;
             break;
         }
+#endif
+#if HAS_DIFFUSE_LIGHT
         case MATERIAL_DIFFUSE_LIGHT:
             return false;
+#endif
+#if HAS_ISOTROPIC
         case MATERIAL_ISOTROPIC: {
             isotropic_scatter(ray, hit_point);
             should_scatter = true;
             skip_pdf = false;
             break;
         }
+#endif
+        default:
+            return false;
     }
 
     // Catch degenerate scatter direction.
@@ -123,10 +123,18 @@ vec3 texture_color(vec3 p, int id, vec2 uv) {
     float detail_f = float(detail_i) / 4095.0;
 
     switch(texture_type) {
+#if HAS_CHECKER_TEXTURE
         case TEXTURE_CHECKER: return checkerboard(p, index, detail_i * 3);
+#endif
+#if HAS_IMAGE_TEXTURE
         case TEXTURE_IMAGE: return texture2D(textures[index], uv).rgb;
+#endif
+#if HAS_PERLIN_TEXTURE
         case TEXTURE_PERLIN: return perlin_noise_color(p, detail_f * 100, index); // detail * 100 is the scale for perlin noise
+#endif
+#if HAS_SOLID_TEXTURE
         case TEXTURE_SOLID: return texelFetch(textures[index], ivec2(detail_i, 0), 0).rgb; // detail is the row index
+#endif
         default: return vec3(0.0, 0.0, 0.0);
     }
 }
\ No newline at end of file
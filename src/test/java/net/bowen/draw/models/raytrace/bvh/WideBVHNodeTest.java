@@ -0,0 +1,62 @@
+package net.bowen.draw.models.raytrace.bvh;
+
+import net.bowen.draw.materials.Lambertian;
+import net.bowen.draw.materials.Material;
+import net.bowen.draw.models.raytrace.BVHNode;
+import net.bowen.draw.models.raytrace.Sphere;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WideBVHNodeTest {
+    @Test
+    void quantizedChildBoxesContainTheRealOnes() {
+        // Far from the origin and with sizes from tiny to large, so the float rounding of the frame matters.
+        Material material = new Lambertian(0);
+        Random random = new Random(7);
+        List<Sphere> spheres = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            float radius = i % 2 == 0 ? 0.001f : random.nextFloat() * 50;
+            spheres.add(new Sphere(10000.3f + random.nextFloat() * 300, -5000.7f + random.nextFloat() * 3,
+                    random.nextFloat() - 0.5f, radius, material));
+        }
+        BVHNode root = new SAHBuilder(SAHBuilder.DEFAULT_BIN_COUNT, 1).build(spheres);
+        WideBVHNode node = WideBVHNode.collapse(root, 8);
+        float[] real = node.bounds.clone();
+
+        node.quantize();
+
+        // Decode the node like the shader does: the origin plus the quantized steps of the power-of-2 scale.
+        ByteBuffer buffer = ByteBuffer.allocate(WideBVHNode.bytes(node.width, true)).order(ByteOrder.nativeOrder());
+        node.putToBuffer(buffer);
+        buffer.flip();
+        float[] origin = {buffer.getFloat(), buffer.getFloat(), buffer.getFloat()};
+        float[] scales = new float[3];
+        for (int axis = 0; axis < 3; axis++)
+            scales[axis] = Float.intBitsToFloat((buffer.get() & 0xFF) << 23);
+        buffer.get();
+        byte[] quantized = new byte[6 * node.width];
+        buffer.get(quantized);
+
+        for (int child = 0; child < node.childCount; child++) {
+            for (int axis = 0; axis < 3; axis++) {
+                int minIndex = node.boundsIndex(axis, false, child), maxIndex = node.boundsIndex(axis, true, child);
+                float min = origin[axis] + (quantized[minIndex] & 0xFF) * scales[axis];
+                float max = origin[axis] + (quantized[maxIndex] & 0xFF) * scales[axis];
+
+                assertTrue(min <= real[minIndex], "Child " + child + " min on axis " + axis + " is inside the box.");
+                assertTrue(max >= real[maxIndex], "Child " + child + " max on axis " + axis + " is inside the box.");
+                // The CPU traversal tests the same boxes as the shader.
+                assertEquals(min, node.bounds[minIndex]);
+                assertEquals(max, node.bounds[maxIndex]);
+            }
+        }
+    }
+}
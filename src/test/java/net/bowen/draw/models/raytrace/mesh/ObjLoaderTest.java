@@ -0,0 +1,75 @@
+package net.bowen.draw.models.raytrace.mesh;
+
+import net.bowen.draw.materials.Lambertian;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ObjLoaderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void loadsQuadsAndNegativeIndices() throws IOException {
+        Path file = write("""
+                # A quad with texture coordinates and normals.
+                v 0 0 0
+                v 1 0 0
+                v 1 1 0
+                v 0 1 0
+                vt 0 0
+                vn 0 0 1
+                g quad
+                f 1/1/1 2/1/1 3/1/1 4/1/1
+                v 2 0 0
+                v 2 1.5 -0.25 1.0
+                f -4 -2 -1
+                usemtl other
+                f 2//1 5//1 6//1 # trailing comment
+                """);
+
+        TriangleMesh mesh = ObjLoader.load(file, new Lambertian(0));
+
+        // The quad is split into a fan, and the negative indices count back from the last vertex read so far.
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 2, 4, 5, 1, 4, 5}, indicesOf(mesh));
+        assertArrayEquals(new float[]{0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0, 2, 0, 0, 2, 1.5f, -0.25f},
+                positionsOf(mesh));
+    }
+
+    @Test
+    void rejectsIndexOutOfRange() throws IOException {
+        Path file = write("""
+                v 0 0 0
+                v 1 0 0
+                v 1 1 0
+                f 1 2 4
+                """);
+
+        assertThrows(RuntimeException.class, () -> ObjLoader.load(file, new Lambertian(0)));
+    }
+
+    private Path write(String content) throws IOException {
+        return Files.writeString(dir.resolve("mesh.obj"), content);
+    }
+
+    static int[] indicesOf(TriangleMesh mesh) {
+        int[] indices = new int[mesh.getTriangleCount() * 3];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = mesh.getVertexIndex(i / 3, i % 3);
+        return indices;
+    }
+
+    static float[] positionsOf(TriangleMesh mesh) {
+        float[] positions = new float[mesh.getVertexCount() * 3];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = mesh.getVertexComponent(i / 3, i % 3);
+        return positions;
+    }
+}
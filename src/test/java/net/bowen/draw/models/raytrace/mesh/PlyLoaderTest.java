@@ -0,0 +1,135 @@
+package net.bowen.draw.models.raytrace.mesh;
+
+import net.bowen.draw.materials.Lambertian;
+import net.bowen.draw.models.raytrace.TriangleMesh;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static net.bowen.draw.models.raytrace.mesh.ObjLoaderTest.indicesOf;
+import static net.bowen.draw.models.raytrace.mesh.ObjLoaderTest.positionsOf;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PlyLoaderTest {
+    @Test
+    void loadsMappedPositionsAndSkipsOtherElements() throws IOException {
+        // The vertices are only x, y and z floats, so the positions are a view of the mapping. An element with a list
+        // comes between the vertices and the faces, and the faces have a property after the indices.
+        ByteBuffer body = body();
+        float[] positions = {0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0, 0.5f, 2, -1};
+        for (float position : positions)
+            body.putFloat(position);
+        body.put((byte) 2).putFloat(0.25f).putFloat(0.75f);
+        body.put((byte) 0);
+        body.put((byte) 4).putInt(0).putInt(1).putInt(2).putInt(3).put((byte) 7);
+        body.put((byte) 3).putInt(1).putInt(4).putInt(2).put((byte) 7);
+
+        Path file = write("""
+                ply
+                format binary_little_endian 1.0
+                comment A quad and a triangle.
+                element vertex 5
+                property float x
+                property float y
+                property float z
+                element material 2
+                property list uchar float parameters
+                element face 2
+                property list uchar int vertex_indices
+                property uchar flags
+                end_header
+                """, body);
+
+        TriangleMesh mesh = PlyLoader.load(file, new Lambertian(0));
+
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 1, 4, 2}, indicesOf(mesh));
+        assertArrayEquals(positions, positionsOf(mesh));
+    }
+
+    @Test
+    void convertsOtherVertexLayouts() throws IOException {
+        // The positions are doubles after a color, so they're converted. The pentagon is split into a fan.
+        ByteBuffer body = body();
+        double[] positions = {0, 0, 0, 2, 0, 0, 3, 1, 0, 1, 2, 0, -1, 1, 0.5};
+        for (int vertex = 0; vertex < 5; vertex++) {
+            body.put((byte) 255);
+            for (int axis = 0; axis < 3; axis++)
+                body.putDouble(positions[vertex * 3 + axis]);
+        }
+        body.putInt(-1);
+        body.put((byte) 5);
+        for (int index = 0; index < 5; index++)
+            body.putShort((short) index);
+        body.putInt(3).putInt(4);
+
+        Path file = write("""
+                ply
+                format binary_little_endian 1.0
+                element vertex 5
+                property uchar red
+                property double x
+                property double y
+                property double z
+                element face 1
+                property int group
+                property list uchar ushort vertex_index
+                element edge 1
+                property int vertex1
+                property int vertex2
+                end_header
+                """, body);
+
+        TriangleMesh mesh = PlyLoader.load(file, new Lambertian(0));
+
+        float[] expected = new float[positions.length];
+        for (int i = 0; i < positions.length; i++)
+            expected[i] = (float) positions[i];
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 0, 3, 4}, indicesOf(mesh));
+        assertArrayEquals(expected, positionsOf(mesh));
+    }
+
+    @Test
+    void rejectsTruncatedFaces() throws IOException {
+        ByteBuffer body = body();
+        for (int i = 0; i < 9; i++)
+            body.putFloat(i);
+        body.put((byte) 3).putInt(0).putInt(1);
+
+        Path file = write("""
+                ply
+                format binary_little_endian 1.0
+                element vertex 3
+                property float x
+                property float y
+                property float z
+                element face 1
+                property list uchar int vertex_indices
+                end_header
+                """, body);
+
+        assertThrows(RuntimeException.class, () -> PlyLoader.load(file, new Lambertian(0)));
+    }
+
+    private static ByteBuffer body() {
+        return ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static Path write(String header, ByteBuffer body) throws IOException {
+        byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        byte[] bytes = Arrays.copyOf(headerBytes, headerBytes.length + body.position());
+        System.arraycopy(body.array(), 0, bytes, headerBytes.length, body.position());
+
+        // A mapped file can't be deleted on Windows until the mapping is collected, so it's deleted on exit instead
+        // of with a temporary directory after the test.
+        Path file = Files.createTempFile("mesh", ".ply");
+        file.toFile().deleteOnExit();
+        return Files.write(file, bytes);
+    }
+}